@@ -0,0 +1,110 @@
+package me.tatarka.ipromise.flow;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+
+/**
+ * A {@link Flow.Subscriber} that sends what it receives to a {@link Deferred}. It keeps at most
+ * {@code prefetch} messages requested from upstream and only requests more while the promise has
+ * demand, see {@link Deferred#hasDemand()}. Canceling the promise cancels the upstream
+ * subscription.
+ *
+ * @param <T> the upstream item type
+ * @param <M> the message type of the promise
+ * @see FlowAdapters#toPromise(Flow.Publisher)
+ */
+abstract class DeferredSubscriber<T, M> implements Flow.Subscriber<T>, CancelToken.Listener, Runnable {
+    private final Deferred<M> deferred;
+    private final long prefetch;
+    private final long limit;
+    // Items requested from upstream that have not been received yet.
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private volatile Flow.Subscription subscription;
+
+    DeferredSubscriber(Deferred<M> deferred, int prefetch) {
+        this.deferred = deferred;
+        this.prefetch = prefetch;
+        this.limit = prefetch / 2;
+    }
+
+    /**
+     * Returns the message to send for an upstream item.
+     */
+    abstract M message(T item);
+
+    /**
+     * Returns the message to send before closing when upstream fails, or null to just close.
+     */
+    abstract M error(Throwable error);
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null) throw new NullPointerException("Rule 2.13: subscription");
+        if (this.subscription != null) {
+            // Rule 2.5, only one subscription at a time.
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        deferred.promise().cancelToken().listen(this);
+        replenish();
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (item == null) throw new NullPointerException("Rule 2.13: item");
+        deferred.send(message(item));
+        if (outstanding.decrementAndGet() <= limit) replenish();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        if (error == null) throw new NullPointerException("Rule 2.13: error");
+        try {
+            M message = error(error);
+            if (message != null) deferred.send(message);
+        } finally {
+            deferred.close();
+            deferred.promise().cancelToken().removeListener(this);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        deferred.close();
+        deferred.promise().cancelToken().removeListener(this);
+    }
+
+    @Override
+    public void canceled() {
+        subscription.cancel();
+    }
+
+    // Called by the deferred once there is demand again.
+    @Override
+    public void run() {
+        waiting.set(false);
+        replenish();
+    }
+
+    private void replenish() {
+        for (; ; ) {
+            if (!deferred.promise().isRunning()) return;
+            long current = outstanding.get();
+            if (current > limit) return;
+            if (!deferred.hasDemand()) {
+                if (waiting.compareAndSet(false, true)) deferred.onDemand(this);
+                return;
+            }
+            if (outstanding.compareAndSet(current, prefetch)) {
+                subscription.request(prefetch - current);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package me.tatarka.ipromise.flow;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+
+/**
+ * Converts between promises and {@link java.util.concurrent.Flow} publishers, keeping
+ * backpressure and cancellation on both sides.
+ *
+ * <p> A {@link Flow.Publisher} made from a {@code Promise} listens to the promise once for every
+ * subscriber and passes the subscriber's demand to {@link Promise#listen(Listener, long)}.
+ * Canceling a {@link Flow.Subscription} only stops that subscriber, canceling the promise's {@link
+ * CancelToken} sends {@link java.util.concurrent.CancellationException} to all of them. </p>
+ *
+ * <p> A {@code Promise} made from a {@link Flow.Publisher} subscribes right away, but only
+ * requests items while the promise has demand (see {@link Deferred#hasDemand()}), so nothing is
+ * requested until it has a listener. Canceling the promise cancels the subscription. </p>
+ */
+public final class FlowAdapters {
+    private FlowAdapters() {
+    }
+
+    /**
+     * Returns a {@link Flow.Publisher} that sends the messages of the promise to each subscriber
+     * and completes when the promise is closed. Which earlier messages a new subscriber receives
+     * depends on the promise's buffer, like for any listener.
+     *
+     * @param promise the promise
+     * @param <T>     the message type
+     * @return the publisher
+     */
+    public static <T> Flow.Publisher<T> toPublisher(Promise<T> promise) {
+        if (promise == null) throw new NullPointerException();
+        return new PromisePublisher<T>(promise);
+    }
+
+    /**
+     * Returns a {@code Promise} that receives the items of the publisher and is closed when it
+     * completes. If the publisher fails the promise is just closed, use {@link
+     * #toResultPromise(Flow.Publisher)} if you need the error.
+     *
+     * @param publisher the publisher
+     * @param <T>       the item type
+     * @return the promise
+     */
+    public static <T> Promise<T> toPromise(Flow.Publisher<T> publisher) {
+        return toPromise(new Deferred.Builder(), publisher, Flow.defaultBufferSize());
+    }
+
+    /**
+     * Returns a {@code Promise} that receives the items of the publisher and is closed when it
+     * completes. If the publisher fails the promise is just closed, use {@link
+     * #toResultPromise(Deferred.Builder, Flow.Publisher, int)} if you need the error.
+     *
+     * @param deferredBuilder the builder for creating the deferred
+     * @param publisher       the publisher
+     * @param prefetch        the most items to request from the publisher ahead of time
+     * @param <T>             the item type
+     * @return the promise
+     */
+    public static <T> Promise<T> toPromise(Deferred.Builder deferredBuilder, Flow.Publisher<T> publisher, int prefetch) {
+        if (publisher == null) throw new NullPointerException();
+        if (prefetch <= 0) throw new IllegalArgumentException("prefetch must be positive, was " + prefetch);
+
+        Deferred<T> deferred = deferredBuilder.build(new CancelToken());
+        publisher.subscribe(new DeferredSubscriber<T, T>(deferred, prefetch) {
+            @Override
+            T message(T item) {
+                return item;
+            }
+
+            @Override
+            T error(Throwable error) {
+                return null;
+            }
+        });
+        return deferred.promise();
+    }
+
+    /**
+     * Returns a {@code Promise} that receives the items of the publisher as successful results. If
+     * the publisher fails, the promise receives the error as a final result before it is closed.
+     *
+     * @param publisher the publisher
+     * @param <T>       the item type
+     * @return the promise
+     */
+    public static <T> Promise<Result<T, Exception>> toResultPromise(Flow.Publisher<T> publisher) {
+        return toResultPromise(new Deferred.Builder(), publisher, Flow.defaultBufferSize());
+    }
+
+    /**
+     * Returns a {@code Promise} that receives the items of the publisher as successful results. If
+     * the publisher fails, the promise receives the error as a final result before it is closed. An
+     * error that is not an {@link Exception} is wrapped in an {@link ExecutionException}.
+     *
+     * @param deferredBuilder the builder for creating the deferred
+     * @param publisher       the publisher
+     * @param prefetch        the most items to request from the publisher ahead of time
+     * @param <T>             the item type
+     * @return the promise
+     */
+    public static <T> Promise<Result<T, Exception>> toResultPromise(Deferred.Builder deferredBuilder, Flow.Publisher<T> publisher, int prefetch) {
+        if (publisher == null) throw new NullPointerException();
+        if (prefetch <= 0) throw new IllegalArgumentException("prefetch must be positive, was " + prefetch);
+
+        Deferred<Result<T, Exception>> deferred = deferredBuilder.build(new CancelToken());
+        publisher.subscribe(new DeferredSubscriber<T, Result<T, Exception>>(deferred, prefetch) {
+            @Override
+            Result<T, Exception> message(T item) {
+                return Result.success(item);
+            }
+
+            @Override
+            Result<T, Exception> error(Throwable error) {
+                Exception exception = error instanceof Exception ? (Exception) error : new ExecutionException(error);
+                return Result.error(exception);
+            }
+        });
+        return deferred.promise();
+    }
+}
@@ -0,0 +1,162 @@
+package me.tatarka.ipromise.flow;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Subscription;
+
+/**
+ * A {@link Flow.Publisher} that listens to a {@link Promise} for each subscriber. The subscriber's
+ * demand is passed straight to {@link Promise#listen(Listener, CloseListener, long)}, so messages
+ * are delivered from the promise's callback executor without another thread hop.
+ *
+ * @param <T> the message type
+ * @see FlowAdapters#toPublisher(Promise)
+ */
+final class PromisePublisher<T> implements Flow.Publisher<T> {
+    private final Promise<T> promise;
+
+    PromisePublisher(Promise<T> promise) {
+        this.promise = promise;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        PromiseSubscription<T> subscription = new PromiseSubscription<T>(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.connect(promise);
+    }
+
+    /**
+     * Bridges a subscriber to its listener on the promise. The subscriber may request before the
+     * listener is added, those requests are held in {@code pending} until it is.
+     */
+    static final class PromiseSubscription<T> implements Flow.Subscription, Listener<T>, CloseListener, CancelToken.Listener {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong pending = new AtomicLong();
+        private volatile Subscription subscription;
+        private volatile CancelToken cancelToken;
+        private volatile boolean canceled;
+        // Guarded by this, signals to the subscriber are serialized on it.
+        private boolean done;
+
+        PromiseSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void connect(Promise<T> promise) {
+            if (canceled) return;
+            Subscription subscription = promise.listen(this, this, 0);
+            this.subscription = subscription;
+            if (canceled) {
+                subscription.cancel();
+                return;
+            }
+            requestPending(subscription);
+            CancelToken cancelToken = promise.cancelToken();
+            this.cancelToken = cancelToken;
+            cancelToken.listen(this);
+            // Either this or cancel() and the termination see the other, so the token never keeps
+            // a finished subscriber alive.
+            if (canceled || isDone()) cancelToken.removeListener(this);
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                signalError(new IllegalArgumentException("Rule 3.9: n must be positive, was " + n));
+                return;
+            }
+            Subscription subscription = this.subscription;
+            if (subscription != null) {
+                subscription.request(n);
+                return;
+            }
+            for (; ; ) {
+                long current = pending.get();
+                long update = current + n;
+                if (update < 0) update = Long.MAX_VALUE;
+                if (pending.compareAndSet(current, update)) break;
+            }
+            // The listener may have been added in the meantime, either side that sees it takes
+            // the pending requests.
+            subscription = this.subscription;
+            if (subscription != null) requestPending(subscription);
+        }
+
+        private void requestPending(Subscription subscription) {
+            long n = pending.getAndSet(0);
+            if (n > 0) subscription.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            Subscription subscription = this.subscription;
+            if (subscription != null) subscription.cancel();
+            stopWatchingCancel();
+        }
+
+        private void stopWatchingCancel() {
+            CancelToken cancelToken = this.cancelToken;
+            if (cancelToken != null) cancelToken.removeListener(this);
+        }
+
+        @Override
+        public void receive(T message) {
+            synchronized (this) {
+                if (done) return;
+                if (message == null) {
+                    cancel();
+                    done = true;
+                    subscriber.onError(new NullPointerException("Rule 2.13: the promise sent a null message"));
+                    return;
+                }
+                try {
+                    subscriber.onNext(message);
+                } catch (RuntimeException e) {
+                    // Rule 2.13, the subscriber is broken so stop sending to it.
+                    done = true;
+                    cancel();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (done) return;
+                done = true;
+                subscriber.onComplete();
+            }
+            stopWatchingCancel();
+        }
+
+        @Override
+        public void canceled() {
+            cancel();
+            signalError(new CancellationException("The promise was canceled"));
+        }
+
+        private void signalError(Throwable error) {
+            synchronized (this) {
+                if (done) return;
+                done = true;
+                subscriber.onError(error);
+            }
+            stopWatchingCancel();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package me.tatarka.ipromise.flow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Promise;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Checks {@link FlowAdapters#toPublisher(Promise)} against the rules of the Reactive Streams
+ * specification that apply to a publisher. Tests are named after the rule they cover.
+ */
+@RunWith(JUnit4.class)
+public class TestPromisePublisher {
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Test
+    public void testSpec109OnSubscribeBeforeOtherSignals() {
+        Deferred<Integer> deferred = new Deferred<Integer>();
+        deferred.resolve(1);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(Long.MAX_VALUE);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+
+        assertThat(subscriber.signals).containsExactly("onSubscribe", "onNext 1", "onComplete");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testSpec109SubscribeNullThrows() {
+        FlowAdapters.toPublisher(new Deferred<Integer>().promise()).subscribe(null);
+    }
+
+    @Test
+    public void testSpec102SignalsNoMoreThanRequested() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(2);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        deferred.sendAll(1, 2, 3, 4);
+
+        assertThat(subscriber.items).containsExactly(1, 2);
+        subscriber.subscription.request(1);
+        assertThat(subscriber.items).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void testSpec105CompletesAfterLastRequestedItem() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(1);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        deferred.sendAll(1, 2);
+        deferred.close();
+
+        assertThat(subscriber.completed).isFalse();
+        subscriber.subscription.request(1);
+        assertThat(subscriber.signals).containsExactly("onSubscribe", "onNext 1", "onNext 2", "onComplete");
+    }
+
+    @Test
+    public void testSpec109CompletesEmptyPromiseWithoutDemand() {
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(0);
+        FlowAdapters.toPublisher(Promise.<Integer>empty()).subscribe(subscriber);
+
+        assertThat(subscriber.signals).containsExactly("onSubscribe", "onComplete");
+    }
+
+    @Test
+    public void testSpec303RequestFromOnNextDoesNotRecurse() {
+        final int messages = 10000;
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final int[] maxDepth = new int[1];
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(1) {
+            @Override
+            public void onNext(Integer item) {
+                maxDepth[0] = Math.max(maxDepth[0], new Throwable().getStackTrace().length);
+                subscription.request(1);
+            }
+        };
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        subscriber.subscription.request(messages);
+        int baseDepth = new Throwable().getStackTrace().length;
+        for (int i = 0; i < messages; i++) deferred.send(i);
+
+        assertThat(maxDepth[0] - baseDepth).isLessThan(50);
+    }
+
+    @Test
+    public void testSpec306RequestAfterCancelIsNoOp() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(1);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        deferred.send(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        deferred.send(2);
+        deferred.close();
+
+        assertThat(subscriber.signals).containsExactly("onSubscribe", "onNext 1");
+    }
+
+    @Test
+    public void testSpec309RequestZeroSignalsIllegalArgument() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(0);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        deferred.send(1);
+
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(subscriber.items).isEmpty();
+    }
+
+    @Test
+    public void testSpec309RequestNegativeSignalsIllegalArgument() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(0);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        subscriber.subscription.request(-1);
+
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testSpec317DemandUpToLongMaxValue() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(Long.MAX_VALUE - 1);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) deferred.send(i);
+        deferred.close();
+
+        assertThat(subscriber.items).hasSize(100);
+        assertThat(subscriber.completed).isTrue();
+        assertThat(subscriber.error).isNull();
+    }
+
+    @Test
+    public void testRequestInOnSubscribeBeforeListening() {
+        Deferred<Integer> deferred = new Deferred<Integer>();
+        deferred.resolve(1);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(1);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+
+        assertThat(subscriber.items).containsExactly(1);
+    }
+
+    @Test
+    public void testCancelOnlyStopsOneSubscriber() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Flow.Publisher<Integer> publisher = FlowAdapters.toPublisher(deferred.promise());
+        RecordingSubscriber<Integer> first = new RecordingSubscriber<Integer>(10);
+        RecordingSubscriber<Integer> second = new RecordingSubscriber<Integer>(10);
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        first.subscription.cancel();
+        deferred.sendAll(1, 2);
+        deferred.close();
+
+        assertThat(first.items).isEmpty();
+        assertThat(first.completed).isFalse();
+        assertThat(second.items).containsExactly(1, 2);
+        assertThat(second.completed).isTrue();
+        assertThat(deferred.promise().isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testCancelTokenSignalsCancellation() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(10);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        deferred.send(1);
+        deferred.promise().cancel();
+        deferred.send(2);
+
+        assertThat(subscriber.items).containsExactly(1);
+        assertThat(subscriber.error).isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    public void testCancelStopsListeningToCancelToken() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(10);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        subscriber.subscription.cancel();
+        deferred.promise().cancel();
+
+        assertThat(subscriber.signals).containsExactly("onSubscribe");
+    }
+
+    @Test
+    public void testNullMessageSignalsError() {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>(10);
+        FlowAdapters.toPublisher(deferred.promise()).subscribe(subscriber);
+        deferred.send(null);
+        deferred.send(1);
+
+        assertThat(subscriber.items).isEmpty();
+        assertThat(subscriber.error).isInstanceOf(NullPointerException.class);
+    }
+
+    static class RecordingSubscriber<T> implements Flow.Subscriber<T> {
+        final List<String> signals = new ArrayList<String>();
+        final List<T> items = new ArrayList<T>();
+        final long initialRequest;
+        Flow.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            signals.add("onSubscribe");
+            if (initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(T item) {
+            signals.add("onNext " + item);
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            signals.add("onError");
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("onComplete");
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package me.tatarka.ipromise.flow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+import me.tatarka.ipromise.Subscription;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Checks {@link FlowAdapters#toPromise(Flow.Publisher)} against the rules of the Reactive Streams
+ * specification that apply to a subscriber, and that it keeps the promise's backpressure.
+ */
+@RunWith(JUnit4.class)
+public class TestPublisherPromise {
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Test
+    public void testReceivesAllItemsAndCloses() {
+        RangePublisher publisher = new RangePublisher(1000);
+        Promise<Integer> promise = FlowAdapters.toPromise(new Deferred.Builder(), publisher, 16);
+        RecordingListener<Integer> listener = new RecordingListener<Integer>();
+        promise.listen(listener).onClose(listener);
+
+        assertThat(listener.items).hasSize(1000);
+        assertThat(listener.items.get(999)).isEqualTo(999);
+        assertThat(listener.closed).isTrue();
+    }
+
+    @Test
+    public void testNothingRequestedUntilListened() {
+        RangePublisher publisher = new RangePublisher(1000);
+        Promise<Integer> promise = FlowAdapters.toPromise(new Deferred.Builder(), publisher, 16);
+
+        assertThat(publisher.requested).isEqualTo(0);
+        promise.listen(new RecordingListener<Integer>());
+        assertThat(publisher.emitted).isEqualTo(1000);
+    }
+
+    @Test
+    public void testRequestsFollowListenerDemand() {
+        final int prefetch = 8;
+        RangePublisher publisher = new RangePublisher(1000);
+        Promise<Integer> promise = FlowAdapters.toPromise(new Deferred.Builder(), publisher, prefetch);
+        RecordingListener<Integer> listener = new RecordingListener<Integer>();
+        Subscription subscription = promise.listen(listener, 2);
+
+        assertThat(listener.items).hasSize(2);
+        assertThat(publisher.emitted).isLessThanOrEqualTo(2 + prefetch);
+        for (int i = 0; i < 100; i++) {
+            subscription.request(1);
+            assertThat(publisher.emitted - listener.items.size()).isLessThanOrEqualTo(prefetch);
+        }
+        assertThat(listener.items).hasSize(102);
+    }
+
+    @Test
+    public void testSpec205SecondSubscriptionIsCanceled() {
+        RangePublisher publisher = new RangePublisher(10);
+        final Flow.Subscriber<Integer>[] captured = new Flow.Subscriber[1];
+        FlowAdapters.toPromise(new Flow.Publisher<Integer>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+                captured[0] = (Flow.Subscriber<Integer>) subscriber;
+            }
+        });
+        RangePublisher.RangeSubscription first = publisher.new RangeSubscription(captured[0]);
+        RangePublisher.RangeSubscription second = publisher.new RangeSubscription(captured[0]);
+        captured[0].onSubscribe(first);
+        captured[0].onSubscribe(second);
+
+        assertThat(first.canceled).isFalse();
+        assertThat(second.canceled).isTrue();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testSpec213NullItemThrows() {
+        final Flow.Subscriber<Integer>[] captured = new Flow.Subscriber[1];
+        FlowAdapters.toPromise(new Flow.Publisher<Integer>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+                captured[0] = (Flow.Subscriber<Integer>) subscriber;
+            }
+        });
+        captured[0].onNext(null);
+    }
+
+    @Test
+    public void testCancelPromiseCancelsSubscription() {
+        RangePublisher publisher = new RangePublisher(1000);
+        Promise<Integer> promise = FlowAdapters.toPromise(new Deferred.Builder(), publisher, 4);
+        promise.listen(new RecordingListener<Integer>(), 2);
+        promise.cancel();
+
+        assertThat(publisher.subscription.canceled).isTrue();
+    }
+
+    @Test
+    public void testErrorIsSentAsResult() {
+        final Exception error = new Exception();
+        Promise<Result<Integer, Exception>> promise = FlowAdapters.toResultPromise(new Flow.Publisher<Integer>() {
+            @Override
+            public void subscribe(final Flow.Subscriber<? super Integer> subscriber) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                        subscriber.onNext(1);
+                        subscriber.onError(error);
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+            }
+        });
+        RecordingListener<Result<Integer, Exception>> listener = new RecordingListener<Result<Integer, Exception>>();
+        promise.listen(listener).onClose(listener);
+
+        assertThat(listener.items).containsExactly(Result.<Integer, Exception>success(1), Result.<Integer, Exception>error(error));
+        assertThat(listener.closed).isTrue();
+    }
+
+    @Test
+    public void testSubmissionPublisherRoundTrip() throws Exception {
+        SubmissionPublisher<Integer> publisher = new SubmissionPublisher<Integer>();
+        Promise<Integer> promise = FlowAdapters.toPromise(new Deferred.Builder(), publisher, 4);
+        final List<Integer> items = new ArrayList<Integer>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        FlowAdapters.toPublisher(promise).subscribe(new Flow.Subscriber<Integer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                items.add(item);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                closed.countDown();
+            }
+        });
+        for (int i = 0; i < 100; i++) publisher.submit(i);
+        publisher.close();
+
+        assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(items).hasSize(100);
+        assertThat(items.get(99)).isEqualTo(99);
+    }
+
+    static class RecordingListener<T> implements Listener<T>, CloseListener {
+        final List<T> items = new ArrayList<T>();
+        boolean closed;
+
+        @Override
+        public void receive(T message) {
+            items.add(message);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * A cold publisher that emits from inside {@code request()}, like many synchronous sources do.
+     */
+    static class RangePublisher implements Flow.Publisher<Integer> {
+        final int count;
+        int emitted;
+        long requested;
+        RangeSubscription subscription;
+
+        RangePublisher(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+            subscription = new RangeSubscription(subscriber);
+            subscriber.onSubscribe(subscription);
+        }
+
+        class RangeSubscription implements Flow.Subscription {
+            final Flow.Subscriber<? super Integer> subscriber;
+            long demand;
+            boolean emitting;
+            boolean canceled;
+
+            RangeSubscription(Flow.Subscriber<? super Integer> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                requested += n;
+                demand += n;
+                if (emitting) return;
+                emitting = true;
+                while (demand > 0 && emitted < count && !canceled) {
+                    demand--;
+                    subscriber.onNext(emitted++);
+                }
+                emitting = false;
+                if (emitted == count && !canceled) {
+                    canceled = true;
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                canceled = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package me.tatarka.ipromise.future;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+
+/**
+ * Converts between promises and {@link CompletionStage CompletionStages}. Neither direction
+ * starts a thread or queues messages, the future is completed from the promise's listener and the
+ * promise from the thread that completes the stage.
+ *
+ * <p> Cancellation goes both ways. Canceling a future made from a {@code Promise} cancels the
+ * promise's {@link CancelToken}, and canceling the token cancels the future. Likewise a {@code
+ * Promise} made from a canceled stage is canceled, and canceling the promise cancels the stage.
+ * </p>
+ */
+public final class FutureAdapters {
+    private FutureAdapters() {
+    }
+
+    /**
+     * Returns a {@link CompletableFuture} that completes with the first message of the promise.
+     * Which message is first for a promise that has already sent some depends on its buffer, like
+     * for any listener. If the promise closes without a message the future fails with a {@link
+     * NoSuchElementException}.
+     *
+     * @param promise the promise
+     * @param <T>     the message type
+     * @return the future
+     */
+    public static <T> CompletableFuture<T> toCompletableFuture(Promise<T> promise) {
+        if (promise == null) throw new NullPointerException();
+        PromiseFuture<T> future = new PromiseFuture<T>(promise, false);
+        future.connect();
+        return future;
+    }
+
+    /**
+     * Returns a {@link CompletableFuture} that completes with the last message of the promise once
+     * it is closed. If the promise closes without a message the future fails with a {@link
+     * NoSuchElementException}.
+     *
+     * @param promise the promise
+     * @param <T>     the message type
+     * @return the future
+     */
+    public static <T> CompletableFuture<T> toCompletableFutureOfLast(Promise<T> promise) {
+        if (promise == null) throw new NullPointerException();
+        PromiseFuture<T> future = new PromiseFuture<T>(promise, true);
+        future.connect();
+        return future;
+    }
+
+    /**
+     * Returns a {@code Promise} that is resolved with the value of the stage. If the stage fails
+     * the promise is just closed, use {@link #toResultPromise(CompletionStage)} if you need the
+     * error.
+     *
+     * @param stage the stage
+     * @param <T>   the value type
+     * @return the promise
+     */
+    public static <T> Promise<T> toPromise(CompletionStage<T> stage) {
+        return toPromise(new Deferred.Builder(), stage);
+    }
+
+    /**
+     * Returns a {@code Promise} that is resolved with the value of the stage. If the stage fails
+     * the promise is just closed, use {@link #toResultPromise(Deferred.Builder, CompletionStage)}
+     * if you need the error.
+     *
+     * @param deferredBuilder the builder for creating the deferred
+     * @param stage           the stage
+     * @param <T>             the value type
+     * @return the promise
+     */
+    public static <T> Promise<T> toPromise(Deferred.Builder deferredBuilder, CompletionStage<T> stage) {
+        if (stage == null) throw new NullPointerException();
+
+        Deferred<T> deferred = deferredBuilder.build(new CancelToken());
+        new StageListener<T, T>(deferred, stage) {
+            @Override
+            T message(T value) {
+                return value;
+            }
+
+            @Override
+            T error(Throwable error) {
+                return null;
+            }
+        }.connect();
+        return deferred.promise();
+    }
+
+    /**
+     * Returns a {@code Promise} that is resolved with the value of the stage as a successful
+     * result, or with the error if the stage fails.
+     *
+     * @param stage the stage
+     * @param <T>   the value type
+     * @return the promise
+     */
+    public static <T> Promise<Result<T, Exception>> toResultPromise(CompletionStage<T> stage) {
+        return toResultPromise(new Deferred.Builder(), stage);
+    }
+
+    /**
+     * Returns a {@code Promise} that is resolved with the value of the stage as a successful
+     * result, or with the error if the stage fails. An error that is not an {@link Exception} is
+     * wrapped in an {@link ExecutionException}.
+     *
+     * @param deferredBuilder the builder for creating the deferred
+     * @param stage           the stage
+     * @param <T>             the value type
+     * @return the promise
+     */
+    public static <T> Promise<Result<T, Exception>> toResultPromise(Deferred.Builder deferredBuilder, CompletionStage<T> stage) {
+        if (stage == null) throw new NullPointerException();
+
+        Deferred<Result<T, Exception>> deferred = deferredBuilder.build(new CancelToken());
+        new StageListener<T, Result<T, Exception>>(deferred, stage) {
+            @Override
+            Result<T, Exception> message(T value) {
+                return Result.success(value);
+            }
+
+            @Override
+            Result<T, Exception> error(Throwable error) {
+                Exception exception = error instanceof Exception ? (Exception) error : new ExecutionException(error);
+                return Result.error(exception);
+            }
+        }.connect();
+        return deferred.promise();
+    }
+}
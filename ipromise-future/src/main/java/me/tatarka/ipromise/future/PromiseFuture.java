@@ -0,0 +1,95 @@
+package me.tatarka.ipromise.future;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Subscription;
+
+/**
+ * A {@link CompletableFuture} that is also the listener on its promise, so it is completed right
+ * on the promise's callback executor without another thread or queue. When only the first message
+ * is needed it asks the promise for one message and detaches once it has it.
+ *
+ * @param <T> the message type
+ * @see FutureAdapters#toCompletableFuture(Promise)
+ * @see FutureAdapters#toCompletableFutureOfLast(Promise)
+ */
+final class PromiseFuture<T> extends CompletableFuture<T> implements Listener<T>, CloseListener, CancelToken.Listener {
+    private final Promise<T> promise;
+    private final boolean last;
+    private volatile Subscription subscription;
+    // Only touched from the listener, which the promise never calls concurrently.
+    private T value;
+    private boolean hasValue;
+
+    PromiseFuture(Promise<T> promise, boolean last) {
+        this.promise = promise;
+        this.last = last;
+    }
+
+    void connect() {
+        Subscription subscription = promise.listen(this, this, last ? Long.MAX_VALUE : 1);
+        this.subscription = subscription;
+        // The message may have been delivered before the subscription was known.
+        if (isDone()) subscription.cancel();
+        promise.cancelToken().listen(this);
+        // The future may have completed before it was listening to the token.
+        if (isDone()) stopWatchingCancel();
+    }
+
+    @Override
+    public void receive(T message) {
+        if (last) {
+            value = message;
+            hasValue = true;
+        } else {
+            complete(message);
+            Subscription subscription = this.subscription;
+            if (subscription != null) subscription.cancel();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (hasValue) {
+            complete(value);
+        } else {
+            completeExceptionally(new NoSuchElementException("The promise closed without a message"));
+        }
+    }
+
+    @Override
+    public void canceled() {
+        super.cancel(false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean canceled = super.cancel(mayInterruptIfRunning);
+        if (canceled) promise.cancel();
+        return canceled;
+    }
+
+    @Override
+    public boolean complete(T value) {
+        boolean completed = super.complete(value);
+        if (completed) stopWatchingCancel();
+        return completed;
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable error) {
+        boolean completed = super.completeExceptionally(error);
+        if (completed) stopWatchingCancel();
+        return completed;
+    }
+
+    // Once the future is done the token shouldn't keep it alive.
+    private void stopWatchingCancel() {
+        promise.cancelToken().removeListener(this);
+    }
+}
@@ -0,0 +1,74 @@
+package me.tatarka.ipromise.future;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+
+/**
+ * Completes a {@link Deferred} from the thread that completes a {@link CompletionStage}. A stage
+ * that is canceled cancels the promise, and canceling the promise cancels the stage if it can be
+ * canceled through {@link CompletionStage#toCompletableFuture()}.
+ *
+ * @param <T> the value type of the stage
+ * @param <M> the message type of the promise
+ * @see FutureAdapters#toPromise(CompletionStage)
+ */
+abstract class StageListener<T, M> implements BiConsumer<T, Throwable>, CancelToken.Listener {
+    private final Deferred<M> deferred;
+    private final CompletionStage<T> stage;
+
+    StageListener(Deferred<M> deferred, CompletionStage<T> stage) {
+        this.deferred = deferred;
+        this.stage = stage;
+    }
+
+    /**
+     * Returns the message to send for the stage's value.
+     */
+    abstract M message(T value);
+
+    /**
+     * Returns the message to send before closing when the stage fails, or null to just close.
+     */
+    abstract M error(Throwable error);
+
+    void connect() {
+        deferred.promise().cancelToken().listen(this);
+        stage.whenComplete(this);
+    }
+
+    @Override
+    public void accept(T value, Throwable error) {
+        // The stage is done, there is nothing left for a cancel to stop.
+        deferred.promise().cancelToken().removeListener(this);
+        if (error == null) {
+            deferred.resolve(message(value));
+            return;
+        }
+        // Dependent stages wrap the cause.
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof CancellationException) {
+            deferred.promise().cancel();
+            return;
+        }
+        try {
+            M message = error(error);
+            if (message != null) deferred.send(message);
+        } finally {
+            deferred.close();
+        }
+    }
+
+    @Override
+    public void canceled() {
+        try {
+            stage.toCompletableFuture().cancel(false);
+        } catch (UnsupportedOperationException e) {
+            // The stage does not allow it, there is nothing to stop.
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package me.tatarka.ipromise.future;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class TestFutureAdapters {
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Test
+    public void testFutureCompletesWithFirstMessage() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        CompletableFuture<String> future = FutureAdapters.toCompletableFuture(deferred.promise());
+
+        assertThat(future.isDone()).isFalse();
+        deferred.sendAll("first", "second");
+        assertThat(future.getNow(null)).isEqualTo("first");
+    }
+
+    @Test
+    public void testFutureOfResolvedPromise() throws Exception {
+        CompletableFuture<String> future = FutureAdapters.toCompletableFuture(Promise.of("result"));
+
+        assertThat(future.getNow(null)).isEqualTo("result");
+    }
+
+    @Test
+    public void testFutureOfLastCompletesOnClose() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        CompletableFuture<String> future = FutureAdapters.toCompletableFutureOfLast(deferred.promise());
+        deferred.sendAll("first", "second");
+
+        assertThat(future.isDone()).isFalse();
+        deferred.close();
+        assertThat(future.getNow(null)).isEqualTo("second");
+    }
+
+    @Test
+    public void testFutureOfEmptyPromiseFails() {
+        CompletableFuture<String> future = FutureAdapters.toCompletableFuture(Promise.<String>empty());
+
+        assertThat(future.isCompletedExceptionally()).isTrue();
+        try {
+            future.get();
+            fail();
+        } catch (Exception e) {
+            assertThat(e.getCause()).isInstanceOf(NoSuchElementException.class);
+        }
+    }
+
+    @Test
+    public void testCancelFutureCancelsPromise() {
+        Deferred<String> deferred = new Deferred<String>();
+        CompletableFuture<String> future = FutureAdapters.toCompletableFuture(deferred.promise());
+        future.cancel(false);
+
+        assertThat(deferred.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testCancelPromiseCancelsFuture() {
+        Deferred<String> deferred = new Deferred<String>();
+        CompletableFuture<String> future = FutureAdapters.toCompletableFutureOfLast(deferred.promise());
+        deferred.promise().cancel();
+
+        assertThat(future.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void testPromiseResolvesFromStage() {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        Promise<String> promise = FutureAdapters.toPromise(future);
+        RecordingListener<String> listener = new RecordingListener<String>();
+        promise.listen(listener).onClose(listener);
+
+        assertThat(listener.items).isEmpty();
+        future.complete("result");
+        assertThat(listener.items).containsExactly("result");
+        assertThat(listener.closed).isTrue();
+    }
+
+    @Test
+    public void testPromiseClosesOnFailedStage() {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        Promise<String> promise = FutureAdapters.toPromise(future);
+        future.completeExceptionally(new Exception());
+
+        assertThat(promise.isClosed()).isTrue();
+        assertThat(promise.isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testResultPromiseReceivesError() {
+        Exception error = new Exception();
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        Promise<Result<String, Exception>> promise = FutureAdapters.toResultPromise(future.thenApply(Function.<String>identity()));
+        RecordingListener<Result<String, Exception>> listener = new RecordingListener<Result<String, Exception>>();
+        promise.listen(listener).onClose(listener);
+        future.completeExceptionally(error);
+
+        assertThat(listener.items).containsExactly(Result.<String, Exception>error(error));
+        assertThat(listener.closed).isTrue();
+    }
+
+    @Test
+    public void testResultPromiseWrapsThrowable() throws Exception {
+        Error error = new Error();
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        future.completeExceptionally(error);
+        Promise<Result<String, Exception>> promise = FutureAdapters.toResultPromise(future);
+        RecordingListener<Result<String, Exception>> listener = new RecordingListener<Result<String, Exception>>();
+        promise.listen(listener);
+
+        Exception exception = listener.items.get(0).getError();
+        assertThat(exception).isInstanceOf(ExecutionException.class);
+        assertThat(exception.getCause()).isSameAs(error);
+    }
+
+    @Test
+    public void testCancelPromiseCancelsStage() {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        FutureAdapters.toPromise(future).cancel();
+
+        assertThat(future.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void testCancelStageCancelsPromise() {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        Promise<String> promise = FutureAdapters.toPromise(future);
+        future.cancel(false);
+
+        assertThat(promise.isCanceled()).isTrue();
+    }
+
+    static class RecordingListener<T> implements Listener<T>, CloseListener {
+        final List<T> items = new ArrayList<T>();
+        boolean closed;
+
+        @Override
+        public void receive(T message) {
+            items.add(message);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
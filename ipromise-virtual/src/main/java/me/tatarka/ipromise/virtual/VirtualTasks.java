@@ -0,0 +1,71 @@
+package me.tatarka.ipromise.virtual;
+
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.task.Task;
+import me.tatarka.ipromise.task.Tasks;
+
+/**
+ * {@link Tasks} with helpers for running callbacks on virtual threads. Since it extends {@code
+ * Tasks} all of those helpers are available from here too.
+ */
+public class VirtualTasks extends Tasks {
+    protected VirtualTasks() {
+    }
+
+    /**
+     * Runs the callback in a new virtual thread, delivering the messages to the returned {@link
+     * me.tatarka.ipromise.Promise}. If the promise is canceled, the thread is interrupted. This is
+     * equivalent to: {@code VirtualTasks.ofVirtual(callback).start()}.
+     *
+     * @param callback the callback to run in a virtual thread
+     * @param <T>      the result type
+     * @return the promise that will receive the result
+     */
+    public static <T> Promise<T> runVirtual(Task.Do<T> callback) {
+        return ofVirtual(callback).start();
+    }
+
+    /**
+     * Runs the callback in a new virtual thread, delivering the messages to the returned {@link
+     * me.tatarka.ipromise.Promise}. If the promise is canceled, the thread is interrupted. This is
+     * equivalent to: {@code VirtualTasks.ofVirtual(deferredBuilder, callback).start()}.
+     *
+     * @param deferredBuilder the deferred builder
+     * @param callback        the callback to run in a virtual thread
+     * @param <T>             the message type
+     * @return the promise that will receive the messages
+     */
+    public static <T> Promise<T> runVirtual(Deferred.Builder deferredBuilder, Task.Do<T> callback) {
+        return ofVirtual(deferredBuilder, callback).start();
+    }
+
+    /**
+     * Constructs a new {@link VirtualThreadTask} that calls the given callback in a new virtual
+     * thread when {@link Task#start()} is called. If the {@link me.tatarka.ipromise.Promise} is
+     * canceled, the thread is interrupted.
+     *
+     * @param callback the callback to run in a virtual thread
+     * @param <T>      the result type
+     * @return the task
+     * @see VirtualThreadTask
+     */
+    public static <T> Task<T> ofVirtual(Task.Do<T> callback) {
+        return new VirtualThreadTask<T>(callback);
+    }
+
+    /**
+     * Constructs a new {@link VirtualThreadTask} that calls the given callback in a new virtual
+     * thread when {@link Task#start()} is called. If the {@link me.tatarka.ipromise.Promise} is
+     * canceled, the thread is interrupted.
+     *
+     * @param deferredBuilder the deferred builder
+     * @param callback        the callback to run in a virtual thread
+     * @param <T>             the result type
+     * @return the task
+     * @see VirtualThreadTask
+     */
+    public static <T> Task<T> ofVirtual(Deferred.Builder deferredBuilder, Task.Do<T> callback) {
+        return new VirtualThreadTask<T>(deferredBuilder, callback);
+    }
+}
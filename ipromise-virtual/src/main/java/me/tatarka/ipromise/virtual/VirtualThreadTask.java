@@ -0,0 +1,41 @@
+package me.tatarka.ipromise.virtual;
+
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.task.ThreadTask;
+
+/**
+ * A {@link me.tatarka.ipromise.task.Task} that executes using a single virtual {@link
+ * java.lang.Thread}. If the {@link me.tatarka.ipromise.Promise} is canceled, {@link
+ * Thread#interrupt()} is called. A virtual thread is cheap to create and gives up its carrier
+ * thread while it blocks, so unlike a {@link ThreadTask} there can be a very large number of these
+ * running blocking IO at once.
+ *
+ * @param <T> the message type
+ */
+public class VirtualThreadTask<T> extends ThreadTask<T> {
+    /**
+     * Creates a new {@code Task} that runs the given callback in a new virtual {@link
+     * java.lang.Thread}.
+     *
+     * @param callback the callback
+     */
+    public VirtualThreadTask(Do<T> callback) {
+        super(callback);
+    }
+
+    /**
+     * Creates a new {@code Task} that runs the given callback in a new virtual {@link
+     * java.lang.Thread} using the given {@link me.tatarka.ipromise.Deferred.Builder}
+     *
+     * @param deferredBuilder the deferred builder
+     * @param callback        the callback
+     */
+    public VirtualThreadTask(Deferred.Builder deferredBuilder, Do<T> callback) {
+        super(deferredBuilder, callback);
+    }
+
+    @Override
+    protected Thread newThread(Runnable runnable) {
+        return Thread.ofVirtual().unstarted(runnable);
+    }
+}
@@ -0,0 +1,71 @@
+package me.tatarka.ipromise.virtual;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.task.Task;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class TestVirtualTasks {
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Test
+    public void testRunsOnVirtualThread() throws Exception {
+        Promise<Boolean> promise = VirtualTasks.runVirtual(new Task.DoOnce<Boolean>() {
+            @Override
+            public Boolean runOnce(CancelToken cancelToken) {
+                return Thread.currentThread().isVirtual();
+            }
+        });
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testTaskStartsNewThreadEachTime() throws Exception {
+        Task<Thread> task = VirtualTasks.ofVirtual(new Task.DoOnce<Thread>() {
+            @Override
+            public Thread runOnce(CancelToken cancelToken) {
+                return Thread.currentThread();
+            }
+        });
+        Thread first = task.start().await(10, TimeUnit.SECONDS);
+        Thread second = task.start().await(10, TimeUnit.SECONDS);
+
+        assertThat(first).isNotSameAs(second);
+    }
+
+    @Test
+    public void testCancelInterrupts() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Promise<Void> promise = VirtualTasks.runVirtual(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        promise.cancel();
+
+        assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,88 @@
+package me.tatarka.ipromise.virtual;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.task.Task;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Starts a million tasks that all block at the same time. Each one waits on a latch that is only
+ * released once every task has started, so they really are all in flight at once, which would be
+ * far beyond what platform threads allow. The count can be lowered with the {@code
+ * ipromise.virtualTasks} system property on a machine with little memory.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks}. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestVirtualThreadPerformance {
+    private static final int TASKS = Integer.getInteger("ipromise.virtualTasks", 1000000);
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+    }
+
+    @Test
+    public void testMillionBlockingTasks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(TASKS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(TASKS);
+        final AtomicInteger received = new AtomicInteger();
+        Task<Integer> task = VirtualTasks.ofVirtual(new Task.DoOnce<Integer>() {
+            @Override
+            public Integer runOnce(CancelToken cancelToken) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return 1;
+            }
+        });
+        Listener<Integer> listener = new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                received.addAndGet(message);
+            }
+        };
+        CloseListener closeListener = new CloseListener() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) task.start().listen(listener).onClose(closeListener);
+        assertThat(started.await(5, TimeUnit.MINUTES)).isTrue();
+        long startedElapsed = System.nanoTime() - start;
+        release.countDown();
+        assertThat(closed.await(5, TimeUnit.MINUTES)).isTrue();
+        long elapsed = System.nanoTime() - start;
+
+        assertThat(received.get())
+                .as(TASKS + " tasks blocked at once, all started in "
+                        + TimeUnit.NANOSECONDS.toMillis(startedElapsed) + " ms, finished in "
+                        + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms (" + (elapsed / TASKS) + " ns/task)")
+                .isEqualTo(TASKS);
+    }
+}
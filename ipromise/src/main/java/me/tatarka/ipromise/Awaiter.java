@@ -0,0 +1,117 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Blocks the calling thread until a {@link Promise} sends a message, closes or is canceled. It is
+ * the listener, close listener and wake-up for the waiting thread all at once, and waits by
+ * parking the thread instead of taking a lock. The listener is removed again when the wait is
+ * over, however it ends.
+ *
+ * @param <T> the message type
+ * @see Promise#await()
+ * @see Promise#awaitAll()
+ */
+final class Awaiter<T> implements Listener<T>, WaitingListener {
+    private static final int WAITING = 0;
+    private static final int RECEIVED = 1;
+    private static final int CLOSED = 2;
+    private static final int CANCELED = 3;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Awaiter> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Awaiter.class, "state");
+
+    private final Promise<T> promise;
+    private final Thread thread = Thread.currentThread();
+    // All messages until the close, or null if only the first message is wanted.
+    private final List<T> messages;
+    private volatile int state;
+    private T message;
+
+    Awaiter(Promise<T> promise, boolean all) {
+        this.promise = promise;
+        this.messages = all ? new ArrayList<T>() : null;
+    }
+
+    /**
+     * Waits until the promise finishes the wait or the timeout elapses.
+     *
+     * @param timed if the timeout applies
+     * @param nanos the timeout
+     * @return false if it timed out, true otherwise
+     */
+    boolean await(boolean timed, long nanos) throws InterruptedException {
+        Subscription subscription = promise.listen(this, this, messages == null ? 1 : Long.MAX_VALUE);
+        try {
+            // The promise only wakes the listeners it knows about, it may have been canceled
+            // before this one was added.
+            if (promise.isCanceled()) canceled();
+            long deadline = timed ? System.nanoTime() + nanos : 0;
+            while (state == WAITING) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (timed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return false;
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            return true;
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Returns the first message after a wait that didn't time out.
+     */
+    T message() {
+        switch (state) {
+            case RECEIVED:
+                return message;
+            case CANCELED:
+                throw new CancellationException("The promise was canceled");
+            default:
+                throw new NoSuchElementException("The promise closed without a message");
+        }
+    }
+
+    /**
+     * Returns all messages after a wait that didn't time out.
+     */
+    List<T> messages() {
+        if (state == CANCELED) throw new CancellationException("The promise was canceled");
+        return messages;
+    }
+
+    @Override
+    public void receive(T message) {
+        if (messages != null) {
+            messages.add(message);
+        } else {
+            this.message = message;
+            finish(RECEIVED);
+        }
+    }
+
+    @Override
+    public void close() {
+        finish(CLOSED);
+    }
+
+    @Override
+    public void canceled() {
+        finish(CANCELED);
+    }
+
+    private void finish(int result) {
+        if (STATE.compareAndSet(this, WAITING, result)) LockSupport.unpark(thread);
+    }
+}
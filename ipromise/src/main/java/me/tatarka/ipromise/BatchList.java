@@ -0,0 +1,83 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A batch handed out by {@link Promise#pooledBatch(int, long, java.util.concurrent.TimeUnit)}. It
+ * counts the listeners it was delivered to and goes back to its pool once the last of them has
+ * returned. A listener that is canceled before it gets the batch never releases it, the batch is
+ * then left to the garbage collector and the pool makes a new one.
+ *
+ * @param <T> the message type
+ */
+final class BatchList<T> extends ArrayList<T> {
+    private static final long serialVersionUID = 1L;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<BatchList> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(BatchList.class, "references");
+
+    private final transient Pool<T> pool;
+    private volatile int references;
+
+    private BatchList(Pool<T> pool, int capacity) {
+        super(capacity);
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of listeners the batch is being delivered to, before any of them can run.
+     */
+    void retain(int listeners) {
+        if (listeners == 0) {
+            recycle();
+        } else {
+            REFERENCES.set(this, listeners);
+        }
+    }
+
+    /**
+     * Called after a listener has returned.
+     */
+    void release() {
+        if (REFERENCES.decrementAndGet(this) == 0) recycle();
+    }
+
+    private void recycle() {
+        clear();
+        pool.put(this);
+    }
+
+    /**
+     * Keeps a few batches to reuse, more are only made while all of them are still being
+     * delivered.
+     */
+    static final class Pool<T> {
+        private static final int SIZE = 4;
+
+        private final AtomicReferenceArray<BatchList<T>> lists = new AtomicReferenceArray<BatchList<T>>(SIZE);
+        private final int capacity;
+
+        Pool(int capacity) {
+            this.capacity = capacity;
+        }
+
+        BatchList<T> take() {
+            for (int i = 0; i < SIZE; i++) {
+                if (lists.get(i) != null) {
+                    BatchList<T> list = lists.getAndSet(i, null);
+                    if (list != null) return list;
+                }
+            }
+            return new BatchList<T>(this, capacity);
+        }
+
+        void put(BatchList<T> list) {
+            for (int i = 0; i < SIZE; i++) {
+                if (lists.get(i) == null && lists.compareAndSet(i, null, list)) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects messages into batches for {@link Promise#batch(int, long, java.util.concurrent.TimeUnit)}.
+ * A batch is sent when it is full, when the delay has passed since its first message or when the
+ * source closes, whichever comes first. The batch itself is sent, so nothing is copied.
+ *
+ * <p> There is at most one pending timer. When it fires for a batch that has since been sent, it
+ * is simply scheduled again for the current batch, so a steady stream of full batches doesn't
+ * schedule anything at all. </p>
+ *
+ * @param <T> the message type
+ */
+final class Batcher<T> implements Listener<T>, CloseListener {
+    // Batches start out at most this big, so a large maximum isn't allocated up front.
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Promise<List<T>> newPromise;
+    private final int maxSize;
+    // Zero if batches only end when they are full.
+    private final long delayNanos;
+    // Null if every batch is a new list.
+    private final BatchList.Pool<T> pool;
+    // Re-armed from its own run(), so a batcher allocates a single timeout.
+    private final HashedWheelTimer.Timeout timeout = new HashedWheelTimer.Timeout() {
+        @Override
+        void run() {
+            expired();
+        }
+    };
+    // Guarded by this, the timer thread and the source's listener both use them.
+    private List<T> batch;
+    private long batchStart;
+    private boolean timerPending;
+
+    private Batcher(Promise<List<T>> newPromise, int maxSize, long delayNanos, BatchList.Pool<T> pool) {
+        this.newPromise = newPromise;
+        this.maxSize = maxSize;
+        this.delayNanos = delayNanos;
+        this.pool = pool;
+    }
+
+    static <T> Promise<List<T>> batch(Promise<T> source, int maxSize, long delayNanos) {
+        Promise<List<T>> newPromise = new Promise<List<T>>(source.derivedCancelToken(), source.callbackExecutor());
+        Batcher<T> batcher = new Batcher<T>(newPromise, maxSize, delayNanos, null);
+        source.register(batcher, batcher);
+        return newPromise;
+    }
+
+    static <T> Promise<List<T>> pooledBatch(Promise<T> source, int maxSize, long delayNanos) {
+        Promise<List<T>> newPromise = new PooledBatchPromise<T>(source.derivedCancelToken(), source.callbackExecutor());
+        BatchList.Pool<T> pool = new BatchList.Pool<T>(Math.min(maxSize, INITIAL_CAPACITY));
+        Batcher<T> batcher = new Batcher<T>(newPromise, maxSize, delayNanos, pool);
+        source.register(batcher, batcher);
+        return newPromise;
+    }
+
+    @Override
+    public synchronized void receive(T message) {
+        if (batch == null) {
+            batch = pool != null ? pool.take() : new ArrayList<T>(Math.min(maxSize, INITIAL_CAPACITY));
+            if (delayNanos > 0) {
+                batchStart = System.nanoTime();
+                if (!timerPending) {
+                    timerPending = true;
+                    HashedWheelTimer.shared().schedule(timeout, delayNanos);
+                }
+            }
+        }
+        batch.add(message);
+        if (batch.size() >= maxSize) flush();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            flush();
+        }
+        newPromise.close();
+    }
+
+    private synchronized void expired() {
+        timerPending = false;
+        if (batch == null || !newPromise.isRunning()) return;
+        long remaining = batchStart + delayNanos - System.nanoTime();
+        if (remaining <= 0) {
+            flush();
+        } else {
+            timerPending = true;
+            HashedWheelTimer.shared().schedule(timeout, remaining);
+        }
+    }
+
+    private void flush() {
+        if (batch == null) return;
+        List<T> full = batch;
+        batch = null;
+        newPromise.send(full);
+    }
+
+    /**
+     * Counts the listeners each batch is delivered to. Like {@link ValuePromise}, adding a
+     * listener and sending a batch are done under a lock so that the count is exact. It keeps no
+     * messages for new listeners, they must not see a batch that may already be reused.
+     *
+     * <p> Every mailbox of this promise releases the batch once its listener has returned, so a
+     * mailbox of a promise further down the chain never touches the count. Only the listeners added
+     * by the user get the batch itself, the operators and everything else that may keep it get a
+     * copy. </p>
+     */
+    private static final class PooledBatchPromise<T> extends Promise<List<T>> {
+        private final Object lock = new Object();
+
+        PooledBatchPromise(CancelToken cancelToken, Executor callbackExecutor) {
+            super(cancelToken, callbackExecutor);
+        }
+
+        @Override
+        void deliver(List<T> message) {
+            Mailbox<?>[] mailboxes;
+            synchronized (lock) {
+                mailboxes = append(message);
+                ((BatchList<T>) message).retain(mailboxes.length);
+            }
+            dispatch(mailboxes);
+        }
+
+        @Override
+        public Promise<List<T>> listen(Listener<List<T>> listener) {
+            return super.listen(listener == null ? null : new Releasing<T>(listener));
+        }
+
+        @Override
+        public Subscription listen(Listener<List<T>> listener, long demand) {
+            return super.listen(listener == null ? null : new Releasing<T>(listener), demand);
+        }
+
+        @Override
+        void register(Mailbox<List<T>> mailbox) {
+            if (!(mailbox.listener() instanceof Releasing)) {
+                mailbox.setListener(new Copying<T>(mailbox.listener()));
+            }
+            synchronized (lock) {
+                subscribe(mailbox, null);
+            }
+            mailbox.scheduleIfPending();
+        }
+    }
+
+    /**
+     * Hands the pooled batch to a listener added by the user and releases it once the listener
+     * has returned.
+     */
+    private static final class Releasing<T> implements Listener<List<T>> {
+        private final Listener<List<T>> listener;
+
+        Releasing(Listener<List<T>> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void receive(List<T> batch) {
+            try {
+                listener.receive(batch);
+            } finally {
+                ((BatchList<T>) batch).release();
+            }
+        }
+    }
+
+    /**
+     * Hands a copy of the pooled batch to a listener that may keep it, and releases the batch
+     * right away.
+     */
+    private static final class Copying<T> implements Listener<List<T>> {
+        private final Listener<List<T>> listener;
+
+        Copying(Listener<List<T>> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void receive(List<T> batch) {
+            List<T> copy = new ArrayList<T>(batch);
+            ((BatchList<T>) batch).release();
+            listener.receive(copy);
+        }
+    }
+}
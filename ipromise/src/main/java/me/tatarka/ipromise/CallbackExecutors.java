@@ -22,9 +22,10 @@ public class CallbackExecutors {
     /**
      * Sets the default callback executor.
      *
-     * <p> <b>Important:</b> The given executor must preserve the order of tasks given to it for a
-     * given {@code Promise}. Otherwise you will run into unexpected behavior like messages arriving
-     * out of order and your promise closing before all messages arrive. </p>
+     * <p> The executor does not need to preserve the order of tasks given to it. Each listener's
+     * callbacks always run in order and never overlap, and the close callbacks run after every
+     * listener has received its last message, so a thread pool can be used to run different
+     * listeners and promises in parallel. See {@link #threadPoolExecutor()}. </p>
      *
      * <p> You should only set this once for your application (though not enforced). If you want
      * more granular control, use {@link me.tatarka.ipromise.Deferred.Builder#callbackExecutor(java.util.concurrent.Executor)}
@@ -63,6 +64,22 @@ public class CallbackExecutors {
         return backgroundThreadExecutor;
     }
 
+    private static Executor threadPoolExecutor;
+
+    /**
+     * Returns a callback executor that runs callbacks on a pool with one thread per available
+     * processor. Callbacks for a single listener are still delivered in order without overlapping,
+     * but different listeners and promises are run in parallel.
+     *
+     * @return the callback executor
+     */
+    public static Executor threadPoolExecutor() {
+        if (threadPoolExecutor == null) {
+            threadPoolExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        return threadPoolExecutor;
+    }
+
     private static Executor sameThreadExecutor;
 
     /**
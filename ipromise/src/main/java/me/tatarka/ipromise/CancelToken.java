@@ -13,20 +13,38 @@ import java.util.List;
  * @author Evan Tatarka
  */
 public final class CancelToken {
-    private boolean isCanceled;
-    private List<Listener> listeners = new ArrayList<Listener>();
+    /**
+     * A token for promises that can never be canceled. Canceling it does nothing and its listeners
+     * are dropped, since they would never be called.
+     */
+    static final CancelToken NEVER = new CancelToken(false);
+
+    private final boolean cancelable;
+    private volatile boolean isCanceled;
+    private List<Listener> listeners;
+
+    public CancelToken() {
+        this(true);
+    }
+
+    private CancelToken(boolean cancelable) {
+        this.cancelable = cancelable;
+    }
 
     /**
      * Cancels the token, notifying all promises of the cancellation.
      */
     public synchronized void cancel() {
-        if (isCanceled) return;
+        if (isCanceled || !cancelable) return;
 
         isCanceled = true;
+        List<Listener> listeners = this.listeners;
+        if (listeners == null) return;
+        // Cleared first so that a listener can remove itself while it is being notified.
+        this.listeners = null;
         for (Listener listener : listeners) {
             listener.canceled();
         }
-        listeners.clear();
     }
 
     /**
@@ -34,7 +52,7 @@ public final class CancelToken {
      *
      * @return true if canceled, false otherwise
      */
-    public synchronized boolean isCanceled() {
+    public boolean isCanceled() {
         return isCanceled;
     }
 
@@ -44,13 +62,26 @@ public final class CancelToken {
      * @param listener the listener
      */
     public synchronized void listen(Listener listener) {
+        if (!cancelable) return;
         if (isCanceled) {
             listener.canceled();
         } else {
+            // Most tokens are never listened to, so only allocate the list when needed.
+            if (listeners == null) listeners = new ArrayList<Listener>();
             listeners.add(listener);
         }
     }
 
+    /**
+     * Removes a listener so that the token no longer holds on to it. Does nothing if the listener
+     * was not added or the token has already been canceled.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(Listener listener) {
+        if (listeners != null) listeners.remove(listener);
+    }
+
     /**
      * Combines the given cancel tokens so that the first one will cancel the second and vice-versa.
      * The join uses weak references so that one token will not stop the other from being garbage
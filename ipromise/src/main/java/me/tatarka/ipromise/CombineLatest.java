@@ -0,0 +1,107 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import me.tatarka.ipromise.func.Map;
+
+/**
+ * Combines the latest message of several promises whenever one of them sends, see {@link
+ * Promise#combineLatest(Map, Promise[])}. Each source swaps its message into its slot and then
+ * tries to become the one thread sending combinations. Whoever does keeps sending until no slot
+ * has changed since it looked, so the last combination sent is always made of the latest
+ * messages. Updates that arrive while a combination is being sent may be folded into the next
+ * one. The object itself is the work-in-progress counter.
+ *
+ * <p> The new promise closes when every source has closed, or as soon as a source closes without
+ * ever sending a message. A combiner that throws cancels the new promise, and with it the
+ * sources, and the exception is rethrown to the sender of the message being combined. </p>
+ *
+ * @param <R> the type of the combination
+ */
+final class CombineLatest<R> extends AtomicInteger {
+    private static final long serialVersionUID = 1L;
+
+    private static final Object EMPTY = new Object();
+
+    private final Promise<R> newPromise;
+    private final Map<Object[], R> combiner;
+    private final AtomicReferenceArray<Object> latest;
+    // Sources that have sent at least one message, and sources that haven't closed yet.
+    private final AtomicInteger ready = new AtomicInteger();
+    private final AtomicInteger open;
+
+    private CombineLatest(Promise<R> newPromise, Map<Object[], R> combiner, int size) {
+        this.newPromise = newPromise;
+        this.combiner = combiner;
+        this.latest = new AtomicReferenceArray<Object>(size);
+        this.open = new AtomicInteger(size);
+        for (int i = 0; i < size; i++) latest.set(i, EMPTY);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <R> Promise<R> combineLatest(Map<Object[], R> combiner, Promise<?>[] promises) {
+        if (promises.length == 0) return Promise.empty();
+        Promise<R> newPromise = new Promise<R>();
+        CombineLatest<R> combineLatest = new CombineLatest<R>(newPromise, combiner, promises.length);
+        for (int i = 0; i < promises.length; i++) {
+            CancelToken.join(newPromise.cancelToken(), promises[i].cancelToken());
+            CombineLatest<R>.Source source = combineLatest.new Source(i);
+            ((Promise<Object>) promises[i]).register(source, source);
+        }
+        return newPromise;
+    }
+
+    private void receive(int index, Object message) {
+        int size = latest.length();
+        if (latest.getAndSet(index, message) == EMPTY) {
+            if (ready.incrementAndGet() < size) return;
+        } else if (ready.get() < size) {
+            return;
+        }
+
+        if (getAndIncrement() != 0) return;
+        int missed = 1;
+        for (; ; ) {
+            Object[] values = new Object[size];
+            for (int i = 0; i < size; i++) values[i] = latest.get(i);
+            R combination;
+            try {
+                combination = combiner.map(values);
+            } catch (RuntimeException e) {
+                // Later messages have to be able to start sending again, they're dropped by the
+                // canceled promise.
+                set(0);
+                newPromise.cancel();
+                throw e;
+            }
+            newPromise.send(combination);
+            missed = addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    private void close(int index) {
+        // A source's close always comes after its messages, so when the last one closes nobody is
+        // sending anymore.
+        if (latest.get(index) == EMPTY || open.decrementAndGet() == 0) newPromise.close();
+    }
+
+    private final class Source implements Listener<Object>, CloseListener {
+        private final int index;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void receive(Object message) {
+            CombineLatest.this.receive(index, message);
+        }
+
+        @Override
+        public void close() {
+            CombineLatest.this.close(index);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import me.tatarka.ipromise.func.Filter;
+import me.tatarka.ipromise.func.Map;
+
+/**
+ * A {@code Promise} whose messages are known up front and that is already closed. It has no log
+ * or state word to update, a listener's mailbox is simply handed the messages to replay followed
+ * by the close, which it delivers on the default callback executor. Since it can never be canceled it
+ * shares a {@link CancelToken} that is never canceled either, which means the common empty and
+ * single-value cases can be shared instances.
+ *
+ * <p> Mapping and filtering are applied right away and give another constant promise. Otherwise a
+ * listener attached to the result could miss messages that were already passed along. </p>
+ *
+ * @param <T> the message type
+ * @see Promise#of(Object)
+ * @see Promise#empty()
+ * @see Promise#ofAll(Object[])
+ */
+final class ConstantPromise<T> extends Promise<T> {
+    @SuppressWarnings("rawtypes")
+    static final ConstantPromise EMPTY = new ConstantPromise(new Object[0]);
+    @SuppressWarnings("rawtypes")
+    static final ConstantPromise NULL = new ConstantPromise(new Object[]{null});
+
+    // The end of an empty log, nothing is ever appended to it.
+    private static final Mailbox.Node END = new Mailbox.Node(Mailbox.Node.NONE);
+
+    private final Object[] messages;
+
+    ConstantPromise(Object[] messages) {
+        // The callback executor is looked up when it's needed, so that the shared instances follow
+        // CallbackExecutors.setDefault(). The field stays null, use callbackExecutor() instead.
+        super(CancelToken.NEVER, null, false);
+        this.messages = messages;
+    }
+
+    /**
+     * There is nothing to cancel, but promises derived from this one still need their own token.
+     */
+    @Override
+    CancelToken derivedCancelToken() {
+        return new CancelToken();
+    }
+
+    @Override
+    Executor callbackExecutor() {
+        return CallbackExecutors.getDefault();
+    }
+
+    @Override
+    void send(T message) {
+        throw new AlreadyClosedException(message);
+    }
+
+    @Override
+    void close() {
+    }
+
+    @Override
+    Object peek() {
+        return messages.length == 0 ? Mailbox.Node.NONE : messages[0];
+    }
+
+    @Override
+    void register(Mailbox<T> mailbox) {
+        mailbox.start(END, messages);
+        mailbox.closeLate();
+        mailbox.scheduleIfPending();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T2> Promise<T2> then(Map<T, T2> map) {
+        if (messages.length == 0) return EMPTY;
+        Object[] mapped = new Object[messages.length];
+        for (int i = 0; i < messages.length; i++) mapped[i] = map.map((T) messages[i]);
+        return new ConstantPromise<T2>(mapped);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Promise<T> then(Filter<T> filter) {
+        List<Object> filtered = new ArrayList<Object>(messages.length);
+        for (Object message : messages) {
+            if (filter.filter((T) message)) filtered.add(message);
+        }
+        if (filtered.size() == messages.length) return this;
+        if (filtered.isEmpty()) return EMPTY;
+        return new ConstantPromise<T>(filtered.toArray());
+    }
+
+    @Override
+    public Promise<T> onClose(CloseListener listener) {
+        if (listener != null) dispatchClose(callbackExecutor(), listener);
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return true;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return false;
+    }
+}
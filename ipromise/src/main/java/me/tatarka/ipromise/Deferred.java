@@ -3,7 +3,6 @@ package me.tatarka.ipromise;
 import java.util.Arrays;
 import java.util.concurrent.Executor;
 
-import jdk.nashorn.internal.codegen.CompilerConstants;
 import me.tatarka.ipromise.buffer.PromiseBuffer;
 import me.tatarka.ipromise.buffer.PromiseBuffers;
 
@@ -22,7 +21,7 @@ public class Deferred<T> {
      * Constructs a new {@code Deferred}.
      */
     public Deferred() {
-        this(PromiseBuffers.<T>last(), new CancelToken(), CallbackExecutors.getDefault());
+        this(Promise.BUFFER_LAST, new CancelToken(), CallbackExecutors.getDefault());
     }
 
     /**
@@ -33,7 +32,7 @@ public class Deferred<T> {
      * @param cancelToken the cancel token
      */
     public Deferred(CancelToken cancelToken) {
-        this(PromiseBuffers.<T>last(), cancelToken, CallbackExecutors.getDefault());
+        this(Promise.BUFFER_LAST, cancelToken, CallbackExecutors.getDefault());
     }
 
     /**
@@ -71,7 +70,7 @@ public class Deferred<T> {
      * @param bufferType the promise buffer
      */
     public Deferred(int bufferType) {
-        this(PromiseBuffers.<T>ofType(bufferType), new CancelToken(), CallbackExecutors.getDefault());
+        this(bufferType, new CancelToken(), CallbackExecutors.getDefault());
     }
 
     /**
@@ -86,7 +85,7 @@ public class Deferred<T> {
      * @param cancelToken the cancel token
      */
     public Deferred(int bufferType, CancelToken cancelToken) {
-        this(PromiseBuffers.<T>ofType(bufferType), cancelToken, CallbackExecutors.getDefault());
+        this(bufferType, cancelToken, CallbackExecutors.getDefault());
     }
 
     /**
@@ -108,6 +107,36 @@ public class Deferred<T> {
         promise = new ValuePromise<T>(buffer, cancelToken, callbackExecutor);
     }
 
+    /**
+     * Constructs a new {@code Deferred} with the given {@link me.tatarka.ipromise.buffer.PromiseBuffer}
+     * type, {@link me.tatarka.ipromise.CancelToken}, and callback executor. Valid values for the
+     * buffer are {@link Promise#BUFFER_NONE}, {@link Promise#BUFFER_LAST}, and {@link
+     * Promise#BUFFER_ALL}. The deferred's {@link me.tatarka.ipromise.Promise} will use the given
+     * buffer to buffer messages and redeliver them when a {@link me.tatarka.ipromise.Listener} is
+     * attached. When the token is canceled, this deferred's {@code Promise} is also canceled.
+     *
+     * <p> {@link Promise#BUFFER_NONE} and {@link Promise#BUFFER_LAST} don't need a separate buffer,
+     * the promise stores the last message in a single field. This makes them much cheaper than
+     * passing the equivalent {@code PromiseBuffer} when creating many short-lived promises. </p>
+     *
+     * @param bufferType       the promise buffer type
+     * @param cancelToken      the cancel token
+     * @param callbackExecutor the callback executor
+     * @see me.tatarka.ipromise.CallbackExecutors
+     */
+    public Deferred(int bufferType, CancelToken cancelToken, Executor callbackExecutor) {
+        switch (bufferType) {
+            case Promise.BUFFER_NONE:
+                promise = new Promise<T>(cancelToken, callbackExecutor, false);
+                break;
+            case Promise.BUFFER_LAST:
+                promise = new Promise<T>(cancelToken, callbackExecutor, true);
+                break;
+            default:
+                promise = new ValuePromise<T>(PromiseBuffers.<T>ofType(bufferType), cancelToken, callbackExecutor);
+        }
+    }
+
     /**
      * The deferred's {@link me.tatarka.ipromise.Promise}.
      *
@@ -125,7 +154,7 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> send(T message) {
+    public Deferred<T> send(T message) {
         promise.send(message);
         return this;
     }
@@ -138,7 +167,7 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> sendAll(Iterable<T> messages) {
+    public Deferred<T> sendAll(Iterable<T> messages) {
         for (T message : messages) promise.send(message);
         return this;
     }
@@ -151,10 +180,62 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> sendAll(T... messages) {
+    public Deferred<T> sendAll(T... messages) {
         return sendAll(Arrays.asList(messages));
     }
 
+    /**
+     * Returns if the {@link me.tatarka.ipromise.Promise} can take another message without getting
+     * ahead of its listeners. This is false until the promise has a listener, so a producer that
+     * respects the demand doesn't run ahead while nobody listens. Only listeners added with {@link
+     * Promise#listen(Listener, long)} limit the demand after that.
+     *
+     * @return true if there is demand for another message, false otherwise
+     */
+    public boolean hasDemand() {
+        return promise.hasDemand();
+    }
+
+    /**
+     * Sends a message to the {@link me.tatarka.ipromise.Promise} only if there is demand for it.
+     *
+     * @param message the message to send
+     * @return true if the message was sent, false if a listener hasn't requested any more
+     * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
+     *                                                            been closed
+     * @see #hasDemand()
+     */
+    public boolean trySend(T message) {
+        if (!promise.hasDemand() && promise.isRunning()) return false;
+        promise.send(message);
+        return true;
+    }
+
+    /**
+     * Blocks until there is demand for another message, or the {@link me.tatarka.ipromise.Promise}
+     * is canceled or closed.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @see #hasDemand()
+     */
+    public void awaitDemand() throws InterruptedException {
+        promise.awaitDemand();
+    }
+
+    /**
+     * Runs the callback once there is demand for another message, or the {@link
+     * me.tatarka.ipromise.Promise} is canceled or closed. If there is demand already it is run
+     * right away, otherwise it is run on the thread that requests more messages. This is the
+     * non-blocking version of {@link #awaitDemand()}.
+     *
+     * @param callback the callback
+     * @see #hasDemand()
+     */
+    public void onDemand(Runnable callback) {
+        if (callback == null) throw new NullPointerException();
+        promise.onDemand(callback);
+    }
+
     /**
      * Sends a message to the {@link me.tatarka.ipromise.Promise} and immediately closes it. This is
      * useful if you only have one message to send.
@@ -164,7 +245,7 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> resolve(T message) {
+    public Deferred<T> resolve(T message) {
         promise.send(message);
         close();
         return this;
@@ -179,7 +260,7 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> resolveAll(Iterable<T> messages) {
+    public Deferred<T> resolveAll(Iterable<T> messages) {
         for (T message : messages) promise.send(message);
         close();
         return this;
@@ -194,7 +275,7 @@ public class Deferred<T> {
      * @throws me.tatarka.ipromise.Promise.AlreadyClosedException thrown if the promise as already
      *                                                            been closed
      */
-    public synchronized Deferred<T> resolveAll(T... messages) {
+    public Deferred<T> resolveAll(T... messages) {
         return resolveAll(Arrays.asList(messages));
     }
 
@@ -202,7 +283,7 @@ public class Deferred<T> {
      * Closes the {@link me.tatarka.ipromise.Promise}. After this, no more messages can be sent.
      * This must be called when you don't have any more message to send.
      */
-    public synchronized void close() {
+    public void close() {
         promise.close();
     }
 
@@ -264,7 +345,7 @@ public class Deferred<T> {
          * @see Deferred#Deferred()
          */
         public <T> Deferred<T> build() {
-            return build(PromiseBuffers.<T>last());
+            return build(Promise.BUFFER_LAST);
         }
 
         /**
@@ -288,7 +369,7 @@ public class Deferred<T> {
          * @see Deferred#Deferred(me.tatarka.ipromise.CancelToken)
          */
         public <T> Deferred<T> build(CancelToken cancelToken) {
-            return build(PromiseBuffers.<T>last(), cancelToken);
+            return build(Promise.BUFFER_LAST, cancelToken);
         }
 
         /**
@@ -300,7 +381,7 @@ public class Deferred<T> {
          * @see Deferred#Deferred(int)
          */
         public <T> Deferred<T> build(int bufferType) {
-            return build(PromiseBuffers.<T>ofType(bufferType));
+            return build(bufferType, new CancelToken());
         }
 
         /**
@@ -313,7 +394,8 @@ public class Deferred<T> {
          * @see Deferred#Deferred(int, me.tatarka.ipromise.CancelToken)
          */
         public <T> Deferred<T> build(int bufferType, CancelToken cancelToken) {
-            return build(PromiseBuffers.<T>ofType(bufferType), cancelToken);
+            if (callbackExecutor == null) callbackExecutor = CallbackExecutors.getDefault();
+            return new Deferred<T>(bufferType, cancelToken, callbackExecutor);
         }
 
         /**
@@ -0,0 +1,98 @@
+package me.tatarka.ipromise;
+
+/**
+ * Sends each message and the close of the source again after a fixed delay for {@link
+ * Promise#delay(long, java.util.concurrent.TimeUnit)}. Every message is its own timeout. They all
+ * wait the same time and the timer runs timeouts that are due on the same tick in the order they
+ * were scheduled, so the order is kept.
+ *
+ * <p> The pending timeouts are kept in a queue, oldest first, so that canceling the promise can
+ * take them off the timer instead of leaving them, and the messages they hold, until their delay
+ * is up. Since they run in order, a timeout that runs is always the head of the queue. </p>
+ *
+ * @param <T> the message type
+ */
+final class Delay<T> implements Listener<T>, CloseListener, CancelToken.Listener {
+    private final Promise<T> newPromise;
+    private final long delayNanos;
+    // Guarded by this.
+    private Pending head;
+    private Pending tail;
+    private boolean canceled;
+
+    private Delay(Promise<T> newPromise, long delayNanos) {
+        this.newPromise = newPromise;
+        this.delayNanos = delayNanos;
+    }
+
+    static <T> Promise<T> delay(Promise<T> source, long delayNanos) {
+        Promise<T> newPromise = new Promise<T>(source.derivedCancelToken(), source.callbackExecutor());
+        Delay<T> delay = new Delay<T>(newPromise, delayNanos);
+        newPromise.cancelToken().listen(delay);
+        source.register(delay, delay);
+        return newPromise;
+    }
+
+    @Override
+    public void receive(T message) {
+        schedule(new Pending(message, false));
+    }
+
+    @Override
+    public void close() {
+        schedule(new Pending(null, true));
+    }
+
+    private synchronized void schedule(Pending pending) {
+        if (canceled) return;
+        if (tail == null) {
+            head = pending;
+        } else {
+            tail.next = pending;
+        }
+        tail = pending;
+        // Scheduled under the lock, so that a cancel can't miss it.
+        HashedWheelTimer.shared().schedule(pending, delayNanos);
+    }
+
+    private synchronized void remove(Pending pending) {
+        if (head != pending) return;
+        head = pending.next;
+        if (head == null) tail = null;
+        pending.next = null;
+    }
+
+    @Override
+    public synchronized void canceled() {
+        canceled = true;
+        for (Pending pending = head; pending != null; pending = pending.next) {
+            pending.cancel();
+        }
+        head = null;
+        tail = null;
+    }
+
+    private final class Pending extends HashedWheelTimer.Timeout {
+        private final T message;
+        private final boolean close;
+        // Guarded by the Delay.
+        private Pending next;
+
+        Pending(T message, boolean close) {
+            this.message = message;
+            this.close = close;
+        }
+
+        @Override
+        void run() {
+            remove(this);
+            if (close) {
+                // Nothing is pending anymore, so the token doesn't need to hold on to the delay.
+                newPromise.cancelToken().removeListener(Delay.this);
+                newPromise.close();
+            } else {
+                newPromise.send(message);
+            }
+        }
+    }
+}
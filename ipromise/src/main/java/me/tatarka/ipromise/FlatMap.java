@@ -0,0 +1,171 @@
+package me.tatarka.ipromise;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import me.tatarka.ipromise.func.Chain;
+
+/**
+ * Listens to an inner promise for each message of the source, with at most {@code
+ * maxConcurrency} of them running at once, see {@link Promise#flatMap(Chain, int)}. The limit is
+ * the demand on the source, each inner promise that finishes requests one more message. Messages
+ * past the limit wait in the source's mailbox, so a producer using backpressure holds off instead
+ * of starting more work. The object itself counts the source and the running inner promises, the
+ * new promise is closed when that reaches zero.
+ *
+ * @param <T> the message type of the source
+ * @param <R> the message type of the inner promises
+ */
+final class FlatMap<T, R> extends AtomicInteger implements Listener<T>, CloseListener, CancelToken.Listener {
+    private static final long serialVersionUID = 1L;
+
+    private static final Inner<?>[] NO_INNERS = new Inner<?>[0];
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<FlatMap, Inner[]> INNERS =
+            AtomicReferenceFieldUpdater.newUpdater(FlatMap.class, Inner[].class, "inners");
+
+    private final Promise<R> newPromise;
+    private final Chain<T, Promise<R>> chain;
+    private Subscription source;
+    // The inner promises still running, to cancel them along with the new promise.
+    private volatile Inner<?>[] inners = NO_INNERS;
+
+    private FlatMap(Promise<R> newPromise, Chain<T, Promise<R>> chain) {
+        super(1);
+        this.newPromise = newPromise;
+        this.chain = chain;
+    }
+
+    static <T, R> Promise<R> flatMap(Promise<T> source, Chain<T, Promise<R>> chain, int maxConcurrency) {
+        Promise<R> newPromise = new Promise<R>(source.derivedCancelToken(), source.callbackExecutor());
+        FlatMap<T, R> flatMap = new FlatMap<T, R>(newPromise, chain);
+        // Nothing is requested until the subscription is known, the listener may run right away.
+        flatMap.source = source.listen(flatMap, flatMap, 0);
+        newPromise.cancelToken().listen(flatMap);
+        flatMap.source.request(maxConcurrency);
+        return newPromise;
+    }
+
+    @Override
+    public void receive(T message) {
+        Promise<R> promise;
+        try {
+            promise = chain.chain(message);
+        } catch (RuntimeException e) {
+            // Nothing was started for the message, so it doesn't take up one of the slots.
+            source.request(1);
+            throw e;
+        }
+        incrementAndGet();
+        Inner<R> inner = new Inner<R>(this, promise);
+        add(inner);
+        promise.register(inner, inner);
+        if (promise.isCanceled()) inner.canceled();
+        if (newPromise.isCanceled()) promise.cancel();
+    }
+
+    @Override
+    public void close() {
+        if (decrementAndGet() == 0) newPromise.close();
+    }
+
+    // The new promise shares the source's token.
+    @Override
+    public void canceled() {
+        for (Inner<?> inner : inners) inner.promise.cancel();
+    }
+
+    private void add(Inner<?> inner) {
+        for (; ; ) {
+            Inner<?>[] current = inners;
+            Inner<?>[] update = Arrays.copyOf(current, current.length + 1);
+            update[current.length] = inner;
+            if (INNERS.compareAndSet(this, current, update)) return;
+        }
+    }
+
+    private void remove(Inner<?> inner) {
+        for (; ; ) {
+            Inner<?>[] current = inners;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == inner) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) return;
+            Inner<?>[] update = NO_INNERS;
+            if (current.length > 1) {
+                update = new Inner<?>[current.length - 1];
+                System.arraycopy(current, 0, update, 0, index);
+                System.arraycopy(current, index + 1, update, index, current.length - index - 1);
+            }
+            if (INNERS.compareAndSet(this, current, update)) return;
+        }
+    }
+
+    /**
+     * Forwards the messages of one inner promise. It is done when the inner promise closes or is
+     * canceled, whichever comes first. A cancel comes from another thread and may arrive while a
+     * message is being sent, the inner is then finished by the send once it returns, so the new
+     * promise is never closed under it.
+     */
+    private static final class Inner<R> extends AtomicInteger implements Listener<R>, WaitingListener {
+        private static final long serialVersionUID = 1L;
+
+        private static final int SENDING = 1;
+        private static final int DONE = 2;
+
+        final FlatMap<?, R> parent;
+        final Promise<R> promise;
+
+        Inner(FlatMap<?, R> parent, Promise<R> promise) {
+            this.parent = parent;
+            this.promise = promise;
+        }
+
+        // Called from the inner promise's mailbox, so never concurrently with itself.
+        @Override
+        public void receive(R message) {
+            if (!compareAndSet(0, SENDING)) return;
+            try {
+                parent.newPromise.send(message);
+            } finally {
+                if (addAndGet(-SENDING) == DONE) finish();
+            }
+        }
+
+        @Override
+        public void close() {
+            done();
+        }
+
+        @Override
+        public void canceled() {
+            done();
+        }
+
+        private void done() {
+            for (; ; ) {
+                int s = get();
+                if ((s & DONE) != 0) return;
+                if (compareAndSet(s, s | DONE)) {
+                    if (s == 0) finish();
+                    return;
+                }
+            }
+        }
+
+        private void finish() {
+            parent.remove(this);
+            if (parent.decrementAndGet() == 0) {
+                parent.newPromise.close();
+            } else {
+                parent.source.request(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import me.tatarka.ipromise.func.Filter;
+import me.tatarka.ipromise.func.Map;
+
+/**
+ * The {@code Promise} returned by {@link Promise#then(Map)} and {@link Promise#then(Filter)}. It
+ * is one stage of a chain of maps and filters. Calling {@code then} again on a stage that nothing
+ * has used yet doesn't subscribe it, the new stage takes it over instead. When the last stage is
+ * used it subscribes once to the source and runs the whole chain inline with the sender, only the
+ * listeners of a stage are run on the callback executor. This way a message costs one executor
+ * submission no matter how long the chain is.
+ *
+ * <p> An earlier stage that is used after it was taken over is fed from the same chain, so every
+ * map and filter is still called once per message. </p>
+ *
+ * @param <T> the message type
+ */
+final class FusedPromise<T> extends Promise<T> {
+    // The value of next once the stage has subscribed to the source itself.
+    private static final Object CONNECTED = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<FusedPromise, Object> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(FusedPromise.class, Object.class, "next");
+
+    private final Promise<?> source;
+    private final FusedPromise<?> prefix;
+    // The chain only sees objects, the types line up because each stage is made from the last.
+    private final Map<Object, Object> map;
+    private final Filter<Object> filter;
+    private final int depth;
+    // null while unused, CONNECTED once subscribed to the source, else the stage that took it over.
+    private volatile Object next;
+    private volatile boolean used;
+
+    FusedPromise(Promise<?> source, Map<?, ?> map, Filter<?> filter) {
+        this(source, null, map, filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private FusedPromise(Promise<?> source, FusedPromise<?> prefix, Map<?, ?> map, Filter<?> filter) {
+        super(source.derivedCancelToken(), source.callbackExecutor());
+        this.source = source;
+        this.prefix = prefix;
+        this.map = (Map<Object, Object>) map;
+        this.filter = (Filter<Object>) filter;
+        this.depth = prefix == null ? 1 : prefix.depth + 1;
+    }
+
+    @Override
+    public <T2> Promise<T2> then(Map<T, T2> map) {
+        FusedPromise<T2> fused = new FusedPromise<T2>(source, this, map, null);
+        if (NEXT.compareAndSet(this, null, fused)) return fused;
+        return super.then(map);
+    }
+
+    @Override
+    public Promise<T> then(Filter<T> filter) {
+        FusedPromise<T> fused = new FusedPromise<T>(source, this, null, filter);
+        if (NEXT.compareAndSet(this, null, fused)) return fused;
+        return super.then(filter);
+    }
+
+    @Override
+    void register(Mailbox<T> mailbox) {
+        // The mailbox has to exist before connecting, a buffered source replays right away.
+        super.register(mailbox);
+        use();
+    }
+
+    @Override
+    public Promise<T> onClose(CloseListener listener) {
+        super.onClose(listener);
+        use();
+        return this;
+    }
+
+    // The chain runs on the sender's thread, so a listener of any stage that is used holds back
+    // the source's producer.
+    @Override
+    boolean hasDemand() {
+        for (FusedPromise<?> stage = this; stage != null; stage = stage.prefix) {
+            if (stage.used && !stage.hasOwnDemand()) return false;
+        }
+        return true;
+    }
+
+    private boolean hasOwnDemand() {
+        return super.hasDemand();
+    }
+
+    @Override
+    void demandChanged() {
+        super.demandChanged();
+        source.demandChanged();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return super.isClosed() || source.isClosed();
+    }
+
+    /**
+     * Marks this stage as having listeners and makes sure the last stage of its chain is
+     * subscribed to the source.
+     */
+    private void use() {
+        used = true;
+        FusedPromise<?> last = this;
+        for (; ; ) {
+            Object next = last.next;
+            if (next == CONNECTED) return;
+            if (next == null) {
+                if (NEXT.compareAndSet(last, null, CONNECTED)) {
+                    last.connect();
+                    return;
+                }
+            } else {
+                last = (FusedPromise<?>) next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void connect() {
+        final FusedPromise<Object>[] stages = (FusedPromise<Object>[]) new FusedPromise<?>[depth];
+        for (FusedPromise<?> stage = this; stage != null; stage = stage.prefix) {
+            stages[stage.depth - 1] = (FusedPromise<Object>) stage;
+        }
+        ((Promise<Object>) source).register(new Mailbox<Object>(new Listener<Object>() {
+            @Override
+            public void receive(Object message) {
+                Object value = message;
+                for (FusedPromise<Object> stage : stages) {
+                    try {
+                        if (stage.map != null) {
+                            value = stage.map.map(value);
+                        } else if (!stage.filter.filter(value)) {
+                            return;
+                        }
+                    } catch (RuntimeException e) {
+                        rethrow(e);
+                        return;
+                    }
+                    if (stage.used) stage.send(value);
+                }
+            }
+        }, new CloseListener() {
+            @Override
+            public void close() {
+                for (FusedPromise<Object> stage : stages) stage.close();
+            }
+        }, CallbackExecutors.sameThreadExecutor(), this));
+    }
+
+    // The chain runs on the sender's thread, but a failing map or filter should surface on the
+    // callback executor like any other callback instead of in the sender.
+    private void rethrow(final RuntimeException e) {
+        callbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                throw e;
+            }
+        });
+    }
+}
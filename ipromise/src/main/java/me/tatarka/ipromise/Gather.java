@@ -0,0 +1,127 @@
+package me.tatarka.ipromise;
+
+/**
+ * Collects the first message of each of several promises until a deadline, for {@link
+ * Promise#gather(long, java.util.concurrent.TimeUnit, Promise[])}. Each source is listened to with
+ * a demand of one. The outcome is sent as soon as every source has answered, closed or been
+ * canceled, or when the single timeout fires, in which case the sources that are still out are
+ * marked {@link Gathered#TIMED_OUT} and canceled.
+ *
+ * <p> A gather only sees one message per source, so it is simply synchronized. </p>
+ *
+ * @param <T> the value type
+ */
+final class Gather<T> extends HashedWheelTimer.Timeout implements CancelToken.Listener {
+    // Not a status of Gathered, a source that hasn't answered yet.
+    private static final int WAITING = -1;
+
+    private final Promise<Gathered<T>> newPromise;
+    private final Promise<?>[] sources;
+    private final Subscription[] subscriptions;
+    // Guarded by this.
+    private final Object[] values;
+    private final int[] statuses;
+    private int pending;
+    private boolean started;
+    private boolean decided;
+
+    private Gather(Promise<Gathered<T>> newPromise, Promise<?>[] sources) {
+        this.newPromise = newPromise;
+        this.sources = sources;
+        this.subscriptions = new Subscription[sources.length];
+        this.values = new Object[sources.length];
+        this.statuses = new int[sources.length];
+        this.pending = sources.length;
+        for (int i = 0; i < statuses.length; i++) statuses[i] = WAITING;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Promise<Gathered<T>> gather(long timeoutNanos, Promise<?>[] promises) {
+        // There is only ever one message, keep it for listeners that come after the deadline.
+        Promise<Gathered<T>> newPromise = new Promise<Gathered<T>>(new CancelToken(), CallbackExecutors.getDefault(), true);
+        Gather<T> gather = new Gather<T>(newPromise, promises.clone());
+        newPromise.cancelToken().listen(gather);
+        synchronized (gather) {
+            for (int i = 0; i < promises.length; i++) {
+                Gather<T>.Source source = gather.new Source(i);
+                gather.subscriptions[i] = ((Promise<Object>) promises[i]).listen(source, source, 1);
+                // A canceled promise only wakes the listeners it knows about.
+                if (promises[i].isCanceled()) source.canceled();
+            }
+            gather.started = true;
+            gather.check();
+            if (!gather.decided) HashedWheelTimer.shared().schedule(gather, timeoutNanos);
+        }
+        return newPromise;
+    }
+
+    private synchronized void answer(int index, int status, Object value) {
+        if (decided || statuses[index] != WAITING) return;
+        statuses[index] = status;
+        values[index] = value;
+        pending--;
+        if (started) check();
+    }
+
+    private void check() {
+        if (decided || pending > 0) return;
+        cancel();
+        finish();
+    }
+
+    @Override
+    synchronized void run() {
+        if (decided) return;
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] == WAITING) statuses[i] = Gathered.TIMED_OUT;
+        }
+        finish();
+    }
+
+    private void finish() {
+        decided = true;
+        // Stragglers are canceled before anyone sees the outcome.
+        cancelStragglers();
+        newPromise.send(new Gathered<T>(values.clone(), statuses.clone()));
+        newPromise.close();
+    }
+
+    @Override
+    public synchronized void canceled() {
+        if (decided) return;
+        decided = true;
+        cancel();
+        cancelStragglers();
+    }
+
+    private void cancelStragglers() {
+        for (int i = 0; i < sources.length; i++) {
+            if (statuses[i] != WAITING && statuses[i] != Gathered.TIMED_OUT) continue;
+            if (subscriptions[i] != null) subscriptions[i].cancel();
+            sources[i].cancel();
+        }
+    }
+
+    private final class Source implements Listener<Object>, WaitingListener {
+        private final int index;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void receive(Object message) {
+            answer(index, Gathered.DONE, message);
+        }
+
+        @Override
+        public void close() {
+            answer(index, Gathered.CLOSED, null);
+        }
+
+        @Override
+        public void canceled() {
+            answer(index, Gathered.CANCELED, null);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of what each promise of a {@link Promise#gather(long,
+ * java.util.concurrent.TimeUnit, Promise[])} answered before the deadline. Each source has a
+ * status of either {@link #DONE}, {@link #TIMED_OUT}, {@link #CANCELED} or {@link #CLOSED}, and a
+ * value if it is done. Sources are indexed in the order they were passed in.
+ *
+ * @param <T> the value type
+ */
+public final class Gathered<T> {
+    /**
+     * The source sent a message before the deadline.
+     */
+    public static final int DONE = 0;
+
+    /**
+     * The source hadn't sent a message when the deadline hit, it was canceled.
+     */
+    public static final int TIMED_OUT = 1;
+
+    /**
+     * The source was canceled before it sent a message.
+     */
+    public static final int CANCELED = 2;
+
+    /**
+     * The source was closed without a message.
+     */
+    public static final int CLOSED = 3;
+
+    private final Object[] values;
+    private final int[] statuses;
+
+    Gathered(Object[] values, int[] statuses) {
+        this.values = values;
+        this.statuses = statuses;
+    }
+
+    /**
+     * Returns the number of sources.
+     *
+     * @return the number of sources
+     */
+    public int size() {
+        return statuses.length;
+    }
+
+    /**
+     * Returns the status of the source at the given index.
+     *
+     * @param index the index of the source
+     * @return the status, one of {@link #DONE}, {@link #TIMED_OUT}, {@link #CANCELED} or {@link
+     * #CLOSED}
+     */
+    public int status(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * Returns if the source at the given index sent a message before the deadline.
+     *
+     * @param index the index of the source
+     * @return true if it is done, false otherwise
+     */
+    public boolean isDone(int index) {
+        return statuses[index] == DONE;
+    }
+
+    /**
+     * Returns the value of the source at the given index if it is done, otherwise throws an
+     * {@link java.lang.IllegalStateException}.
+     *
+     * @param index the index of the source
+     * @return the value
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (statuses[index] != DONE) {
+            throw new IllegalStateException("Source " + index + " was not done");
+        }
+        return (T) values[index];
+    }
+
+    /**
+     * Returns the values of the sources that are done, in the order of the sources.
+     *
+     * @return the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> values() {
+        List<T> result = new ArrayList<T>(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] == DONE) result.add((T) values[i]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns how many sources have the given status.
+     *
+     * @param status the status
+     * @return the number of sources with the status
+     */
+    public int count(int status) {
+        int count = 0;
+        for (int s : statuses) {
+            if (s == status) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns if every source is done, so nothing is missing from the values.
+     *
+     * @return true if complete, false otherwise
+     */
+    public boolean isComplete() {
+        return count(DONE) == statuses.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || !o.getClass().equals(getClass())) return false;
+        Gathered<?> other = (Gathered<?>) o;
+        return Arrays.equals(statuses, other.statuses) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(statuses) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Gathered(");
+        for (int i = 0; i < statuses.length; i++) {
+            if (i > 0) builder.append(", ");
+            switch (statuses[i]) {
+                case DONE:
+                    builder.append(values[i]);
+                    break;
+                case TIMED_OUT:
+                    builder.append("<timed out>");
+                    break;
+                case CANCELED:
+                    builder.append("<canceled>");
+                    break;
+                default:
+                    builder.append("<closed>");
+                    break;
+            }
+        }
+        return builder.append(")").toString();
+    }
+}
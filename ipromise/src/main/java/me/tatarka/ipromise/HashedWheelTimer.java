@@ -0,0 +1,338 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The timer behind every time-based operator. Timeouts are kept in rings of buckets and a single
+ * worker thread advances through them, so adding, canceling and expiring a timeout are all O(1)
+ * however many are pending. The price is precision: a timeout fires on the first tick after its
+ * deadline.
+ *
+ * <p> The rings are hierarchical. The first has a bucket per tick, each following one has buckets
+ * as wide as the whole ring below it, so four rings of 1024 buckets cover decades of ticks. A
+ * timeout goes into the lowest ring that still holds its tick, and when the worker reaches the
+ * start of a bucket in a higher ring, that bucket's timeouts are moved down, at most once per ring.
+ * Every ring keeps a bitmap of its non-empty buckets, so finding the next tick with something to do
+ * is a scan of a few words, never of the timeouts themselves. </p>
+ *
+ * <p> New timeouts are pushed onto a lock-free stack that the worker takes over whenever it wakes,
+ * so scheduling never blocks. The worker doesn't wake on every tick, it parks until the next tick
+ * that has a timeout to run, and scheduling only unparks it if the new timeout is due before that.
+ * Canceled timeouts are pushed onto a second stack, and the first cancel since the worker last
+ * looked wakes it to unlink them, so that a timeout far in the future doesn't hold on to what it
+ * references until its deadline. The worker is only started when something is first scheduled,
+ * parks while nothing is pending and is a daemon, so it never keeps the VM alive. </p>
+ *
+ * <p> Timeouts run on the worker thread and must be short, they should hand anything else off to
+ * an executor. </p>
+ */
+final class HashedWheelTimer implements Runnable {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int LEVEL_BITS = 10;
+    private static final int WHEEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVELS = 4;
+    // The ticks covered by all the rings together, a timeout that is further away is moved down
+    // again from the top ring until it is due.
+    private static final long SPAN_MASK = (1L << (LEVEL_BITS * LEVELS)) - 1;
+    // The worker is running and takes over the incoming timeouts before it parks again.
+    private static final long AWAKE = Long.MIN_VALUE;
+
+    private static final AtomicReferenceFieldUpdater<HashedWheelTimer, Timeout> INCOMING =
+            AtomicReferenceFieldUpdater.newUpdater(HashedWheelTimer.class, Timeout.class, "incoming");
+    private static final AtomicReferenceFieldUpdater<HashedWheelTimer, Timeout> CANCELED_TIMEOUTS =
+            AtomicReferenceFieldUpdater.newUpdater(HashedWheelTimer.class, Timeout.class, "canceledTimeouts");
+
+    // The buckets of all rings, ring by ring. Only used by the worker thread.
+    private final Timeout[] heads = new Timeout[LEVELS * WHEEL_SIZE];
+    private final Timeout[] tails = new Timeout[LEVELS * WHEEL_SIZE];
+    private final long[] nonEmpty = new long[LEVELS * WHEEL_SIZE / 64];
+    private int size;
+    private final Thread worker;
+    private volatile Timeout incoming;
+    private volatile Timeout canceledTimeouts;
+    // When the parked worker wakes up by itself, or AWAKE.
+    private volatile long wakeAt = AWAKE;
+
+    private HashedWheelTimer() {
+        worker = new Thread(this, "ipromise-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns the timer shared by the whole library.
+     */
+    static HashedWheelTimer shared() {
+        return Holder.TIMER;
+    }
+
+    /**
+     * Runs the timeout once after the delay. A timeout can be scheduled again once it has run, but
+     * not while it is pending or after it has been canceled.
+     *
+     * @param timeout    the timeout
+     * @param delayNanos the delay in nanoseconds
+     */
+    void schedule(Timeout timeout, long delayNanos) {
+        if (!Timeout.STATE.compareAndSet(timeout, Timeout.IDLE, Timeout.PENDING)) {
+            throw new IllegalStateException("The timeout is already pending or canceled");
+        }
+        timeout.timer = this;
+        timeout.deadline = System.nanoTime() + Math.max(delayNanos, 0);
+        for (; ; ) {
+            Timeout current = incoming;
+            timeout.nextIncoming = current;
+            if (INCOMING.compareAndSet(this, current, timeout)) break;
+        }
+        // The worker sets wakeAt before it checks for incoming timeouts, so either it sees this one
+        // or this sees when it wakes.
+        if (timeout.deadline < wakeAt) LockSupport.unpark(worker);
+    }
+
+    private void canceled(Timeout timeout) {
+        Timeout current;
+        do {
+            current = canceledTimeouts;
+            timeout.nextCanceled = current;
+        } while (!CANCELED_TIMEOUTS.compareAndSet(this, current, timeout));
+        // Later cancels ride along with the first one that hasn't been unlinked yet.
+        if (current == null && wakeAt != AWAKE) LockSupport.unpark(worker);
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        // Every timeout in the rings is due on this tick or a later one, and the buckets that start
+        // on it have already been moved down.
+        long tick = 0;
+        for (; ; ) {
+            // With nothing in the rings the ticks in between don't have to be walked.
+            if (size == 0) tick = Math.max(tick, (System.nanoTime() - start) / TICK_NANOS);
+            transferIncoming(start, tick);
+            unlinkCanceled();
+            long next = nextTick(tick);
+            if (next < 0) {
+                wakeAt = Long.MAX_VALUE;
+                if (incoming == null && canceledTimeouts == null) LockSupport.park(this);
+                wakeAt = AWAKE;
+                continue;
+            }
+            long deadline = start + (next + 1) * TICK_NANOS;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                wakeAt = deadline;
+                if (incoming == null && canceledTimeouts == null) LockSupport.parkNanos(this, sleep);
+                wakeAt = AWAKE;
+                continue;
+            }
+            cascade(next);
+            expire((int) (next & (WHEEL_SIZE - 1)), next);
+            tick = next + 1;
+            // Timeouts that come in from now on may be due in these buckets, the ones already there
+            // have to be moved down first so that they stay ahead.
+            cascade(tick);
+        }
+    }
+
+    private void transferIncoming(long start, long tick) {
+        Timeout stack = INCOMING.getAndSet(this, null);
+        // The stack is newest first, reverse it so timeouts with the same deadline keep their order.
+        Timeout timeout = null;
+        while (stack != null) {
+            Timeout next = stack.nextIncoming;
+            stack.nextIncoming = timeout;
+            timeout = stack;
+            stack = next;
+        }
+        while (timeout != null) {
+            Timeout next = timeout.nextIncoming;
+            timeout.nextIncoming = null;
+            if (timeout.state == Timeout.PENDING) {
+                timeout.tick = Math.max((timeout.deadline - start) / TICK_NANOS, tick);
+                place(timeout, tick);
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlinkCanceled() {
+        Timeout timeout = CANCELED_TIMEOUTS.getAndSet(this, null);
+        while (timeout != null) {
+            Timeout next = timeout.nextCanceled;
+            timeout.nextCanceled = null;
+            // It may have been canceled before it got into a ring, or already been passed.
+            if (timeout.bucket >= 0) unlink(timeout.bucket, timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts the timeout in the lowest ring where its tick and the given one only differ within the
+     * ring, so that the bucket it is in starts after the given tick, or is the given tick's own
+     * bucket in the first ring.
+     */
+    private void place(Timeout timeout, long tick) {
+        long due = Math.min(timeout.tick, tick | SPAN_MASK);
+        long differing = due ^ tick;
+        int level = 0;
+        while (level < LEVELS - 1 && differing >>> (LEVEL_BITS * (level + 1)) != 0) level++;
+        int slot = (int) ((due >>> (LEVEL_BITS * level)) & (WHEEL_SIZE - 1));
+        append(level * WHEEL_SIZE + slot, timeout);
+    }
+
+    /**
+     * Returns the next tick from the given one that has a timeout to run or a bucket to move down,
+     * or -1 if the rings are empty.
+     */
+    private long nextTick(long tick) {
+        long next = -1;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = LEVEL_BITS * level;
+            int current = (int) ((tick >>> shift) & (WHEEL_SIZE - 1));
+            // The current bucket of a higher ring has already been moved down.
+            int slot = firstNonEmpty(level, level == 0 ? current : current + 1);
+            if (slot < 0) continue;
+            long at = ((tick >>> (shift + LEVEL_BITS)) << (shift + LEVEL_BITS)) | ((long) slot << shift);
+            if (next < 0 || at < next) next = at;
+        }
+        return next;
+    }
+
+    private int firstNonEmpty(int level, int from) {
+        if (from >= WHEEL_SIZE) return -1;
+        int index = level * WHEEL_SIZE + from;
+        int end = (level + 1) * WHEEL_SIZE;
+        int word = index >>> 6;
+        long bits = nonEmpty[word] & (-1L << (index & 63));
+        for (; ; ) {
+            if (bits != 0) return (word << 6) + Long.numberOfTrailingZeros(bits) - level * WHEEL_SIZE;
+            if (++word << 6 >= end) return -1;
+            bits = nonEmpty[word];
+        }
+    }
+
+    /**
+     * Moves the timeouts down from the buckets of the higher rings that start on the tick.
+     */
+    private void cascade(long tick) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = LEVEL_BITS * level;
+            if ((tick & ((1L << shift) - 1)) != 0) continue;
+            int bucket = level * WHEEL_SIZE + (int) ((tick >>> shift) & (WHEEL_SIZE - 1));
+            Timeout timeout = heads[bucket];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                unlink(bucket, timeout);
+                if (timeout.state == Timeout.PENDING) place(timeout, tick);
+                timeout = next;
+            }
+        }
+    }
+
+    private void expire(int bucket, long tick) {
+        Timeout timeout = heads[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            unlink(bucket, timeout);
+            if (timeout.state == Timeout.PENDING && timeout.tick > tick) {
+                // Further away than the rings reach, go around again.
+                requeue(timeout);
+            } else if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.IDLE)) {
+                try {
+                    timeout.run();
+                } catch (Throwable e) {
+                    worker.getUncaughtExceptionHandler().uncaughtException(worker, e);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void requeue(Timeout timeout) {
+        for (; ; ) {
+            Timeout current = incoming;
+            timeout.nextIncoming = current;
+            if (INCOMING.compareAndSet(this, current, timeout)) break;
+        }
+    }
+
+    private void append(int bucket, Timeout timeout) {
+        Timeout tail = tails[bucket];
+        timeout.prev = tail;
+        if (tail == null) {
+            heads[bucket] = timeout;
+            nonEmpty[bucket >>> 6] |= 1L << bucket;
+        } else {
+            tail.next = timeout;
+        }
+        tails[bucket] = timeout;
+        timeout.bucket = bucket;
+        size++;
+    }
+
+    private void unlink(int bucket, Timeout timeout) {
+        if (timeout.prev == null) {
+            heads[bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            tails[bucket] = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        if (heads[bucket] == null) nonEmpty[bucket >>> 6] &= ~(1L << bucket);
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Something to run when its delay is up. It is its own entry in the timer so that scheduling
+     * allocates nothing else, and an operator that keeps re-arming the same timeout allocates
+     * nothing at all.
+     */
+    abstract static class Timeout {
+        static final int IDLE = 0;
+        static final int PENDING = 1;
+        static final int CANCELED = 2;
+
+        static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        volatile int state;
+        HashedWheelTimer timer;
+        long deadline;
+        // Only used by the worker thread: the tick it is due on, and the bucket it is in or -1.
+        long tick;
+        int bucket = -1;
+        Timeout prev;
+        Timeout next;
+        Timeout nextIncoming;
+        Timeout nextCanceled;
+
+        /**
+         * Called on the timer thread once the delay is up.
+         */
+        abstract void run();
+
+        /**
+         * Stops the timeout from running if it is still pending.
+         *
+         * @return true if it was pending, false if it has already run or been canceled
+         */
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELED)) return false;
+            timer.canceled(this);
+            return true;
+        }
+    }
+
+    private static final class Holder {
+        static final HashedWheelTimer TIMER = new HashedWheelTimer();
+    }
+}
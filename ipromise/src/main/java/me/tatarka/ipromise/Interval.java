@@ -0,0 +1,45 @@
+package me.tatarka.ipromise;
+
+/**
+ * Sends the number of each tick, counting from zero, for {@link Promise#interval(long,
+ * java.util.concurrent.TimeUnit)}. Ticks are at fixed times from the start, so they don't drift
+ * when the timer is late. A tick that comes while a listener can't take another message is
+ * dropped, a slow listener sees fewer ticks rather than a growing backlog.
+ */
+final class Interval extends HashedWheelTimer.Timeout implements CancelToken.Listener {
+    private final Promise<Long> newPromise;
+    private final long periodNanos;
+    private final long start;
+    // Only touched by the timer thread.
+    private long tick;
+
+    private Interval(Promise<Long> newPromise, long periodNanos) {
+        this.newPromise = newPromise;
+        this.periodNanos = periodNanos;
+        this.start = System.nanoTime();
+    }
+
+    static Promise<Long> interval(long periodNanos) {
+        CancelToken cancelToken = new CancelToken();
+        Promise<Long> newPromise = new Promise<Long>(cancelToken, CallbackExecutors.getDefault());
+        Interval interval = new Interval(newPromise, periodNanos);
+        cancelToken.listen(interval);
+        HashedWheelTimer.shared().schedule(interval, periodNanos);
+        return newPromise;
+    }
+
+    @Override
+    void run() {
+        if (!newPromise.isRunning()) return;
+        long now = System.nanoTime();
+        // Skip the ticks the timer was too late for.
+        tick = Math.max(tick + 1, (now - start) / periodNanos);
+        if (newPromise.hasDemand()) newPromise.send(tick - 1);
+        HashedWheelTimer.shared().schedule(this, start + (tick + 1) * periodNanos - now);
+    }
+
+    @Override
+    public void canceled() {
+        cancel();
+    }
+}
@@ -0,0 +1,295 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The delivery queue for a single {@link Listener}. A {@link Promise} appends each message once to
+ * a shared log of {@link Node}s and every mailbox keeps its own cursor into that log. A mailbox is
+ * only submitted to the callback executor when it goes from idle to having work, and one run then
+ * delivers everything that has been queued so far. This keeps messages in order for the listener
+ * while turning a burst of messages into a single executor submission. Since a mailbox is never
+ * scheduled twice at once, its listener never runs concurrently with itself, even when the executor
+ * is a thread pool.
+ *
+ * <p> The mailbox itself is the work-in-progress counter so that there is no extra allocation per
+ * listener. </p>
+ *
+ * <p> A mailbox created with a demand only delivers as many messages as have been requested, the
+ * rest wait in the log. It also keeps a credit of how many more messages the producer may append
+ * before the listener has to catch up, see {@link Promise#hasDemand()}. </p>
+ *
+ * @param <T> the message type
+ */
+final class Mailbox<T> extends AtomicInteger implements Runnable, Subscription {
+    private static final long serialVersionUID = 1L;
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<Mailbox> REQUESTED =
+            AtomicLongFieldUpdater.newUpdater(Mailbox.class, "requested");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<Mailbox> CREDIT =
+            AtomicLongFieldUpdater.newUpdater(Mailbox.class, "credit");
+
+    private Listener<T> listener;
+    private final CloseListener closeListener;
+    private final Executor executor;
+    // The promise to notify when more messages are requested, null if the mailbox is unbounded.
+    private final Promise<?> owner;
+    // The promise this mailbox feeds inline, its demand is the demand of the mailbox.
+    private final Promise<?> relay;
+    private Object[] replay;
+    private int replayIndex;
+    private Node cursor;
+    private volatile Runnable onDrained;
+    // Messages the listener may still receive and messages the producer may still append.
+    private volatile long requested;
+    private volatile long credit;
+    private volatile boolean canceled;
+
+    /**
+     * @param listener      the listener to deliver to
+     * @param closeListener called after the last message once the promise is closed, may be null
+     * @param executor      the executor to drain the mailbox on
+     */
+    Mailbox(Listener<T> listener, CloseListener closeListener, Executor executor) {
+        this(listener, closeListener, executor, null, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a mailbox that has the demand of the given promise, which it feeds on the same
+     * thread.
+     */
+    Mailbox(Listener<T> listener, CloseListener closeListener, Executor executor, Promise<?> relay) {
+        this(listener, closeListener, executor, null, relay, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a mailbox that only delivers requested messages.
+     *
+     * @param owner  the promise to notify of new demand
+     * @param demand the number of messages initially requested
+     */
+    Mailbox(Listener<T> listener, CloseListener closeListener, Executor executor, Promise<?> owner, long demand) {
+        this(listener, closeListener, executor, owner, null, demand);
+    }
+
+    private Mailbox(Listener<T> listener, CloseListener closeListener, Executor executor, Promise<?> owner, Promise<?> relay, long demand) {
+        this.listener = listener;
+        this.closeListener = closeListener;
+        this.executor = executor;
+        this.owner = owner;
+        this.relay = relay;
+        this.requested = demand;
+        this.credit = demand;
+    }
+
+    /**
+     * Sets where the listener starts. Called before the mailbox is published to senders.
+     *
+     * @param cursor the last node in the log the listener should not see
+     * @param replay messages to deliver before anything in the log, may be null
+     */
+    void start(Node cursor, Object[] replay) {
+        this.cursor = cursor;
+        this.replay = replay;
+    }
+
+    Listener<T> listener() {
+        return listener;
+    }
+
+    /**
+     * Replaces the listener, usually with one that wraps it. Called before the mailbox is published
+     * to senders.
+     */
+    void setListener(Listener<T> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Called for every message appended to the log while the mailbox is registered.
+     */
+    void offer() {
+        if (owner != null) CREDIT.decrementAndGet(this);
+        schedule();
+    }
+
+    /**
+     * Returns if the producer may append another message without outrunning the listener.
+     */
+    boolean hasDemand() {
+        if (owner != null) return credit > 0;
+        if (relay != null) return relay.hasDemand();
+        return true;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive, was " + n);
+        if (owner == null) return;
+        add(REQUESTED, n);
+        add(CREDIT, n);
+        schedule();
+        owner.demandChanged();
+    }
+
+    @Override
+    public void cancel() {
+        if (owner == null || canceled) return;
+        canceled = true;
+        owner.removeMailbox(this);
+        // Skips what is left, the promise may be waiting for this mailbox to drain to close.
+        schedule();
+        owner.demandChanged();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void add(AtomicLongFieldUpdater<Mailbox> field, long n) {
+        for (; ; ) {
+            long current = field.get(this);
+            if (current == Long.MAX_VALUE) return;
+            long update = current + n;
+            // The credit may be negative, so only a wrap-around is an overflow.
+            if (update < current) update = Long.MAX_VALUE;
+            if (field.compareAndSet(this, current, update)) return;
+        }
+    }
+
+    // Takes one message from the requested count.
+    private boolean claim() {
+        if (owner == null) return true;
+        for (; ; ) {
+            long current = requested;
+            if (current == 0) return false;
+            if (current == Long.MAX_VALUE) return true;
+            if (REQUESTED.compareAndSet(this, current, current - 1)) return true;
+        }
+    }
+
+    /**
+     * Schedules a drain if one is not already scheduled or running.
+     */
+    void schedule() {
+        if (getAndIncrement() == 0) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Schedules a drain only if there is something to deliver. Used right after the mailbox is
+     * registered, when a message may have been appended before any sender could see it.
+     */
+    void scheduleIfPending() {
+        if (replay != null || cursor.next != null || onDrained != null) {
+            schedule();
+        }
+    }
+
+    /**
+     * Called once the promise has terminated, no more messages will be appended after this. The
+     * close listener and then the callback are run after the listener has received the last
+     * message.
+     */
+    void close(Runnable onDrained) {
+        this.onDrained = onDrained;
+        schedule();
+    }
+
+    /**
+     * Like {@link #close(Runnable)} but for a mailbox that was created after the promise
+     * terminated, it is scheduled by {@link #scheduleIfPending()}.
+     */
+    void closeLate() {
+        this.onDrained = NOTHING;
+    }
+
+    boolean hasCloseListener() {
+        return closeListener != null;
+    }
+
+    /**
+     * Called when the promise is canceled. Nothing is delivered for a cancel, but a thread blocked
+     * on the promise has to be woken up.
+     */
+    void ownerCanceled() {
+        if (closeListener instanceof WaitingListener) ((WaitingListener) closeListener).canceled();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        boolean done = false;
+        try {
+            int missed = 1;
+            for (; ; ) {
+                if (canceled) {
+                    replay = null;
+                    Node next;
+                    while ((next = cursor.next) != null) cursor = next;
+                } else if (replay != null) {
+                    while (replayIndex < replay.length && claim()) {
+                        deliver(replay[replayIndex++]);
+                    }
+                    if (replayIndex == replay.length) replay = null;
+                }
+
+                if (replay == null && !canceled) {
+                    Node next;
+                    while ((next = cursor.next) != null && claim()) {
+                        cursor = next;
+                        deliver(next.message);
+                    }
+                }
+
+                // Close only after the last message, which may still wait for demand.
+                Runnable onDrained = this.onDrained;
+                if (onDrained != null && replay == null && cursor.next == null) {
+                    this.onDrained = null;
+                    try {
+                        if (closeListener != null && !canceled) closeListener.close();
+                    } finally {
+                        onDrained.run();
+                    }
+                }
+
+                missed = addAndGet(-missed);
+                if (missed == 0) break;
+            }
+            done = true;
+        } finally {
+            // A listener threw, hand the rest of the mailbox to a fresh run so that it is not
+            // wedged and let the exception propagate to the executor as before.
+            if (!done) executor.execute(this);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(Object message) {
+        listener.receive((T) message);
+    }
+
+    /**
+     * A message in the log shared by all mailboxes of a {@link Promise}.
+     */
+    static final class Node {
+        /**
+         * The message of the first node in the log, which is never delivered.
+         */
+        static final Object NONE = new Object();
+
+        final Object message;
+        volatile Node next;
+
+        Node(Object message) {
+            this.message = message;
+        }
+    }
+}
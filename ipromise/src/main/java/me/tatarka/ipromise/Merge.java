@@ -0,0 +1,109 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Funnels the messages of many promises into one, see {@link Promise#merge(java.util.Collection)}.
+ * The sources don't send to the new promise themselves. Each one appends its message to a
+ * lock-free multi-producer queue and then tries to become the single thread that drains it, so
+ * there is only ever one sender on the new promise no matter how many sources there are. The
+ * object itself is the work-in-progress counter and serves as listener, close listener and cancel
+ * listener for every source, the only allocation per source is its mailbox.
+ *
+ * @param <T> the message type
+ */
+final class Merge<T> extends AtomicInteger implements Listener<T>, CloseListener, CancelToken.Listener {
+    private static final long serialVersionUID = 1L;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Merge, Mailbox.Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(Merge.class, Mailbox.Node.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Merge> OPEN =
+            AtomicIntegerFieldUpdater.newUpdater(Merge.class, "open");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Merge> CANCELED =
+            AtomicIntegerFieldUpdater.newUpdater(Merge.class, "canceled");
+
+    private final Promise<T> newPromise;
+    private final int size;
+    // Producers swap in at the tail, only the draining thread moves the head.
+    private volatile Mailbox.Node tail;
+    private Mailbox.Node head;
+    // Sources that haven't closed yet and sources whose cancel token has been canceled.
+    private volatile int open;
+    private volatile int canceled;
+
+    private Merge(Promise<T> newPromise, int size) {
+        this.newPromise = newPromise;
+        this.size = size;
+        this.open = size;
+        this.head = this.tail = new Mailbox.Node(Mailbox.Node.NONE);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Promise<T> merge(final Promise<? extends T>[] promises) {
+        if (promises.length == 0) return Promise.empty();
+        Promise<T> newPromise = new Promise<T>();
+        Merge<T> merge = new Merge<T>(newPromise, promises.length);
+        newPromise.cancelToken().listen(new CancelToken.Listener() {
+            @Override
+            public void canceled() {
+                for (Promise<?> promise : promises) promise.cancel();
+            }
+        });
+        for (Promise<? extends T> promise : promises) {
+            // We can't just join cancel tokens here because the new promise should only cancel if
+            // all of the given promises are canceled.
+            promise.cancelToken().listen(merge);
+            ((Promise<T>) promise).register(merge, merge);
+        }
+        return newPromise;
+    }
+
+    @Override
+    public void receive(T message) {
+        Mailbox.Node node = new Mailbox.Node(message);
+        Mailbox.Node prev = TAIL.getAndSet(this, node);
+        prev.next = node;
+        drain();
+    }
+
+    @Override
+    public void close() {
+        // A source closes after its last message is in the queue, the drain closes the new promise
+        // once the queue is empty.
+        OPEN.decrementAndGet(this);
+        drain();
+    }
+
+    @Override
+    public void canceled() {
+        if (CANCELED.incrementAndGet(this) >= size) newPromise.cancel();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        if (getAndIncrement() != 0) return;
+        int missed = 1;
+        for (; ; ) {
+            for (; ; ) {
+                boolean done = open == 0;
+                Mailbox.Node next = head.next;
+                if (next == null) {
+                    if (done) {
+                        newPromise.close();
+                        return;
+                    }
+                    break;
+                }
+                head = next;
+                newPromise.send((T) next.message);
+            }
+            missed = addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+}
@@ -5,10 +5,13 @@ import me.tatarka.ipromise.func.Filter;
 import me.tatarka.ipromise.func.Map;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * <p> A promise is a way to return a result the will be fulfilled sometime in the future. This
@@ -21,6 +24,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p> You cannot construct a {@code Promise} directly, instead you must get one from a {@link
  * Deferred}. That is, unless the result is already available. </p>
  *
+ * <p> A {@code Promise} is safe to use from multiple threads without any locking. Sending a
+ * message, attaching a listener and checking the status all work on a single state word and an
+ * immutable array of listeners that are swapped with compare-and-set. </p>
+ *
  * @author Evan Tatarka
  * @see Deferred
  */
@@ -29,24 +36,97 @@ public class Promise<T> implements Iterable<T> {
     public static final int BUFFER_LAST = 1;
     public static final int BUFFER_ALL = 2;
 
-    private CancelToken cancelToken;
-    private boolean isClosed;
+    /**
+     * The number of messages {@link #iterator()} holds for the consumer.
+     */
+    public static final int DEFAULT_ITERATOR_CAPACITY = 128;
+
+    // The state word packs the flags in the low bits and the number of senders currently
+    // delivering a message in the rest. The promise only terminates (notifying close listeners)
+    // once it is closed and no senders are left, so a close can never overtake a message.
+    private static final int CLOSED = 1;
+    private static final int TERMINATED = 2;
+    // The last message is kept at the tail of the mailbox log and replayed to new listeners. This
+    // gives the same behavior as PromiseBuffers.last() without a buffer or a lock.
+    private static final int RETAIN_LAST = 4;
+    // A cancel listener has been added to clear the mailboxes. This is done lazily on the first
+    // listen so that a promise nobody listens to doesn't allocate one.
+    private static final int WATCHING_CANCEL = 8;
+    private static final int SENDER = 16;
+    private static final int FLAGS = RETAIN_LAST | WATCHING_CANCEL;
+
+    private static final Mailbox<?>[] NO_MAILBOXES = new Mailbox<?>[0];
+    private static final Mailbox<?>[] TERMINATED_MAILBOXES = new Mailbox<?>[0];
+    private static final CloseListener[] NO_CLOSE_LISTENERS = new CloseListener[0];
+    private static final CloseListener[] TERMINATED_CLOSE_LISTENERS = new CloseListener[0];
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Promise> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Promise.class, "state");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Mailbox[]> MAILBOXES =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Mailbox[].class, "mailboxes");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Mailbox.Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Mailbox.Node.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, CloseListener[]> CLOSE_LISTENERS =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, CloseListener[].class, "closeListeners");
+
+    private static final Map<Object[], Pair<Object, Object>> TO_PAIR = new Map<Object[], Pair<Object, Object>>() {
+        @Override
+        public Pair<Object, Object> map(Object[] result) {
+            return Pair.of(result[0], result[1]);
+        }
+    };
+    private static final Map<Object[], List<Object>> TO_LIST = new Map<Object[], List<Object>>() {
+        @Override
+        public List<Object> map(Object[] result) {
+            return Arrays.asList(result);
+        }
+    };
+
+    private final CancelToken cancelToken;
+    private volatile int state;
+    private volatile Mailbox<?>[] mailboxes = NO_MAILBOXES;
+    private volatile Mailbox.Node tail;
+    private volatile CloseListener[] closeListeners = NO_CLOSE_LISTENERS;
+    // Producers blocked in awaitDemand() plus callbacks waiting in onDemand(), guarded by this.
+    private volatile int waiters;
+    private List<Runnable> demandCallbacks;
 
     protected final Executor callbackExecutor;
-    protected final List<Listener<T>> listeners = new ArrayList<Listener<T>>();
-    protected final List<CloseListener> closeListeners = new ArrayList<CloseListener>();
 
     protected Promise() {
         this(new CancelToken(), CallbackExecutors.getDefault());
     }
 
     protected Promise(CancelToken cancelToken, Executor callbackExecutor) {
+        this(cancelToken, callbackExecutor, false);
+    }
+
+    /**
+     * Constructs a {@code Promise} that optionally keeps its last message to redeliver it when a
+     * {@link Listener} is attached. This is the allocation-light equivalent of a {@link
+     * ValuePromise} with {@link me.tatarka.ipromise.buffer.PromiseBuffers#last()}, which is what a
+     * {@code Deferred} uses by default.
+     */
+    Promise(CancelToken cancelToken, Executor callbackExecutor, boolean retainLast) {
         this.cancelToken = cancelToken;
         this.callbackExecutor = callbackExecutor;
+        if (retainLast) state = RETAIN_LAST;
     }
 
+    /**
+     * Constructs a {@code Promise} that shares the cancel token and callback executor of the given
+     * promise and is closed with it.
+     *
+     * @deprecated subclasses should use {@link #Promise(CancelToken, Executor)} and close the
+     * promise themselves.
+     */
+    @Deprecated
     protected Promise(final Promise parentPromise) {
-        this(parentPromise.cancelToken, parentPromise.callbackExecutor);
+        this(parentPromise.cancelToken(), parentPromise.callbackExecutor());
         parentPromise.onClose(new CloseListener() {
             @Override
             public void close() {
@@ -55,6 +135,82 @@ public class Promise<T> implements Iterable<T> {
         });
     }
 
+    /**
+     * Returns a {@code Promise} that is already closed with the given message. Unlike resolving a
+     * {@link Deferred} this doesn't allocate a cancel token or any listener bookkeeping, so it is
+     * cheap to use for results that are known up front. Listeners are still called on the default
+     * callback executor.
+     *
+     * @param value the message
+     * @param <T>   the message type
+     * @return the {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<T> of(T value) {
+        if (value == null) return ConstantPromise.NULL;
+        return new ConstantPromise<T>(new Object[]{value});
+    }
+
+    /**
+     * Returns a {@code Promise} that is already closed without any messages. This is a shared
+     * instance.
+     *
+     * @param <T> the message type
+     * @return the {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<T> empty() {
+        return ConstantPromise.EMPTY;
+    }
+
+    /**
+     * Returns a {@code Promise} that is already closed with the given messages, which are sent to
+     * each listener in order.
+     *
+     * @param values the messages
+     * @param <T>    the message type
+     * @return the {@code Promise}
+     * @see Promise#of(Object)
+     */
+    public static <T> Promise<T> ofAll(T... values) {
+        if (values == null) throw new NullPointerException();
+        if (values.length == 0) return empty();
+        return new ConstantPromise<T>(values.clone());
+    }
+
+    /**
+     * Returns a {@code Promise} that is already closed with the given messages, which are sent to
+     * each listener in order.
+     *
+     * @param values the messages
+     * @param <T>    the message type
+     * @return the {@code Promise}
+     * @see Promise#of(Object)
+     */
+    public static <T> Promise<T> ofAll(Iterable<? extends T> values) {
+        if (values == null) throw new NullPointerException();
+        List<T> list = new ArrayList<T>();
+        for (T value : values) list.add(value);
+        if (list.isEmpty()) return empty();
+        return new ConstantPromise<T>(list.toArray());
+    }
+
+    /**
+     * Returns a {@code Promise} that receives a message every {@code period} until it is canceled.
+     * The message is the number of the tick, counting from zero. Ticks are at fixed times from now
+     * so they don't drift, and a tick is dropped when there is no listener or a listener can't
+     * take another message (see {@link #listen(Listener, long)}), so a slow listener misses ticks
+     * instead of building up a backlog. The ticks come from a timer thread shared by all promises.
+     *
+     * @param period the time between ticks
+     * @param unit   the unit of the period
+     * @return the {@code Promise}
+     */
+    public static Promise<Long> interval(long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("period must be positive, was " + period);
+        return Interval.interval(unit.toNanos(period));
+    }
+
     /**
      * Returns the promise's {@link me.tatarka.ipromise.CancelToken}.
      *
@@ -64,6 +220,13 @@ public class Promise<T> implements Iterable<T> {
         return cancelToken;
     }
 
+    /**
+     * The cancel token for promises derived from this one, so that canceling one cancels both.
+     */
+    CancelToken derivedCancelToken() {
+        return cancelToken;
+    }
+
     /**
      * Delivers a message to all listeners of the {@code Promise}. This is used internally by {@link
      * Deferred}.
@@ -71,26 +234,252 @@ public class Promise<T> implements Iterable<T> {
      * @param message the message to send
      * @throws AlreadyClosedException thrown if the {@code Promise} has already been closed
      */
-    synchronized void send(T message) {
+    void send(T message) {
         if (cancelToken.isCanceled()) return;
-        if (isClosed) throw new AlreadyClosedException(message);
 
-        onSend(message);
+        for (; ; ) {
+            int s = state;
+            if ((s & CLOSED) != 0) throw new AlreadyClosedException(message);
+            if (STATE.compareAndSet(this, s, s + SENDER)) break;
+        }
 
-        for (Listener<T> listener : listeners) {
-            dispatch(callbackExecutor, listener, message);
+        try {
+            onSend(message);
+            deliver(message);
+        } finally {
+            if ((STATE.addAndGet(this, -SENDER) & ~FLAGS) == CLOSED) terminate();
         }
     }
 
-    static <T> void dispatch(Executor callbackExecutor, final Listener<T> listener, final T message) {
-        callbackExecutor.execute(new Runnable() {
+    /**
+     * Called on the sending thread before a message is delivered.
+     *
+     * @deprecated listen to the promise instead.
+     */
+    @Deprecated
+    protected void onSend(T message) {
+    }
+
+    /**
+     * Delivers a message to the current listeners. Subclasses that buffer messages override this
+     * together with {@link #register(Mailbox)} so that a new listener sees every message exactly
+     * once.
+     */
+    void deliver(T message) {
+        dispatch(append(message));
+    }
+
+    /**
+     * Adds the listener so it receives all further messages. If a close listener is given it is
+     * called from the same mailbox after the last message has been delivered, so it can never
+     * overtake a message even on a multi-threaded executor. The combinators rely on this.
+     */
+    final void register(Listener<T> listener, CloseListener closeListener) {
+        register(new Mailbox<T>(listener, closeListener, callbackExecutor()));
+    }
+
+    /**
+     * Adds the mailbox so that its listener receives all further messages. This lets the caller
+     * pick the executor it is drained on and its demand.
+     */
+    void register(Mailbox<T> mailbox) {
+        Mailbox.Node last = tail();
+        Object[] replay = null;
+        if ((state & RETAIN_LAST) != 0 && last.message != Mailbox.Node.NONE) {
+            // The tail of the log is the last message, starting the cursor there means it is
+            // either replayed here or delivered from the log, never both.
+            replay = new Object[]{last.message};
+        }
+        subscribe(mailbox, last, replay).scheduleIfPending();
+    }
+
+    /**
+     * Adds the mailbox so that it first delivers the replayed messages and then everything
+     * appended to the log after now. The caller must call {@link Mailbox#scheduleIfPending()}
+     * once it is safe to run the listener.
+     */
+    final Mailbox<T> subscribe(Mailbox<T> mailbox, Object[] replay) {
+        return subscribe(mailbox, tail(), replay);
+    }
+
+    private Mailbox<T> subscribe(Mailbox<T> mailbox, Mailbox.Node cursor, Object[] replay) {
+        watchCancel();
+        mailbox.start(cursor, replay);
+        if (addMailbox(mailbox)) {
+            demandChanged();
+        } else {
+            mailbox.closeLate();
+        }
+        return mailbox;
+    }
+
+    /**
+     * Returns if there is a listener and every listener that uses backpressure can take another
+     * message. Only the listeners added with {@link #listen(Listener, long)} limit the demand.
+     */
+    boolean hasDemand() {
+        Mailbox<?>[] current = mailboxes;
+        if (current.length == 0) return false;
+        for (Mailbox<?> mailbox : current) {
+            if (!mailbox.hasDemand()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until {@link #hasDemand()} or the promise stops running. Waiting is rare, so this
+     * uses the promise's monitor instead of a separate lock.
+     */
+    void awaitDemand() throws InterruptedException {
+        if (hasDemand()) return;
+        synchronized (this) {
+            waiters++;
+            try {
+                while (!hasDemand() && isRunning()) wait();
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Runs the callback once {@link #hasDemand()} or the promise stops running. It runs right away
+     * if that is already the case, otherwise on the thread that requests more messages.
+     */
+    void onDemand(Runnable callback) {
+        if (!hasDemand() && isRunning()) {
+            synchronized (this) {
+                if (!hasDemand() && isRunning()) {
+                    if (demandCallbacks == null) demandCallbacks = new ArrayList<Runnable>();
+                    demandCallbacks.add(callback);
+                    waiters++;
+                    return;
+                }
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Wakes up producers blocked in {@link #awaitDemand()} and runs the callbacks waiting in
+     * {@link #onDemand(Runnable)}.
+     */
+    void demandChanged() {
+        if (waiters == 0) return;
+        List<Runnable> callbacks = null;
+        synchronized (this) {
+            notifyAll();
+            if (demandCallbacks != null && (hasDemand() || !isRunning())) {
+                callbacks = demandCallbacks;
+                demandCallbacks = null;
+                waiters -= callbacks.size();
+            }
+        }
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) callback.run();
+        }
+    }
+
+    private void watchCancel() {
+        for (; ; ) {
+            int s = state;
+            if ((s & (WATCHING_CANCEL | TERMINATED)) != 0) return;
+            if (STATE.compareAndSet(this, s, s | WATCHING_CANCEL)) break;
+        }
+        cancelToken.listen(new CancelToken.Listener() {
             @Override
-            public void run() {
-                listener.receive(message);
+            public void canceled() {
+                for (Mailbox<?> mailbox : mailboxes) mailbox.ownerCanceled();
+                clearListeners();
+                demandChanged();
             }
         });
     }
 
+    /**
+     * Appends the message to the log shared by all mailboxes and returns the mailboxes that should
+     * be scheduled to receive it. Nothing is appended if there are no listeners.
+     */
+    final Mailbox<?>[] append(T message) {
+        if (mailboxes.length == 0 && (state & RETAIN_LAST) == 0) return NO_MAILBOXES;
+        Mailbox.Node node = new Mailbox.Node(message);
+        Mailbox.Node prev = TAIL.getAndSet(this, node);
+        if (prev != null) prev.next = node;
+        // The mailboxes are read only after the node is linked. A listener that starts before the
+        // node is either in this snapshot or registers later and finds the node in
+        // scheduleIfPending(), otherwise it would wait in the log until the next send.
+        return mailboxes;
+    }
+
+    static void dispatch(Mailbox<?>[] mailboxes) {
+        for (Mailbox<?> mailbox : mailboxes) {
+            mailbox.offer();
+        }
+    }
+
+    /**
+     * Returns the message a new listener would be sent first if it is already known, without
+     * adding a listener, or {@link Mailbox.Node#NONE}.
+     */
+    Object peek() {
+        Mailbox.Node last = tail;
+        if ((state & RETAIN_LAST) != 0 && last != null) return last.message;
+        return Mailbox.Node.NONE;
+    }
+
+    private Mailbox.Node tail() {
+        Mailbox.Node current = tail;
+        if (current != null) return current;
+        Mailbox.Node stub = new Mailbox.Node(Mailbox.Node.NONE);
+        if (TAIL.compareAndSet(this, null, stub)) return stub;
+        return tail;
+    }
+
+    /**
+     * Removes a mailbox whose listener doesn't want any more messages.
+     */
+    void removeMailbox(Mailbox<?> mailbox) {
+        for (; ; ) {
+            Mailbox<?>[] current = mailboxes;
+            int index = Arrays.asList(current).indexOf(mailbox);
+            if (index < 0) return;
+            Mailbox<?>[] update;
+            if (current.length == 1) {
+                update = NO_MAILBOXES;
+            } else {
+                update = new Mailbox<?>[current.length - 1];
+                System.arraycopy(current, 0, update, 0, index);
+                System.arraycopy(current, index + 1, update, index, update.length - index);
+            }
+            if (MAILBOXES.compareAndSet(this, current, update)) return;
+        }
+    }
+
+    private boolean addMailbox(Mailbox<T> mailbox) {
+        for (; ; ) {
+            Mailbox<?>[] current = mailboxes;
+            if (current == TERMINATED_MAILBOXES) return false;
+            Mailbox<?>[] update = Arrays.copyOf(current, current.length + 1);
+            update[current.length] = mailbox;
+            if (MAILBOXES.compareAndSet(this, current, update)) return true;
+        }
+    }
+
+    // No more messages are delivered after a cancel, so drop the listeners. Mailboxes with a close
+    // listener are kept so that it is still called when the promise is closed.
+    private void clearListeners() {
+        for (; ; ) {
+            Mailbox<?>[] current = mailboxes;
+            if (current == TERMINATED_MAILBOXES || current.length == 0) return;
+            List<Mailbox<?>> closing = new ArrayList<Mailbox<?>>();
+            for (Mailbox<?> mailbox : current) {
+                if (mailbox.hasCloseListener()) closing.add(mailbox);
+            }
+            Mailbox<?>[] update = closing.isEmpty() ? NO_MAILBOXES : closing.toArray(new Mailbox<?>[closing.size()]);
+            if (MAILBOXES.compareAndSet(this, current, update)) return;
+        }
+    }
+
     static void dispatchClose(Executor callbackExecutor, final CloseListener listener) {
         callbackExecutor.execute(new Runnable() {
             @Override
@@ -100,28 +489,68 @@ public class Promise<T> implements Iterable<T> {
         });
     }
 
-    protected void onSend(T message) {
-    }
-
     /**
      * Notifies the {@code Promise} that no more messages will be sent. This is used internally by
      * {@link Deferred}.
      */
-    synchronized void close() {
-        isClosed = true;
-        listeners.clear();
+    void close() {
+        for (; ; ) {
+            int s = state;
+            if ((s & CLOSED) != 0) return;
+            if (STATE.compareAndSet(this, s, s | CLOSED)) {
+                if ((s & ~FLAGS) == 0) terminate();
+                return;
+            }
+        }
+    }
 
+    private void terminate() {
+        int s;
+        do {
+            s = state;
+            if ((s & ~FLAGS) != CLOSED) return;
+        } while (!STATE.compareAndSet(this, s, s | TERMINATED));
+
+        Mailbox<?>[] mailboxes = MAILBOXES.getAndSet(this, TERMINATED_MAILBOXES);
+        if ((s & RETAIN_LAST) == 0) TAIL.set(this, null);
+        demandChanged();
+        if (mailboxes.length == 0) {
+            notifyClosed();
+        } else {
+            // Mailboxes may be drained in parallel by a multi-threaded executor, so the close
+            // listeners wait until every mailbox has delivered its last message.
+            Runnable drained = new Drained(mailboxes.length);
+            for (Mailbox<?> mailbox : mailboxes) {
+                mailbox.close(drained);
+            }
+        }
+    }
+
+    private void notifyClosed() {
+        CloseListener[] closeListeners = CLOSE_LISTENERS.getAndSet(this, TERMINATED_CLOSE_LISTENERS);
         for (CloseListener listener : closeListeners) {
-            dispatchClose(callbackExecutor, listener);
+            dispatchClose(callbackExecutor(), listener);
+        }
+    }
+
+    private final class Drained extends AtomicInteger implements Runnable {
+        private static final long serialVersionUID = 1L;
+
+        Drained(int mailboxes) {
+            super(mailboxes);
+        }
+
+        @Override
+        public void run() {
+            if (decrementAndGet() == 0) notifyClosed();
         }
-        closeListeners.clear();
     }
 
     /**
      * Cancels the {@code Promise}, notifying all listeners and propagating the cancellation to all
      * Promises that share the {@link CancelToken}.
      */
-    public synchronized void cancel() {
+    public void cancel() {
         cancelToken.cancel();
     }
 
@@ -130,8 +559,8 @@ public class Promise<T> implements Iterable<T> {
      *
      * @return true if closed, false otherwise
      */
-    public synchronized boolean isClosed() {
-        return isClosed;
+    public boolean isClosed() {
+        return (state & CLOSED) != 0;
     }
 
     /**
@@ -139,7 +568,7 @@ public class Promise<T> implements Iterable<T> {
      *
      * @return true if canceled, false otherwise
      */
-    public synchronized boolean isCanceled() {
+    public boolean isCanceled() {
         return cancelToken.isCanceled();
     }
 
@@ -148,8 +577,8 @@ public class Promise<T> implements Iterable<T> {
      *
      * @return true if running, false otherwise
      */
-    public synchronized boolean isRunning() {
-        return !isClosed && !isCanceled();
+    public boolean isRunning() {
+        return !isClosed() && !isCanceled();
     }
 
     /**
@@ -159,16 +588,59 @@ public class Promise<T> implements Iterable<T> {
      * @param listener the listener to call when the promise receives a message
      * @return the {@code Promise} for chaining
      */
-    public synchronized Promise<T> listen(final Listener<T> listener) {
+    public Promise<T> listen(final Listener<T> listener) {
         if (listener == null) return this;
 
         onListen(listener);
-
-        if (!isClosed()) listeners.add(listener);
+        register(listener, null);
 
         return this;
     }
 
+    /**
+     * Listens to a {@code Promise} with backpressure. The listener is sent at most {@code demand}
+     * messages, more have to be requested with the returned {@link Subscription}. Messages past
+     * that wait for the listener instead of being handed to the callback executor. A producer that
+     * checks {@link Deferred#trySend(Object)} or {@link Deferred#awaitDemand()} holds off until
+     * there is demand again, so memory stays bounded however far ahead of the listener it is.
+     *
+     * <p> To request more from inside the listener, pass a demand of 0 and call {@link
+     * Subscription#request(long)} once you have stored the subscription. </p>
+     *
+     * @param listener the listener to call when the promise receives a message
+     * @param demand   the number of messages to receive before more are requested
+     * @return the subscription to request more messages with
+     */
+    public Subscription listen(Listener<T> listener, long demand) {
+        return listen(listener, null, demand);
+    }
+
+    /**
+     * Like {@link #listen(Listener, long)} but also calls the close listener, after the last
+     * message has been delivered to the listener. Unlike {@link #onClose(CloseListener)} this
+     * doesn't wait for any other listener and isn't called if the subscription is canceled.
+     *
+     * @param listener      the listener to call when the promise receives a message
+     * @param closeListener the listener to call when the promise is closed, may be null
+     * @param demand        the number of messages to receive before more are requested
+     * @return the subscription to request more messages with
+     */
+    public Subscription listen(Listener<T> listener, CloseListener closeListener, long demand) {
+        if (listener == null) throw new NullPointerException();
+        if (demand < 0) throw new IllegalArgumentException("demand must not be negative, was " + demand);
+
+        onListen(listener);
+        Mailbox<T> mailbox = new Mailbox<T>(listener, closeListener, callbackExecutor(), this, demand);
+        register(mailbox);
+        return mailbox;
+    }
+
+    /**
+     * Called before a listener is added.
+     *
+     * @deprecated the promise's own buffering decides what a new listener receives.
+     */
+    @Deprecated
     protected void onListen(Listener<T> listener) {
     }
 
@@ -180,36 +652,56 @@ public class Promise<T> implements Iterable<T> {
      * @param listener the listener
      * @return the {@code Promise} for chaining
      */
-    public synchronized Promise<T> onClose(CloseListener listener) {
+    public Promise<T> onClose(CloseListener listener) {
         if (listener == null) return this;
 
-        if (isClosed) {
-            dispatchClose(callbackExecutor, listener);
-        } else {
-            closeListeners.add(listener);
+        for (; ; ) {
+            CloseListener[] current = closeListeners;
+            if (current == TERMINATED_CLOSE_LISTENERS) {
+                dispatchClose(callbackExecutor(), listener);
+                return this;
+            }
+            CloseListener[] update = Arrays.copyOf(current, current.length + 1);
+            update[current.length] = listener;
+            if (CLOSE_LISTENERS.compareAndSet(this, current, update)) return this;
         }
+    }
 
-        return this;
+    /**
+     * The callback executor for promises derived from this one.
+     */
+    Executor callbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * Returns a close listener that closes the given {@code Promise}, to pass along with a
+     * combinator's listener.
+     */
+    static CloseListener closer(final Promise<?> newPromise) {
+        return new CloseListener() {
+            @Override
+            public void close() {
+                newPromise.close();
+            }
+        };
     }
 
     /**
      * Constructs a new {@code Promise} that returns when the original promise returns but passes
      * the result through the given {@link me.tatarka.ipromise.func.Map} function.
      *
+     * <p> Maps and filters chained one after another are fused, the whole chain is run on the
+     * thread that sends the message and only the listeners of the new {@code Promise} are called on
+     * the callback executor. </p>
+     *
      * @param map  the function to chain the result of the original {@code Promise} to the new
      *             promise
      * @param <T2> the result type of the new {@code Promise}
      * @return the new {@code Promise}
      */
-    public synchronized <T2> Promise<T2> then(final Map<T, T2> map) {
-        final Promise<T2> newPromise = new Promise<T2>(this);
-        listen(new Listener<T>() {
-            @Override
-            public void receive(T message) {
-                newPromise.send(map.map(message));
-            }
-        });
-        return newPromise;
+    public <T2> Promise<T2> then(final Map<T, T2> map) {
+        return new FusedPromise<T2>(this, map, null);
     }
 
     /**
@@ -220,41 +712,82 @@ public class Promise<T> implements Iterable<T> {
      * @param <T2>  the type of the second {@code Promise} result
      * @return the new {@code Promise}
      */
-    public synchronized <T2> Promise<T2> then(final Chain<T, Promise<T2>> chain) {
-        final Promise<T2> newPromise = new Promise<T2>(this);
-        listen(new Listener<T>() {
+    public <T2> Promise<T2> then(final Chain<T, Promise<T2>> chain) {
+        final Promise<T2> newPromise = new Promise<T2>(derivedCancelToken(), callbackExecutor());
+        register(new Listener<T>() {
             @Override
             public void receive(T message) {
-                chain.chain(message).listen(new Listener<T2>() {
+                chain.chain(message).register(new Listener<T2>() {
                     @Override
                     public void receive(T2 message) {
                         newPromise.send(message);
                     }
-                });
+                }, null);
             }
-        });
+        }, closer(newPromise));
         return newPromise;
     }
 
+    /**
+     * Constructs a new {@code Promise} that chains each message to an inner {@code Promise} and
+     * receives the messages of all of them, like {@link #then(Chain)}, but with at most {@code
+     * maxConcurrency} inner promises running at once. Further messages wait until one of them is
+     * closed or canceled, and a producer using backpressure (see {@link Deferred#trySend(Object)})
+     * holds off meanwhile. Canceling the new {@code Promise} cancels the running inner promises.
+     * It is closed once this {@code Promise} and all inner promises are closed.
+     *
+     * @param chain          the {@link me.tatarka.ipromise.func.Chain} that constructs the inner
+     *                       promises
+     * @param maxConcurrency the most inner promises running at once
+     * @param <T2>           the message type of the inner promises
+     * @return the new {@code Promise}
+     */
+    public <T2> Promise<T2> flatMap(Chain<T, Promise<T2>> chain, int maxConcurrency) {
+        if (chain == null) throw new NullPointerException();
+        if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency must be positive, was " + maxConcurrency);
+        return FlatMap.flatMap(this, chain, maxConcurrency);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that chains each message to an inner {@code Promise} one at a
+     * time. The next message is only chained once the previous inner promise is closed, so the
+     * messages of the inner promises arrive in order.
+     *
+     * @param chain the {@link me.tatarka.ipromise.func.Chain} that constructs the inner promises
+     * @param <T2>  the message type of the inner promises
+     * @return the new {@code Promise}
+     * @see #flatMap(Chain, int)
+     */
+    public <T2> Promise<T2> concatMap(Chain<T, Promise<T2>> chain) {
+        return flatMap(chain, 1);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that only receives the messages of the inner {@code
+     * Promise} for the latest message. Each message cancels the previous inner promise's {@link
+     * CancelToken}, so work whose result would be ignored is stopped. It is closed once this
+     * {@code Promise} and the latest inner promise are closed.
+     *
+     * @param chain the {@link me.tatarka.ipromise.func.Chain} that constructs the inner promises
+     * @param <T2>  the message type of the inner promises
+     * @return the new {@code Promise}
+     */
+    public <T2> Promise<T2> switchMap(Chain<T, Promise<T2>> chain) {
+        if (chain == null) throw new NullPointerException();
+        return SwitchMap.switchMap(this, chain);
+    }
+
     /**
      * Constructs a new {@code Promise} that filters this {@code Promise}. i.e. the new {@code
      * Promise} will not receive any messages when {@link me.tatarka.ipromise.func.Filter#filter(Object)}
-     * returns false.
+     * returns false. Like {@link #then(Map)}, the filter is run on the thread that sends the
+     * message.
      *
      * @param filter the filter
      * @return the new {@code Progress}
      */
-    public synchronized Promise<T> then(final Filter<T> filter) {
-        final Promise<T> newPromise = new Promise<T>(this);
-        listen(new Listener<T>() {
-            @Override
-            public void receive(T message) {
-                if (filter.filter(message)) {
-                    newPromise.send(message);
-                }
-            }
-        });
-        return newPromise;
+    public Promise<T> then(final Filter<T> filter) {
+        return new FusedPromise<T>(this, null, filter);
     }
 
     /**
@@ -265,30 +798,122 @@ public class Promise<T> implements Iterable<T> {
      *             is closed.
      * @return the new {@code Promise}
      */
-    public synchronized Promise<List<T>> batch(final int size) {
-        final Promise<List<T>> newPromise = new Promise<List<T>>(cancelToken, callbackExecutor);
-        final List<T> batchedItems = new ArrayList<T>();
-        listen(new Listener<T>() {
-            @Override
-            public void receive(T message) {
-                batchedItems.add(message);
-                if (batchedItems.size() >= size) {
-                    newPromise.send(new ArrayList<T>(batchedItems));
-                    batchedItems.clear();
-                }
-            }
-        });
-        onClose(new CloseListener() {
-            @Override
-            public void close() {
-                if (!batchedItems.isEmpty()) {
-                    newPromise.send(new ArrayList<T>(batchedItems));
-                    batchedItems.clear();
-                }
-                newPromise.close();
-            }
-        });
-        return newPromise;
+    public Promise<List<T>> batch(int size) {
+        return Batcher.batch(this, Math.max(size, 1), 0);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that batches the messages of this {@code Promise}, sending a
+     * batch once it has {@code maxSize} messages or {@code maxDelay} after its first message,
+     * whichever comes first. This bounds how long a message can wait when messages only trickle
+     * in. The delay is kept on a timer thread shared by all promises.
+     *
+     * @param maxSize  the most messages in a batch
+     * @param maxDelay the longest a message waits for its batch to be sent
+     * @param unit     the unit of the delay
+     * @return the new {@code Promise}
+     */
+    public Promise<List<T>> batch(int maxSize, long maxDelay, TimeUnit unit) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive, was " + maxSize);
+        if (maxDelay <= 0) throw new IllegalArgumentException("maxDelay must be positive, was " + maxDelay);
+        return Batcher.batch(this, maxSize, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Like {@link #batch(int, long, TimeUnit)}, but the batch lists are reused. A list goes back to
+     * the pool as soon as every listener it was sent to has returned, so a listener must not keep
+     * it or pass it on, copy what it needs instead. Unlike other promises, a listener added later
+     * never receives a batch that was sent before.
+     *
+     * <p> Only listeners added with {@link #listen(Listener)} or {@link #listen(Listener, long)}
+     * are sent the pooled lists. Everything else, like the promises returned by {@code then},
+     * {@code delay} or {@code zip}, {@link #await()} and {@link #iterator()}, is sent a copy, since
+     * it may hold on to the batch after the listener returns. </p>
+     *
+     * @param maxSize  the most messages in a batch
+     * @param maxDelay the longest a message waits for its batch to be sent
+     * @param unit     the unit of the delay
+     * @return the new {@code Promise}
+     */
+    public Promise<List<T>> pooledBatch(int maxSize, long maxDelay, TimeUnit unit) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive, was " + maxSize);
+        if (maxDelay <= 0) throw new IllegalArgumentException("maxDelay must be positive, was " + maxDelay);
+        return Batcher.pooledBatch(this, maxSize, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives the messages of this {@code Promise} until it
+     * goes longer than {@code timeout} without a message, at which point the {@link CancelToken}
+     * is canceled. The timer restarts with every message, so this bounds the gap between messages
+     * rather than the total time. Since the token is shared, the work producing this {@code
+     * Promise} is canceled too. The timeout is kept on a timer thread shared by all promises.
+     *
+     * @param timeout the longest gap between messages
+     * @param unit    the unit of the timeout
+     * @return the new {@code Promise}
+     */
+    public Promise<T> timeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive, was " + timeout);
+        return Watchdog.timeout(this, unit.toNanos(timeout));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives each message of this {@code Promise}, and is
+     * closed, {@code delay} after this {@code Promise}. The messages keep their order. The delay
+     * is kept on a timer thread shared by all promises.
+     *
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the new {@code Promise}
+     */
+    public Promise<T> delay(long delay, TimeUnit unit) {
+        if (delay < 0) throw new IllegalArgumentException("delay must not be negative, was " + delay);
+        return Delay.delay(this, unit.toNanos(delay));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that only receives a message of this {@code Promise} once
+     * {@code timeout} has passed without another one, like a search box that waits until the user
+     * stops typing. A message that is still waiting when this {@code Promise} is closed is sent
+     * right before the close, so the last message is never lost.
+     *
+     * @param timeout how long a message has to be the latest before it is sent
+     * @param unit    the unit of the timeout
+     * @return the new {@code Promise}
+     */
+    public Promise<T> debounce(long timeout, TimeUnit unit) {
+        if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive, was " + timeout);
+        return Throttle.throttle(this, Throttle.DEBOUNCE, unit.toNanos(timeout));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives at most one message of this {@code Promise}
+     * per {@code window}. A message is sent right away if none was sent within the last window,
+     * otherwise the latest one is sent when the window is over. Unlike {@link
+     * me.tatarka.ipromise.func.Filters#rateLimit(long, TimeUnit)} the last message is never lost,
+     * it is at most a window late, or sent right before the close.
+     *
+     * @param window the shortest time between two messages
+     * @param unit   the unit of the window
+     * @return the new {@code Promise}
+     */
+    public Promise<T> throttleLatest(long window, TimeUnit unit) {
+        if (window <= 0) throw new IllegalArgumentException("window must be positive, was " + window);
+        return Throttle.throttle(this, Throttle.THROTTLE_LATEST, unit.toNanos(window));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives the latest message of this {@code Promise}
+     * every {@code period}, if there was a new one since the last. A message that is still
+     * waiting when this {@code Promise} is closed is sent right before the close.
+     *
+     * @param period the time between samples
+     * @param unit   the unit of the period
+     * @return the new {@code Promise}
+     */
+    public Promise<T> sample(long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("period must be positive, was " + period);
+        return Throttle.throttle(this, Throttle.SAMPLE, unit.toNanos(period));
     }
 
     /**
@@ -332,8 +957,8 @@ public class Promise<T> implements Iterable<T> {
 
         for (int i = 0; i < promises.length; i++) {
             final int index = i;
-            CancelToken.join(newPromise.cancelToken, promises[index].cancelToken);
-            promises[index].listen(new Listener() {
+            CancelToken.join(newPromise.cancelToken, promises[index].cancelToken());
+            promises[index].register(new Listener() {
                 @Override
                 public void receive(Object message) {
                     synchronized (lock) {
@@ -347,7 +972,7 @@ public class Promise<T> implements Iterable<T> {
                         }
                     }
                 }
-            }).onClose(new CloseListener() {
+            }, new CloseListener() {
                 @Override
                 public void close() {
                     if (size.decrementAndGet() == 0) {
@@ -360,6 +985,122 @@ public class Promise<T> implements Iterable<T> {
         return newPromise;
     }
 
+    /**
+     * Constructs a new {@code Promise} that pairs up the messages of this {@code Promise} and the
+     * given one by position, see {@link #zip(Map, Promise[])}.
+     *
+     * @param promise the other {@code Promise}
+     * @param <T2>    the type of the other {@code Promise}
+     * @return the new {@code Promise}
+     */
+    public <T2> Promise<Pair<T, T2>> zip(Promise<T2> promise) {
+        return zip(this, promise);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that pairs up the messages of the given promises by
+     * position, see {@link #zip(Map, Promise[])}.
+     *
+     * @param first  the first {@code Promise}
+     * @param second the second {@code Promise}
+     * @param <A>    the type of the first {@code Promise}
+     * @param <B>    the type of the second {@code Promise}
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <A, B> Promise<Pair<A, B>> zip(Promise<A> first, Promise<B> second) {
+        return Zip.zip((Map) TO_PAIR, new Promise<?>[]{first, second});
+    }
+
+    /**
+     * Constructs a new {@code Promise} that combines the messages of the given promises by
+     * position into a list, see {@link #zip(Map, Promise[])}.
+     *
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<List<T>> zip(Collection<? extends Promise<? extends T>> promises) {
+        return Zip.zip((Map) TO_LIST, promises.toArray(new Promise<?>[promises.size()]));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that combines the messages of the given promises by
+     * position, the first message of each, then the second of each and so on. The combiner gets
+     * the messages at the same indices as the promises. Each promise is only asked for its next
+     * message once the current combination has been sent, so one that is ahead of the others
+     * doesn't pile up messages (see {@link #listen(Listener, long)}). The new {@code Promise} is
+     * closed once one of the promises is closed and nothing can be paired with it anymore.
+     *
+     * @param combiner makes the message of the new {@code Promise}
+     * @param promises the promises
+     * @param <R>      the type of the combination
+     * @return the new {@code Promise}
+     */
+    public static <R> Promise<R> zip(Map<Object[], R> combiner, Promise<?>... promises) {
+        if (combiner == null || promises == null) throw new NullPointerException();
+        return Zip.zip(combiner, promises);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that pairs the latest messages of this {@code Promise} and
+     * the given one whenever either sends, see {@link #combineLatest(Map, Promise[])}.
+     *
+     * @param promise the other {@code Promise}
+     * @param <T2>    the type of the other {@code Promise}
+     * @return the new {@code Promise}
+     */
+    public <T2> Promise<Pair<T, T2>> combineLatest(Promise<T2> promise) {
+        return combineLatest(this, promise);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that pairs the latest messages of the given promises
+     * whenever either sends, see {@link #combineLatest(Map, Promise[])}.
+     *
+     * @param first  the first {@code Promise}
+     * @param second the second {@code Promise}
+     * @param <A>    the type of the first {@code Promise}
+     * @param <B>    the type of the second {@code Promise}
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <A, B> Promise<Pair<A, B>> combineLatest(Promise<A> first, Promise<B> second) {
+        return CombineLatest.combineLatest((Map) TO_PAIR, new Promise<?>[]{first, second});
+    }
+
+    /**
+     * Constructs a new {@code Promise} that combines the latest messages of the given promises into
+     * a list whenever one of them sends, see {@link #combineLatest(Map, Promise[])}.
+     *
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<List<T>> combineLatest(Collection<? extends Promise<? extends T>> promises) {
+        return CombineLatest.combineLatest((Map) TO_LIST, promises.toArray(new Promise<?>[promises.size()]));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that combines the latest message of each of the given
+     * promises whenever one of them sends, once all of them have sent something. The combiner gets
+     * the messages at the same indices as the promises. Messages that arrive on different threads
+     * while a combination is being sent may be folded into the next combination, but the last one
+     * is always made of the latest messages. The new {@code Promise} is closed when all promises
+     * are closed, or right away if one closes without sending anything.
+     *
+     * @param combiner makes the message of the new {@code Promise}
+     * @param promises the promises
+     * @param <R>      the type of the combination
+     * @return the new {@code Promise}
+     */
+    public static <R> Promise<R> combineLatest(Map<Object[], R> combiner, Promise<?>... promises) {
+        if (combiner == null || promises == null) throw new NullPointerException();
+        return CombineLatest.combineLatest(combiner, promises);
+    }
+
     /**
      * Constructs a new {@code Promise} that receives a message when either of the given promises
      * receive a message. This is a type-safe version of {@link Promise#merge(Promise[])} for two
@@ -379,48 +1120,168 @@ public class Promise<T> implements Iterable<T> {
      *
      * @param promises the promises
      * @return the new {@code Promise}
+     * @see #merge(Collection)
      */
     public static Promise<Object> merge(final Promise... promises) {
         if (promises == null) throw new NullPointerException();
+        return Merge.merge((Promise<Object>[]) promises);
+    }
 
-        final Promise<Object> newPromise = new Promise<Object>();
-        final AtomicInteger canceledCount = new AtomicInteger();
-        final AtomicInteger size = new AtomicInteger(promises.length);
+    /**
+     * Constructs a new {@code Promise} that receives a message when any of the given promises
+     * receive a message. It is closed once all of them are closed, and canceled once all of them
+     * are canceled. Canceling it cancels all of them.
+     *
+     * <p> The promises don't send to the new {@code Promise} directly but hand their messages to a
+     * lock-free queue that one thread at a time drains, so merging thousands of busy promises
+     * doesn't make their threads contend on the new {@code Promise}. </p>
+     *
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <T> Promise<T> merge(Collection<? extends Promise<? extends T>> promises) {
+        if (promises == null) throw new NullPointerException();
+        return Merge.merge(promises.toArray(new Promise[promises.size()]));
+    }
 
-        newPromise.cancelToken.listen(new CancelToken.Listener() {
-            @Override
-            public void canceled() {
-                for (Promise promise : promises) promise.cancel();
-            }
-        });
+    /**
+     * Constructs a new {@code Promise} that receives the first message of whichever of the given
+     * promises sends first, and is then closed. The other promises are canceled right away. If
+     * all of them close without a message the new {@code Promise} is closed without one.
+     * Canceling the new {@code Promise} cancels all of them.
+     *
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<T> race(Promise<? extends T>... promises) {
+        if (promises == null) throw new NullPointerException();
+        return Race.race(Race.FIRST, 1, promises);
+    }
 
-        for (Promise promise : promises) {
-            // We can't just join cancel tokens here because the new promise should only cancel if
-            // all of the given promises are canceled.
-            promise.cancelToken.listen(new CancelToken.Listener() {
-                @Override
-                public void canceled() {
-                    int count = canceledCount.incrementAndGet();
-                    if (count >= size.get()) newPromise.cancel();
-                }
-            });
+    /**
+     * Constructs a new {@code Promise} that receives the first message of whichever of the given
+     * promises sends first, see {@link #race(Promise[])}.
+     *
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("rawtypes")
+    public static <T> Promise<T> race(Collection<? extends Promise<? extends T>> promises) {
+        if (promises == null) throw new NullPointerException();
+        return Race.race(Race.FIRST, 1, promises.toArray(new Promise[promises.size()]));
+    }
 
-            promise.listen(new Listener() {
-                @Override
-                public void receive(Object message) {
-                    newPromise.send(message);
-                }
-            }).onClose(new CloseListener() {
-                @Override
-                public void close() {
-                    if (size.decrementAndGet() == 0) {
-                        newPromise.close();
-                    }
-                }
-            });
-        }
+    /**
+     * Constructs a new {@code Promise} that receives the first successful {@link Result} of the
+     * given promises, and is then closed. The other promises are canceled right away. Only the
+     * first message of each promise counts. If none of them succeed the new {@code Promise}
+     * receives the last error, or nothing if they all closed without a message. Canceling the new
+     * {@code Promise} cancels all of them.
+     *
+     * @param promises the promises
+     * @param <T>      the success type
+     * @param <E>      the error type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, E extends Exception> Promise<Result<T, E>> any(Promise<Result<T, E>>... promises) {
+        if (promises == null) throw new NullPointerException();
+        return Race.race(Race.FIRST_SUCCESS, 1, promises);
+    }
 
-        return newPromise;
+    /**
+     * Constructs a new {@code Promise} that receives the first successful {@link Result} of the
+     * given promises, see {@link #any(Promise[])}.
+     *
+     * @param promises the promises
+     * @param <T>      the success type
+     * @param <E>      the error type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("rawtypes")
+    public static <T, E extends Exception> Promise<Result<T, E>> any(Collection<? extends Promise<Result<T, E>>> promises) {
+        if (promises == null) throw new NullPointerException();
+        return Race.race(Race.FIRST_SUCCESS, 1, promises.toArray(new Promise[promises.size()]));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives the first messages of the first {@code count}
+     * of the given promises to send, in the order they were sent, and is then closed. This is
+     * useful for reading from replicas, where a few matching answers are enough. The other
+     * promises are canceled as soon as there are enough answers, or once too few of them are left
+     * to make up the count, in which case the new {@code Promise} is closed without a message.
+     * Canceling the new {@code Promise} cancels all of them.
+     *
+     * @param count    how many promises have to send a message
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<List<T>> quorum(int count, Promise<? extends T>... promises) {
+        if (promises == null) throw new NullPointerException();
+        if (count <= 0 || count > promises.length) throw new IllegalArgumentException("count must be between 1 and " + promises.length + ", was " + count);
+        return Race.race(Race.QUORUM, count, promises);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives the first messages of the first {@code count}
+     * of the given promises to send, see {@link #quorum(int, Promise[])}.
+     *
+     * @param count    how many promises have to send a message
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <T> Promise<List<T>> quorum(int count, Collection<? extends Promise<? extends T>> promises) {
+        if (promises == null) throw new NullPointerException();
+        return quorum(count, promises.toArray(new Promise[promises.size()]));
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives a {@link Gathered} with the first message of
+     * each of the given promises that answered within {@code timeout}, and is then closed. Unlike
+     * {@link #and(Promise[])} this never waits past the deadline, whatever is missing is marked
+     * {@link Gathered#TIMED_OUT} and those promises are canceled, so a fan-out keeps to its
+     * latency budget and degrades to partial results. If every promise answers, closes or is
+     * canceled earlier the result is sent right away. Canceling the new {@code Promise} cancels
+     * the promises that haven't answered. The deadline is kept on a timer thread shared by all
+     * promises.
+     *
+     * @param timeout  how long to wait for the promises
+     * @param unit     the unit of the timeout
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<Gathered<T>> gather(long timeout, TimeUnit unit, Promise<? extends T>... promises) {
+        if (promises == null) throw new NullPointerException();
+        if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive, was " + timeout);
+        return Gather.gather(unit.toNanos(timeout), promises);
+    }
+
+    /**
+     * Constructs a new {@code Promise} that receives a {@link Gathered} with the first message of
+     * each of the given promises that answered within {@code timeout}, see {@link #gather(long,
+     * TimeUnit, Promise[])}.
+     *
+     * @param timeout  how long to wait for the promises
+     * @param unit     the unit of the timeout
+     * @param promises the promises
+     * @param <T>      the message type
+     * @return the new {@code Promise}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <T> Promise<Gathered<T>> gather(long timeout, TimeUnit unit, Collection<? extends Promise<? extends T>> promises) {
+        if (promises == null) throw new NullPointerException();
+        return gather(timeout, unit, promises.toArray(new Promise[promises.size()]));
     }
 
     /**
@@ -437,73 +1298,89 @@ public class Promise<T> implements Iterable<T> {
     }
 
     /**
-     * Returns an iterator that will block until each message is received. Like {@link
-     * me.tatarka.ipromise.Promise#listen(Listener)}, the {@link me.tatarka.ipromise.buffer.PromiseBuffer}
-     * determines how messages that are sent before the iterator is created are handled.
+     * Blocks until the {@code Promise} sends a message and returns it. Like {@link
+     * #listen(Listener)}, the {@link me.tatarka.ipromise.buffer.PromiseBuffer} determines if a
+     * message sent earlier is returned. If that message is already known it is returned without
+     * adding a listener at all, otherwise the waiting thread is parked until it is woken by the
+     * listener. The listener is removed again before this returns.
      *
-     * @return the iterator
+     * <p> Don't call this on the callback executor's thread, the message could never be
+     * delivered. </p>
+     *
+     * @return the message
+     * @throws InterruptedException   if the thread is interrupted while waiting
+     * @throws NoSuchElementException if the promise is closed without a message
+     * @throws CancellationException  if the promise is canceled
      */
-    @Override
-    public Iterator<T> iterator() {
-        return new PromiseIterator();
+    @SuppressWarnings("unchecked")
+    public T await() throws InterruptedException {
+        Object message = peek();
+        if (message != Mailbox.Node.NONE) return (T) message;
+        Awaiter<T> awaiter = new Awaiter<T>(this, false);
+        awaiter.await(false, 0);
+        return awaiter.message();
     }
 
-    private class PromiseIterator implements Iterator<T> {
-        private BlockingQueue<Result<T, Exception>> buffer = new LinkedBlockingQueue<Result<T, Exception>>();
-        private Result<T, Exception> nextMessage;
-        private boolean nextComplete;
-
-        PromiseIterator() {
-            listen(new Listener<T>() {
-                @Override
-                public void receive(T message) {
-                    try {
-                        buffer.put(Result.success(message));
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            });
-            onClose(new CloseListener() {
-                @Override
-                public void close() {
-                    try {
-                        buffer.put(Result.<T, Exception>error(new AlreadyClosedException(null)));
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            });
+    /**
+     * Like {@link #await()}, but gives up after the timeout.
+     *
+     * @param timeout the longest time to wait
+     * @param unit    the unit of the timeout
+     * @return the message
+     * @throws InterruptedException   if the thread is interrupted while waiting
+     * @throws TimeoutException       if no message was sent before the timeout
+     * @throws NoSuchElementException if the promise is closed without a message
+     * @throws CancellationException  if the promise is canceled
+     */
+    @SuppressWarnings("unchecked")
+    public T await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        Object message = peek();
+        if (message != Mailbox.Node.NONE) return (T) message;
+        Awaiter<T> awaiter = new Awaiter<T>(this, false);
+        if (!awaiter.await(true, unit.toNanos(timeout))) {
+            throw new TimeoutException("No message after " + timeout + " " + unit);
         }
+        return awaiter.message();
+    }
 
-        @Override
-        public boolean hasNext() {
-            Result<T, Exception> next = getNext();
-            return next.isSuccess();
-        }
+    /**
+     * Blocks until the {@code Promise} is closed and returns all the messages it sent, starting
+     * with the ones the {@link me.tatarka.ipromise.buffer.PromiseBuffer} replays.
+     *
+     * @return the messages
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     * @throws CancellationException if the promise is canceled
+     */
+    public List<T> awaitAll() throws InterruptedException {
+        Awaiter<T> awaiter = new Awaiter<T>(this, true);
+        awaiter.await(false, 0);
+        return awaiter.messages();
+    }
 
-        @Override
-        public T next() {
-            Result<T, Exception> next = getNext();
-            nextComplete = false;
-            if (next.isSuccess()) {
-                return next.getSuccess();
-            } else {
-                throw new NoSuchElementException();
-            }
-        }
+    /**
+     * Returns an iterator that will block until each message is received. Like {@link
+     * me.tatarka.ipromise.Promise#listen(Listener)}, the {@link me.tatarka.ipromise.buffer.PromiseBuffer}
+     * determines how messages that are sent before the iterator is created are handled. At most
+     * {@value #DEFAULT_ITERATOR_CAPACITY} messages are held for the consumer, see {@link
+     * #iterator(int)}.
+     *
+     * @return the iterator
+     */
+    @Override
+    public PromiseIterator<T> iterator() {
+        return new PromiseIterator<T>(this, DEFAULT_ITERATOR_CAPACITY);
+    }
 
-        private Result<T, Exception> getNext() {
-            if (!nextComplete) {
-                try {
-                    nextMessage = buffer.take();
-                    nextComplete = true;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-            return nextMessage;
-        }
+    /**
+     * Returns an iterator that will block until each message is received and holds at most {@code
+     * capacity} messages that the consumer hasn't taken yet. Past that the promise has no demand,
+     * so a producer using backpressure waits for the consumer.
+     *
+     * @param capacity the most messages to hold for the consumer
+     * @return the iterator
+     */
+    public PromiseIterator<T> iterator(int capacity) {
+        return new PromiseIterator<T>(this, capacity);
     }
 
     /**
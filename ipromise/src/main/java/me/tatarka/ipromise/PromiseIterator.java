@@ -0,0 +1,201 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link Iterator} over the messages of a {@link Promise} for a consumer thread, which blocks
+ * until each message is received. Messages are handed over in a fixed-size ring buffer between the
+ * promise's callback executor and the consumer thread. The iterator listens with a demand of the
+ * buffer's capacity and only requests more as the consumer takes messages, so a producer that
+ * respects backpressure (see {@link Deferred#trySend(Object)}) holds off while the consumer falls
+ * behind instead of the buffer growing.
+ *
+ * <p> The iteration ends when the promise is closed or canceled, or when the consumer thread is
+ * interrupted while waiting, in which case the thread's interrupt flag is set again. An iterator
+ * must only be used from one thread at a time. </p>
+ *
+ * @param <T> the message type
+ * @see Promise#iterator(int)
+ */
+public final class PromiseIterator<T> implements Iterator<T> {
+    // Stands in for a null message, the empty slot is null.
+    private static final Object NULL = new Object();
+    // Put after the last message when the promise closes.
+    private static final Object END = new Object();
+
+    private final Receiver receiver = new Receiver();
+    private final Object[] buffer;
+    private final int mask;
+    private final int limit;
+    private final Subscription subscription;
+    // Written by the receiver only, the volatile write publishes the slot before it.
+    private volatile long producerIndex;
+    // The consumer thread, set while it is parked waiting for a message.
+    private volatile Thread waiter;
+    private volatile boolean canceled;
+    // Only touched by the consumer thread.
+    private long consumerIndex;
+    private int consumed;
+    private Object next;
+    private boolean done;
+
+    PromiseIterator(Promise<T> promise, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+        // One more slot than the demand for the end marker.
+        int size = Integer.highestOneBit(capacity) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+        limit = Math.max(1, capacity / 2);
+        subscription = promise.listen(receiver, receiver, capacity);
+        if (promise.isCanceled()) receiver.canceled();
+    }
+
+    /**
+     * Returns if there is another message, blocking until one is received or the iteration ends.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next != null) return true;
+        if (done) return false;
+        Object message = take();
+        if (message == END) {
+            done = true;
+            return false;
+        }
+        next = message;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Object message = next;
+        next = null;
+        return message == NULL ? null : (T) message;
+    }
+
+    /**
+     * Returns up to {@code max} messages, blocking until there is at least one. Only messages that
+     * have already been received are returned along with it, so a consumer can handle a burst of
+     * messages with a single wake-up.
+     *
+     * @param max the most messages to return
+     * @return the messages, which is only empty when the iteration has ended
+     */
+    public List<T> nextBatch(int max) {
+        if (max <= 0) throw new IllegalArgumentException("max must be positive, was " + max);
+        if (!hasNext()) return Collections.emptyList();
+        List<T> batch = new ArrayList<T>(Math.min(max, buffer.length));
+        batch.add(next());
+        drainTo(batch, max - 1);
+        return batch;
+    }
+
+    /**
+     * Moves up to {@code max} messages that have already been received to the collection without
+     * blocking.
+     *
+     * @param collection the collection to add the messages to
+     * @param max        the most messages to move
+     * @return the number of messages moved
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> collection, int max) {
+        int count = 0;
+        if (count < max && next != null) {
+            collection.add(next());
+            count++;
+        }
+        while (count < max && !done) {
+            Object message = poll();
+            if (message == null) break;
+            if (message == END) {
+                done = true;
+                break;
+            }
+            collection.add(message == NULL ? null : (T) message);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private Object take() {
+        Object message = poll();
+        if (message != null) return message;
+        waiter = Thread.currentThread();
+        try {
+            while ((message = poll()) == null) {
+                if (canceled) return END;
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    subscription.cancel();
+                    return END;
+                }
+                LockSupport.park(this);
+            }
+            return message;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    private Object poll() {
+        long index = consumerIndex;
+        if (index == producerIndex) return null;
+        int slot = (int) index & mask;
+        Object message = buffer[slot];
+        buffer[slot] = null;
+        consumerIndex = index + 1;
+        if (message != END && ++consumed == limit) {
+            consumed = 0;
+            subscription.request(limit);
+        }
+        return message;
+    }
+
+    private void offer(Object message) {
+        long index = producerIndex;
+        buffer[(int) index & mask] = message;
+        producerIndex = index + 1;
+        Thread waiter = this.waiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Called from the mailbox, which never runs concurrently with itself, so there is a single
+     * producer.
+     */
+    private final class Receiver implements Listener<T>, WaitingListener {
+        @Override
+        public void receive(T message) {
+            offer(message == null ? NULL : message);
+        }
+
+        @Override
+        public void close() {
+            offer(END);
+        }
+
+        @Override
+        public void canceled() {
+            PromiseIterator.this.canceled = true;
+            Thread waiter = PromiseIterator.this.waiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+}
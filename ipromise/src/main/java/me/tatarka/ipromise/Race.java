@@ -0,0 +1,127 @@
+package me.tatarka.ipromise;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Waits for the first message of enough of several promises, for {@link Promise#race(Promise[])},
+ * {@link Promise#any(Promise[])} and {@link Promise#quorum(int, Promise[])}. Only the first
+ * message of each source counts and each is listened to with a demand of one. As soon as the
+ * outcome is decided, either because enough sources answered or because too few are left to,
+ * the new promise is sent the outcome and closed, and the sources that haven't answered are
+ * canceled so they stop using resources for an answer no one will look at.
+ *
+ * <p> A race only sees a handful of messages, so it is simply synchronized. </p>
+ */
+final class Race implements CancelToken.Listener {
+    static final int FIRST = 0;
+    static final int FIRST_SUCCESS = 1;
+    static final int QUORUM = 2;
+
+    private final Promise<Object> newPromise;
+    private final int mode;
+    private final int needed;
+    private final Promise<?>[] sources;
+    private final Subscription[] subscriptions;
+    // Guarded by this.
+    private final boolean[] answered;
+    private final List<Object> accepted = new ArrayList<Object>();
+    // Sources that may still answer.
+    private int pending;
+    private Object lastError;
+    private boolean decided;
+
+    private Race(Promise<Object> newPromise, int mode, int needed, Promise<?>[] sources) {
+        this.newPromise = newPromise;
+        this.mode = mode;
+        this.needed = needed;
+        this.sources = sources;
+        this.subscriptions = new Subscription[sources.length];
+        this.answered = new boolean[sources.length];
+        this.pending = sources.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <R> Promise<R> race(int mode, int needed, Promise<?>[] promises) {
+        // There is only ever one message, keep it for listeners that come after the outcome.
+        Promise<Object> newPromise = new Promise<Object>(new CancelToken(), CallbackExecutors.getDefault(), true);
+        Race race = new Race(newPromise, mode, needed, promises.clone());
+        newPromise.cancelToken().listen(race);
+        synchronized (race) {
+            // Answers that come in right away are only acted on once every source is listened
+            // to, so that all the others can be canceled.
+            for (int i = 0; i < promises.length; i++) {
+                Source source = race.new Source(i);
+                race.subscriptions[i] = ((Promise<Object>) promises[i]).listen(source, source, 1);
+            }
+            race.check();
+        }
+        return (Promise<R>) newPromise;
+    }
+
+    private synchronized void receive(int index, Object message) {
+        if (decided || answered[index]) return;
+        answered[index] = true;
+        pending--;
+        if (mode == FIRST_SUCCESS && ((Result<?, ?>) message).isError()) {
+            lastError = message;
+        } else {
+            accepted.add(message);
+        }
+        if (subscriptions[subscriptions.length - 1] != null) check();
+    }
+
+    private synchronized void close(int index) {
+        if (decided || answered[index]) return;
+        answered[index] = true;
+        pending--;
+        if (subscriptions[subscriptions.length - 1] != null) check();
+    }
+
+    private void check() {
+        if (decided) return;
+        if (accepted.size() >= needed) {
+            decided = true;
+            newPromise.send(mode == QUORUM ? new ArrayList<Object>(accepted) : accepted.get(0));
+        } else if (accepted.size() + pending < needed) {
+            decided = true;
+            if (lastError != null) newPromise.send(lastError);
+        } else {
+            return;
+        }
+        newPromise.close();
+        cancelUnanswered();
+    }
+
+    @Override
+    public synchronized void canceled() {
+        decided = true;
+        cancelUnanswered();
+    }
+
+    private void cancelUnanswered() {
+        for (int i = 0; i < sources.length; i++) {
+            if (answered[i]) continue;
+            if (subscriptions[i] != null) subscriptions[i].cancel();
+            sources[i].cancel();
+        }
+    }
+
+    private final class Source implements Listener<Object>, CloseListener {
+        private final int index;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void receive(Object message) {
+            Race.this.receive(index, message);
+        }
+
+        @Override
+        public void close() {
+            Race.this.close(index);
+        }
+    }
+}
@@ -350,7 +350,6 @@ public final class Result<T, E extends Exception> {
         private Deferred.Builder deferredBuilder;
 
         public ChainPromise() {
-            this(new Deferred.Builder());
         }
 
         public ChainPromise(Deferred.Builder deferredBuilder) {
@@ -359,6 +358,7 @@ public final class Result<T, E extends Exception> {
 
         @Override
         protected Promise<Result<T2, E>> error(E error) {
+            if (deferredBuilder == null) return Promise.of(Result.<T2, E>error(error));
             return deferredBuilder.<Result<T2, E>>build().resolve(Result.<T2, E>error(error)).promise();
         }
     }
@@ -0,0 +1,21 @@
+package me.tatarka.ipromise;
+
+/**
+ * A listener's demand for messages, returned by {@link Promise#listen(Listener, long)}. The
+ * listener is only sent as many messages as it has requested.
+ */
+public interface Subscription {
+    /**
+     * Requests more messages. Requests add up, requesting {@link Long#MAX_VALUE} removes the limit.
+     *
+     * @param n the number of messages, must be positive
+     * @throws IllegalArgumentException if n is not positive
+     */
+    public void request(long n);
+
+    /**
+     * Stops sending messages to the listener, its close listener isn't called either. This only
+     * affects this listener, use {@link Promise#cancel()} to cancel the promise itself.
+     */
+    public void cancel();
+}
@@ -0,0 +1,116 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatarka.ipromise.func.Chain;
+
+/**
+ * Listens only to the inner promise for the latest message of the source, see {@link
+ * Promise#switchMap(Chain)}. A new message cancels the previous inner promise, and anything the
+ * previous one still delivers is dropped. The object itself counts the source and the inner
+ * promises that are not done yet, including a canceled one that is still sending a message, the
+ * new promise is closed when that reaches zero.
+ *
+ * @param <T> the message type of the source
+ * @param <R> the message type of the inner promises
+ */
+final class SwitchMap<T, R> extends AtomicInteger implements Listener<T>, CloseListener, CancelToken.Listener {
+    private static final long serialVersionUID = 1L;
+
+    private final Promise<R> newPromise;
+    private final Chain<T, Promise<R>> chain;
+    private volatile Inner current;
+
+    private SwitchMap(Promise<R> newPromise, Chain<T, Promise<R>> chain) {
+        super(1);
+        this.newPromise = newPromise;
+        this.chain = chain;
+    }
+
+    static <T, R> Promise<R> switchMap(Promise<T> source, Chain<T, Promise<R>> chain) {
+        Promise<R> newPromise = new Promise<R>(source.derivedCancelToken(), source.callbackExecutor());
+        SwitchMap<T, R> switchMap = new SwitchMap<T, R>(newPromise, chain);
+        source.register(switchMap, switchMap);
+        newPromise.cancelToken().listen(switchMap);
+        return newPromise;
+    }
+
+    // Called from the source's mailbox, so never concurrently with itself.
+    @Override
+    public void receive(T message) {
+        Inner previous = current;
+        Promise<R> promise = chain.chain(message);
+        incrementAndGet();
+        Inner inner = new Inner(promise);
+        current = inner;
+        if (previous != null) previous.promise.cancel();
+        promise.register(inner, inner);
+        if (promise.isCanceled()) inner.canceled();
+        if (newPromise.isCanceled()) promise.cancel();
+    }
+
+    @Override
+    public void close() {
+        if (decrementAndGet() == 0) newPromise.close();
+    }
+
+    // The new promise shares the source's token.
+    @Override
+    public void canceled() {
+        Inner inner = current;
+        if (inner != null) inner.promise.cancel();
+    }
+
+    /**
+     * Forwards the messages of one inner promise while it is the current one. Like in {@link
+     * FlatMap}, a cancel that arrives while a message is being sent is finished by the send.
+     */
+    private final class Inner extends AtomicInteger implements Listener<R>, WaitingListener {
+        private static final long serialVersionUID = 1L;
+
+        private static final int SENDING = 1;
+        private static final int DONE = 2;
+
+        final Promise<R> promise;
+
+        Inner(Promise<R> promise) {
+            this.promise = promise;
+        }
+
+        // Called from the inner promise's mailbox, so never concurrently with itself.
+        @Override
+        public void receive(R message) {
+            if (current != this || !compareAndSet(0, SENDING)) return;
+            try {
+                newPromise.send(message);
+            } finally {
+                if (addAndGet(-SENDING) == DONE) finish();
+            }
+        }
+
+        @Override
+        public void close() {
+            done();
+        }
+
+        @Override
+        public void canceled() {
+            done();
+        }
+
+        private void done() {
+            for (; ; ) {
+                int s = get();
+                if ((s & DONE) != 0) return;
+                if (compareAndSet(s, s | DONE)) {
+                    if (s == 0) finish();
+                    return;
+                }
+            }
+        }
+
+        private void finish() {
+            if (SwitchMap.this.decrementAndGet() == 0) newPromise.close();
+        }
+    }
+}
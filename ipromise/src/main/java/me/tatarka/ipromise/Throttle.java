@@ -0,0 +1,110 @@
+package me.tatarka.ipromise;
+
+/**
+ * Thins out the messages of a source on the shared timer for {@link Promise#debounce(long,
+ * java.util.concurrent.TimeUnit)}, {@link Promise#throttleLatest(long,
+ * java.util.concurrent.TimeUnit)} and {@link Promise#sample(long, java.util.concurrent.TimeUnit)}.
+ * Only the latest message that is held back is kept, and it is always sent eventually, at the
+ * latest when the source closes.
+ *
+ * <p> Like {@link Batcher}, the source's listener and the timer share a lock, so it doesn't matter
+ * which threads the source sends from, and there is at most one pending timeout that is re-armed
+ * from the timer thread instead of for every message. </p>
+ *
+ * @param <T> the message type
+ */
+final class Throttle<T> extends HashedWheelTimer.Timeout implements Listener<T>, CloseListener {
+    static final int DEBOUNCE = 0;
+    static final int THROTTLE_LATEST = 1;
+    static final int SAMPLE = 2;
+
+    // Stands in for no held back message, since null is a valid message.
+    private static final Object NONE = new Object();
+
+    private final Promise<T> newPromise;
+    private final int mode;
+    private final long nanos;
+    private final long start = System.nanoTime();
+    // Guarded by this.
+    private Object latest = NONE;
+    private long lastMessage;
+    private boolean timerPending;
+    private boolean closed;
+
+    private Throttle(Promise<T> newPromise, int mode, long nanos) {
+        this.newPromise = newPromise;
+        this.mode = mode;
+        this.nanos = nanos;
+    }
+
+    static <T> Promise<T> throttle(Promise<T> source, int mode, long nanos) {
+        Promise<T> newPromise = new Promise<T>(source.derivedCancelToken(), source.callbackExecutor());
+        Throttle<T> throttle = new Throttle<T>(newPromise, mode, nanos);
+        source.register(throttle, throttle);
+        return newPromise;
+    }
+
+    @Override
+    public synchronized void receive(T message) {
+        switch (mode) {
+            case DEBOUNCE:
+                latest = message;
+                lastMessage = System.nanoTime();
+                if (!timerPending) arm(nanos);
+                break;
+            case THROTTLE_LATEST:
+                if (timerPending) {
+                    latest = message;
+                } else {
+                    // Nothing was sent within the window, so this one can go right away.
+                    newPromise.send(message);
+                    arm(nanos);
+                }
+                break;
+            case SAMPLE:
+                latest = message;
+                if (!timerPending) arm(nanos - (System.nanoTime() - start) % nanos);
+                break;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            cancel();
+            flush();
+        }
+        newPromise.close();
+    }
+
+    @Override
+    synchronized void run() {
+        timerPending = false;
+        if (closed || !newPromise.isRunning()) return;
+        if (mode == DEBOUNCE) {
+            long remaining = lastMessage + nanos - System.nanoTime();
+            if (remaining > 0) {
+                arm(remaining);
+                return;
+            }
+        }
+        if (latest == NONE) return;
+        flush();
+        // A throttled message starts a new window, like one that went straight through.
+        if (mode == THROTTLE_LATEST) arm(nanos);
+    }
+
+    private void arm(long delayNanos) {
+        timerPending = true;
+        HashedWheelTimer.shared().schedule(this, delayNanos);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flush() {
+        if (latest == NONE) return;
+        T message = (T) latest;
+        latest = NONE;
+        newPromise.send(message);
+    }
+}
@@ -1,32 +1,39 @@
 package me.tatarka.ipromise;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import me.tatarka.ipromise.buffer.PromiseBuffer;
 
 class ValuePromise<T> extends Promise<T> {
-    private PromiseBuffer<T> buffer;
+    private final PromiseBuffer<T> buffer;
 
     ValuePromise(PromiseBuffer<T> buffer, CancelToken cancelToken, Executor callbackExecutor) {
         super(cancelToken, callbackExecutor);
         this.buffer = buffer;
-        cancelToken.listen(new CancelToken.Listener() {
-            @Override
-            public void canceled() {
-                listeners.clear();
-            }
-        });
     }
 
+    // A PromiseBuffer is not thread-safe, so updating it and appending to the mailbox log happen
+    // together. That way a new listener either gets a message replayed from the buffer or from
+    // its mailbox, never both. Listeners are always run outside of the lock.
     @Override
-    protected void onSend(T message) {
-        buffer.add(message);
+    void deliver(T message) {
+        Mailbox<?>[] mailboxes;
+        synchronized (buffer) {
+            buffer.add(message);
+            mailboxes = append(message);
+        }
+        dispatch(mailboxes);
     }
 
     @Override
-    protected void onListen(Listener<T> listener) {
-        for (T message : buffer) {
-            dispatch(callbackExecutor, listener, message);
+    void register(Mailbox<T> mailbox) {
+        synchronized (buffer) {
+            List<T> replay = new ArrayList<T>();
+            for (T message : buffer) replay.add(message);
+            subscribe(mailbox, replay.isEmpty() ? null : replay.toArray());
         }
+        mailbox.scheduleIfPending();
     }
 }
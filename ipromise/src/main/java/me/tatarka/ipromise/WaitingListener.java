@@ -0,0 +1,15 @@
+package me.tatarka.ipromise;
+
+/**
+ * A close listener that also has to know when the {@link Promise} is canceled, since a canceled
+ * promise delivers nothing and may never close. This is how a thread blocked on the promise is
+ * woken up and how an operator waiting for an inner promise learns that it is done. The promise
+ * calls {@link #canceled()} directly instead of going through the {@link CancelToken}, so nothing
+ * is left registered on the token afterwards.
+ *
+ * @see Awaiter
+ * @see PromiseIterator
+ */
+interface WaitingListener extends CloseListener {
+    void canceled();
+}
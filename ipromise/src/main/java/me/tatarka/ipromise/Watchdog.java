@@ -0,0 +1,52 @@
+package me.tatarka.ipromise;
+
+/**
+ * Cancels a {@code Promise} for {@link Promise#timeout(long, java.util.concurrent.TimeUnit)} once
+ * the source goes too long without a message. A message only records when it arrived, the single
+ * timeout is re-armed for the rest of the wait when it fires early, so a busy stream doesn't touch
+ * the timer at all.
+ *
+ * @param <T> the message type
+ */
+final class Watchdog<T> extends HashedWheelTimer.Timeout implements Listener<T>, CloseListener {
+    private final Promise<T> newPromise;
+    private final long timeoutNanos;
+    private volatile long lastMessage;
+
+    private Watchdog(Promise<T> newPromise, long timeoutNanos) {
+        this.newPromise = newPromise;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    static <T> Promise<T> timeout(Promise<T> source, long timeoutNanos) {
+        Promise<T> newPromise = new Promise<T>(source.derivedCancelToken(), source.callbackExecutor());
+        Watchdog<T> watchdog = new Watchdog<T>(newPromise, timeoutNanos);
+        watchdog.lastMessage = System.nanoTime();
+        HashedWheelTimer.shared().schedule(watchdog, timeoutNanos);
+        source.register(watchdog, watchdog);
+        return newPromise;
+    }
+
+    @Override
+    public void receive(T message) {
+        lastMessage = System.nanoTime();
+        newPromise.send(message);
+    }
+
+    @Override
+    public void close() {
+        cancel();
+        newPromise.close();
+    }
+
+    @Override
+    void run() {
+        if (!newPromise.isRunning()) return;
+        long remaining = lastMessage + timeoutNanos - System.nanoTime();
+        if (remaining <= 0) {
+            newPromise.cancel();
+        } else {
+            HashedWheelTimer.shared().schedule(this, remaining);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package me.tatarka.ipromise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import me.tatarka.ipromise.func.Map;
+
+/**
+ * Pairs up the messages of several promises by position, see {@link Promise#zip(Map,
+ * Promise[])}. Each source has one slot and is listened to with a demand of one, so it can't send
+ * again before its slot has been used. The source that fills the last slot starts a drain, which
+ * sends the combination, empties the slots and requests the next message from every source. No
+ * lock is involved, the object itself is the work-in-progress counter of the drain.
+ *
+ * <p> The new promise closes once a source closes with an empty slot, since nothing can be paired
+ * with it anymore. A close goes through the same drain, so it can never overtake a combination
+ * that is still being sent. A combiner that throws cancels the new promise, and with it the
+ * sources, since the messages it was given are gone. The exception is rethrown to the sender of
+ * the message that completed the combination. </p>
+ *
+ * @param <R> the type of the combination
+ */
+final class Zip<R> extends AtomicInteger {
+    private static final long serialVersionUID = 1L;
+
+    private static final Object EMPTY = new Object();
+
+    private final Promise<R> newPromise;
+    private final Map<Object[], R> combiner;
+    private final AtomicReferenceArray<Object> slots;
+    private final AtomicInteger filled = new AtomicInteger();
+    private final Subscription[] subscriptions;
+    // Written before sourceClosed is set, so the drain sees them once it sees that.
+    private final boolean[] closed;
+    private volatile boolean sourceClosed;
+    // Only touched from the drain.
+    private boolean finished;
+
+    private Zip(Promise<R> newPromise, Map<Object[], R> combiner, int size) {
+        this.newPromise = newPromise;
+        this.combiner = combiner;
+        this.slots = new AtomicReferenceArray<Object>(size);
+        this.subscriptions = new Subscription[size];
+        this.closed = new boolean[size];
+        for (int i = 0; i < size; i++) slots.set(i, EMPTY);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <R> Promise<R> zip(Map<Object[], R> combiner, Promise<?>[] promises) {
+        if (promises.length == 0) return Promise.empty();
+        Promise<R> newPromise = new Promise<R>();
+        Zip<R> zip = new Zip<R>(newPromise, combiner, promises.length);
+        for (int i = 0; i < promises.length; i++) {
+            CancelToken.join(newPromise.cancelToken(), promises[i].cancelToken());
+            Zip<R>.Source source = zip.new Source(i);
+            // Nothing is requested until every subscription is known, the last source may be
+            // delivered to right away and has to request from all of them.
+            zip.subscriptions[i] = ((Promise<Object>) promises[i]).listen(source, source, 0);
+        }
+        for (Subscription subscription : zip.subscriptions) subscription.request(1);
+        return newPromise;
+    }
+
+    private void receive(int index, Object message) {
+        slots.set(index, message);
+        if (filled.incrementAndGet() == subscriptions.length) drain();
+    }
+
+    private void close(int index) {
+        closed[index] = true;
+        sourceClosed = true;
+        drain();
+    }
+
+    private void drain() {
+        if (getAndIncrement() != 0) return;
+        int missed = 1;
+        for (; ; ) {
+            if (!finished) {
+                if (filled.get() == subscriptions.length) {
+                    // All sources are waiting for demand, so nothing else touches the slots now.
+                    Object[] values = new Object[subscriptions.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = slots.get(i);
+                        slots.set(i, EMPTY);
+                    }
+                    filled.set(0);
+                    R combination;
+                    try {
+                        combination = combiner.map(values);
+                    } catch (RuntimeException e) {
+                        fail();
+                        throw e;
+                    }
+                    newPromise.send(combination);
+                    // A source that closed meanwhile is seen below. Requesting here may deliver
+                    // right away, that only adds to the counter and is handled by this loop.
+                    if (!sourceClosed) {
+                        for (Subscription subscription : subscriptions) subscription.request(1);
+                    }
+                }
+                if (sourceClosed && closedWithEmptySlot()) {
+                    finished = true;
+                    newPromise.close();
+                    for (Subscription subscription : subscriptions) subscription.cancel();
+                }
+            }
+            missed = addAndGet(-missed);
+            if (missed == 0) break;
+        }
+    }
+
+    private void fail() {
+        finished = true;
+        // Nothing is left to drain, later drains have to be able to start and see finished.
+        set(0);
+        newPromise.cancel();
+        for (Subscription subscription : subscriptions) subscription.cancel();
+    }
+
+    // A source whose slot is still full waits for the combination it's in, which ends the zip.
+    private boolean closedWithEmptySlot() {
+        for (int i = 0; i < closed.length; i++) {
+            if (closed[i] && slots.get(i) == EMPTY) return true;
+        }
+        return false;
+    }
+
+    private final class Source implements Listener<Object>, CloseListener {
+        private final int index;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void receive(Object message) {
+            Zip.this.receive(index, message);
+        }
+
+        @Override
+        public void close() {
+            Zip.this.close(index);
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package me.tatarka.ipromise.buffer;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.RandomAccess;
 
@@ -73,13 +70,14 @@ public class RingPromiseBuffer<T> implements PromiseBuffer<T> {
     private static class CircularArrayList<E> extends AbstractList<E> implements RandomAccess {
 
         private final int n; // buffer length
-        private final List<E> buf; // a List implementing RandomAccess
+        private final E[] buf;
         private int head = 0;
         private int tail = 0;
 
+        @SuppressWarnings("unchecked")
         public CircularArrayList(int capacity) {
             n = capacity + 1;
-            buf = new ArrayList<E>(Collections.nCopies(n, (E) null));
+            buf = (E[]) new Object[n];
         }
 
         public int capacity() {
@@ -113,7 +111,7 @@ public class RingPromiseBuffer<T> implements PromiseBuffer<T> {
             if (i < 0 || i >= size()) {
                 throw new IndexOutOfBoundsException();
             }
-            return buf.get(wrapIndex(head + i));
+            return buf[wrapIndex(head + i)];
         }
 
         @Override
@@ -121,7 +119,10 @@ public class RingPromiseBuffer<T> implements PromiseBuffer<T> {
             if (i < 0 || i >= size()) {
                 throw new IndexOutOfBoundsException();
             }
-            return buf.set(wrapIndex(head + i), e);
+            int index = wrapIndex(head + i);
+            E old = buf[index];
+            buf[index] = e;
+            return old;
         }
 
         @Override
@@ -0,0 +1,95 @@
+package me.tatarka.ipromise.cache;
+
+/**
+ * A snapshot of the counters of a {@link PromiseCache}. The counters are updated without a lock,
+ * so a snapshot taken while the cache is in use may be off by the operations that were running at
+ * the time.
+ */
+public final class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+
+    CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+               long totalLoadTime, long evictionCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * Returns how often a lookup found a value or a load that was already running.
+     */
+    public long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns how often a lookup had to start a load, or found nothing for {@link
+     * PromiseCache#getIfPresent(Object)}.
+     */
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the fraction of lookups that were hits, or 1 if there were none.
+     */
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1 : (double) hitCount / requests;
+    }
+
+    /**
+     * Returns how many loads and refreshes sent a value.
+     */
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * Returns how many loads and refreshes closed, or were canceled, without a value.
+     */
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * Returns the nanoseconds spent waiting for successful loads and refreshes, from starting the
+     * task to its value.
+     */
+    public long totalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * Returns the average nanoseconds a successful load took, or 0 if there were none.
+     */
+    public double averageLoadPenalty() {
+        return loadSuccessCount == 0 ? 0 : (double) totalLoadTime / loadSuccessCount;
+    }
+
+    /**
+     * Returns how many entries were evicted to keep the cache within its size or weight. Expired
+     * and invalidated entries are not counted.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats(hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTime=" + totalLoadTime +
+                ", evictionCount=" + evictionCount + ")";
+    }
+}
@@ -0,0 +1,72 @@
+package me.tatarka.ipromise.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import me.tatarka.ipromise.Deferred;
+
+/**
+ * A cache entry. The fields up to {@link #weight} are shared between threads, the ones after
+ * belong to the {@link Policy} and are only touched under the eviction lock.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class Node<K, V> {
+    static final int LOADING = 0;
+    static final int LOADED = 1;
+    // Removed from the map, or never made it in.
+    static final int DEAD = 2;
+
+    static final int UNLINKED = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> STATUS =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "status");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> REFRESHING =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+    final K key;
+    // Callers that ask while the first load is running wait on it.
+    final Deferred<V> loading;
+    volatile int status;
+    volatile V value;
+    volatile long writeTime;
+    // The weight of the current value, the policy catches up with it on the next write event.
+    volatile int newWeight;
+    private volatile int refreshing;
+
+    // Guarded by the eviction lock.
+    int weight;
+    int queue;
+    Node<K, V> prev;
+    Node<K, V> next;
+    Node<K, V> writePrev;
+    Node<K, V> writeNext;
+
+    Node(K key, Deferred<V> loading) {
+        this.key = key;
+        this.loading = loading;
+    }
+
+    boolean loaded() {
+        return STATUS.compareAndSet(this, LOADING, LOADED);
+    }
+
+    /**
+     * Marks the node as removed and returns if it wasn't already.
+     */
+    boolean retire() {
+        return STATUS.getAndSet(this, DEAD) != DEAD;
+    }
+
+    boolean startRefresh() {
+        return refreshing == 0 && REFRESHING.compareAndSet(this, 0, 1);
+    }
+
+    void endRefresh() {
+        refreshing = 0;
+    }
+}
@@ -0,0 +1,142 @@
+package me.tatarka.ipromise.cache;
+
+/**
+ * Decides which entries to evict, as a segmented LRU. A new entry starts out in the probation
+ * segment and is only moved to the protected segment when it is read again, so a burst of entries
+ * that are read once can't push out the ones that are read all the time. The protected segment
+ * gets most of the capacity, when it is over its share its least recently used entry goes back to
+ * probation. Victims are taken from the end of probation first.
+ *
+ * <p> It also keeps the entries in the order they were written, so expired entries can be found at
+ * the front without a scan. It isn't thread-safe, the cache only uses it under its eviction lock.
+ * </p>
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class Policy<K, V> {
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    // Each list is circular around a sentinel, its next is the least recently used entry.
+    private final Node<K, V> probation = sentinel();
+    private final Node<K, V> protectedSegment = sentinel();
+    private final Node<K, V> writeOrder = sentinel();
+    private long weight;
+    private long protectedWeight;
+
+    Policy(long maxWeight) {
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+    }
+
+    private static <K, V> Node<K, V> sentinel() {
+        Node<K, V> sentinel = new Node<K, V>(null, null);
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        sentinel.writePrev = sentinel;
+        sentinel.writeNext = sentinel;
+        return sentinel;
+    }
+
+    /**
+     * Called after an entry was loaded, refreshed or removed.
+     */
+    void write(Node<K, V> node) {
+        if (node.status == Node.DEAD) {
+            remove(node);
+            return;
+        }
+        int delta = node.newWeight - node.weight;
+        node.weight = node.newWeight;
+        weight += delta;
+        if (node.queue == Node.UNLINKED) {
+            node.queue = Node.PROBATION;
+            link(probation, node);
+        } else {
+            unlinkWrite(node);
+            if (node.queue == Node.PROTECTED) protectedWeight += delta;
+        }
+        linkWrite(node);
+    }
+
+    /**
+     * Called for a read of an entry. Reads are only sampled, so this is not called for every one.
+     */
+    void read(Node<K, V> node) {
+        // The write that links it may still be pending, or it is already gone.
+        if (node.queue == Node.UNLINKED || node.status == Node.DEAD) return;
+        unlink(node);
+        if (node.queue == Node.PROBATION) {
+            node.queue = Node.PROTECTED;
+            protectedWeight += node.weight;
+            while (protectedWeight > maxProtectedWeight && protectedSegment.next != protectedSegment) {
+                Node<K, V> demoted = protectedSegment.next;
+                unlink(demoted);
+                demoted.queue = Node.PROBATION;
+                protectedWeight -= demoted.weight;
+                link(probation, demoted);
+            }
+        }
+        link(protectedSegment, node);
+    }
+
+    void remove(Node<K, V> node) {
+        if (node.queue == Node.UNLINKED) return;
+        unlink(node);
+        unlinkWrite(node);
+        weight -= node.weight;
+        if (node.queue == Node.PROTECTED) protectedWeight -= node.weight;
+        node.queue = Node.UNLINKED;
+    }
+
+    /**
+     * Returns the entry to evict next, or null if the cache isn't over its weight.
+     */
+    Node<K, V> victim() {
+        if (weight <= maxWeight) return null;
+        if (probation.next != probation) return probation.next;
+        if (protectedSegment.next != protectedSegment) return protectedSegment.next;
+        return null;
+    }
+
+    /**
+     * Returns the oldest entry if it was written at least {@code expireNanos} before now.
+     */
+    Node<K, V> expired(long now, long expireNanos) {
+        Node<K, V> oldest = writeOrder.writeNext;
+        if (oldest == writeOrder || now - oldest.writeTime < expireNanos) return null;
+        return oldest;
+    }
+
+    private static <K, V> void link(Node<K, V> list, Node<K, V> node) {
+        Node<K, V> last = list.prev;
+        node.prev = last;
+        node.next = list;
+        last.next = node;
+        list.prev = node;
+    }
+
+    private static <K, V> void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private void linkWrite(Node<K, V> node) {
+        Node<K, V> last = writeOrder.writePrev;
+        node.writePrev = last;
+        node.writeNext = writeOrder;
+        last.writeNext = node;
+        writeOrder.writePrev = node;
+    }
+
+    private static <K, V> void unlinkWrite(Node<K, V> node) {
+        node.writePrev.writeNext = node.writeNext;
+        node.writeNext.writePrev = node.writePrev;
+        node.writePrev = null;
+        node.writeNext = null;
+    }
+}
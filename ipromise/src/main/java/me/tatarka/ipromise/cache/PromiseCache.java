@@ -0,0 +1,505 @@
+package me.tatarka.ipromise.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Subscription;
+import me.tatarka.ipromise.func.Map;
+import me.tatarka.ipromise.task.Task;
+
+/**
+ * A cache whose values are loaded by a {@link Task}. The value of a key is the first message of
+ * its task. A lookup while the task is still running shares it instead of starting another, and a
+ * task that closes without a message isn't cached, so the next lookup tries again.
+ *
+ * <p> The cache can be bounded by a number of entries or a total weight, evicting as a segmented
+ * LRU: entries that are read more than once are protected from a burst of entries that are only
+ * read once. Entries can expire a fixed time after they were loaded, and can be refreshed ahead of
+ * that, in which case the old value is still returned until the new one is loaded. </p>
+ *
+ * <p> Reads don't take a lock. They are recorded in a buffer that may drop some of them and
+ * replayed on the eviction policy by whichever thread gets the lock next, so many threads can read
+ * the same keys at once. </p>
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ * @see Builder
+ */
+public final class PromiseCache<K, V> {
+    private final Map<K, Task<V>> loader;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long expireNanos;
+    private final long refreshNanos;
+    private final Ticker ticker;
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Policy<K, V> policy;
+    private final ReadBuffer<K, V> readBuffer = new ReadBuffer<K, V>();
+    private final ConcurrentLinkedQueue<Node<K, V>> writeBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter loadSuccesses = new StripedCounter();
+    private final StripedCounter loadFailures = new StripedCounter();
+    private final StripedCounter loadTime = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    private PromiseCache(Builder<K, V> builder, Map<K, Task<V>> loader) {
+        this.loader = loader;
+        this.weigher = builder.weigher;
+        this.expireNanos = builder.expireNanos;
+        this.refreshNanos = builder.refreshNanos;
+        this.ticker = builder.ticker;
+        this.policy = new Policy<K, V>(builder.maxWeight);
+    }
+
+    /**
+     * Returns a {@code Promise} of the value for the key. If it is cached this is a {@code Promise}
+     * that already has the value, otherwise it receives the value once it is loaded. Canceling the
+     * returned {@code Promise} doesn't cancel the load, another lookup may be waiting for it too.
+     *
+     * @param key the key
+     * @return the {@code Promise} of the value
+     */
+    public Promise<V> get(K key) {
+        if (key == null) throw new NullPointerException();
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            switch (node.status) {
+                case Node.LOADED:
+                    long now = ticker.read();
+                    if (expireNanos > 0 && now - node.writeTime >= expireNanos) {
+                        remove(node);
+                        node = null;
+                        break;
+                    }
+                    hits.increment();
+                    afterRead(node);
+                    // Read before a refresh that finishes right away could replace it.
+                    V value = node.value;
+                    if (refreshNanos > 0 && now - node.writeTime >= refreshNanos && node.startRefresh()) {
+                        refresh(node);
+                    }
+                    return Promise.of(value);
+                case Node.LOADING:
+                    hits.increment();
+                    return view(node.loading.promise());
+            }
+        }
+        Node<K, V> created = new Node<K, V>(key, new Deferred<V>());
+        boolean added = node == null ? map.putIfAbsent(key, created) == null : map.replace(key, node, created);
+        // Someone else was quicker, use theirs.
+        if (!added) return get(key);
+        misses.increment();
+        load(created);
+        return view(created.loading.promise());
+    }
+
+    /**
+     * Returns the value for the key if it is cached, without loading it.
+     *
+     * @param key the key
+     * @return the value, or null if there is none
+     */
+    public V getIfPresent(K key) {
+        if (key == null) throw new NullPointerException();
+        Node<K, V> node = map.get(key);
+        if (node == null || node.status != Node.LOADED) {
+            misses.increment();
+            return null;
+        }
+        if (expireNanos > 0 && ticker.read() - node.writeTime >= expireNanos) {
+            remove(node);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        afterRead(node);
+        return node.value;
+    }
+
+    /**
+     * Removes the value for the key. A load that is running for it still delivers its value to
+     * those waiting for it, but it isn't cached.
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        if (key == null) throw new NullPointerException();
+        Node<K, V> node = map.get(key);
+        if (node != null) remove(node);
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void invalidateAll() {
+        for (Node<K, V> node : map.values()) remove(node);
+    }
+
+    /**
+     * Returns the number of keys that have a value or a running load. Evictions may be a little
+     * behind, so this can be over the maximum for a moment.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns a snapshot of the counters.
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                loadTime.sum(), evictions.sum());
+    }
+
+    private void load(final Node<K, V> node) {
+        final long start = ticker.read();
+        Promise<V> promise;
+        try {
+            promise = loader.map(node.key).start();
+        } catch (RuntimeException e) {
+            loadFailed(node);
+            throw e;
+        }
+        new LoadListener(promise) {
+            @Override
+            void loaded(V value) {
+                long now = ticker.read();
+                loadSuccesses.increment();
+                loadTime.add(now - start);
+                node.value = value;
+                node.writeTime = now;
+                node.newWeight = weigh(node.key, value);
+                if (node.loaded()) afterWrite(node);
+                node.loading.resolve(value);
+            }
+
+            @Override
+            void failed() {
+                loadFailed(node);
+            }
+        }.listen();
+    }
+
+    private void loadFailed(Node<K, V> node) {
+        loadFailures.increment();
+        map.remove(node.key, node);
+        node.retire();
+        node.loading.close();
+    }
+
+    private void refresh(final Node<K, V> node) {
+        final long start = ticker.read();
+        Promise<V> promise;
+        try {
+            promise = loader.map(node.key).start();
+        } catch (RuntimeException e) {
+            loadFailures.increment();
+            node.endRefresh();
+            return;
+        }
+        new LoadListener(promise) {
+            @Override
+            void loaded(V value) {
+                long now = ticker.read();
+                loadSuccesses.increment();
+                loadTime.add(now - start);
+                if (node.status == Node.LOADED) {
+                    node.value = value;
+                    node.newWeight = weigh(node.key, value);
+                    node.writeTime = now;
+                    afterWrite(node);
+                }
+                node.endRefresh();
+            }
+
+            @Override
+            void failed() {
+                loadFailures.increment();
+                node.endRefresh();
+            }
+        }.listen();
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null) return 1;
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) throw new IllegalStateException("Negative weight " + weight + " for " + key);
+        return weight;
+    }
+
+    private void remove(Node<K, V> node) {
+        map.remove(node.key, node);
+        if (node.retire()) afterWrite(node);
+    }
+
+    private void afterRead(Node<K, V> node) {
+        if (readBuffer.offer(node)) maintain();
+    }
+
+    private void afterWrite(Node<K, V> node) {
+        writeBuffer.add(node);
+        maintain();
+    }
+
+    /**
+     * Catches the policy up with the buffered reads and writes and evicts what it must. If another
+     * thread is already at it, that thread sees the new writes before it lets go of the lock.
+     */
+    private void maintain() {
+        do {
+            if (!evictionLock.tryLock()) return;
+            try {
+                readBuffer.drainTo(policy);
+                Node<K, V> node;
+                while ((node = writeBuffer.poll()) != null) policy.write(node);
+                if (expireNanos > 0) {
+                    long now = ticker.read();
+                    while ((node = policy.expired(now, expireNanos)) != null) evict(node);
+                }
+                while ((node = policy.victim()) != null) {
+                    evict(node);
+                    evictions.increment();
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    private void evict(Node<K, V> node) {
+        policy.remove(node);
+        map.remove(node.key, node);
+        node.retire();
+    }
+
+    /**
+     * Returns a {@code Promise} of the shared one with its own {@link CancelToken}, so that one
+     * caller can't cancel it for everyone.
+     */
+    private static <V> Promise<V> view(Promise<V> shared) {
+        final Deferred<V> deferred = new Deferred<V>(new CancelToken());
+        final Subscription subscription = shared.listen(new Listener<V>() {
+            @Override
+            public void receive(V message) {
+                deferred.send(message);
+            }
+        }, new CloseListener() {
+            @Override
+            public void close() {
+                deferred.close();
+            }
+        }, Long.MAX_VALUE);
+        deferred.promise().cancelToken().listen(new CancelToken.Listener() {
+            @Override
+            public void canceled() {
+                subscription.cancel();
+            }
+        });
+        return deferred.promise();
+    }
+
+    /**
+     * Takes the first message of a load as the value. Closing or being canceled without one is a
+     * failure.
+     */
+    private abstract class LoadListener implements Listener<V>, CloseListener, CancelToken.Listener {
+        private final Promise<V> promise;
+        private boolean done;
+
+        LoadListener(Promise<V> promise) {
+            this.promise = promise;
+        }
+
+        void listen() {
+            promise.listen(this, this, 1);
+            promise.cancelToken().listen(this);
+        }
+
+        abstract void loaded(V value);
+
+        abstract void failed();
+
+        @Override
+        public void receive(V message) {
+            if (finish()) loaded(message);
+        }
+
+        @Override
+        public void close() {
+            if (finish()) failed();
+        }
+
+        @Override
+        public void canceled() {
+            if (finish()) failed();
+        }
+
+        private synchronized boolean finish() {
+            if (done) return false;
+            done = true;
+            return true;
+        }
+    }
+
+    /**
+     * Gives the weight of a value for {@link Builder#maximumWeight(long, Weigher)}.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public interface Weigher<K, V> {
+        /**
+         * Returns the weight of the value, which must not be negative.
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * Gives the time for expiring and refreshing values, see {@link Builder#ticker(Ticker)}.
+     */
+    public interface Ticker {
+        /**
+         * A {@code Ticker} that reads {@link System#nanoTime()}.
+         */
+        Ticker SYSTEM = new Ticker() {
+            @Override
+            public long read() {
+                return System.nanoTime();
+            }
+        };
+
+        /**
+         * Returns the time in nanoseconds. Like {@link System#nanoTime()} it is only meaningful
+         * as the difference between two reads.
+         */
+        long read();
+    }
+
+    /**
+     * A builder to configure and construct caches. Like {@link Deferred.Builder}, the {@code
+     * Builder} is immutable and all methods return a new instance.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public static class Builder<K, V> {
+        private long maxWeight = Long.MAX_VALUE;
+        private Weigher<? super K, ? super V> weigher;
+        private long expireNanos;
+        private long refreshNanos;
+        private Ticker ticker = Ticker.SYSTEM;
+
+        /**
+         * Constructs a new {@code Builder} for an unbounded cache whose values never expire.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Constructs a new {@code Builder} that inherits from the given {@code Builder}.
+         *
+         * @param builder the builder
+         */
+        public Builder(Builder<K, V> builder) {
+            maxWeight = builder.maxWeight;
+            weigher = builder.weigher;
+            expireNanos = builder.expireNanos;
+            refreshNanos = builder.refreshNanos;
+            ticker = builder.ticker;
+        }
+
+        /**
+         * Sets the most entries the cache keeps.
+         *
+         * @param maximumSize the most entries
+         * @return the new builder
+         */
+        public Builder<K, V> maximumSize(long maximumSize) {
+            if (maximumSize < 0) throw new IllegalArgumentException("maximumSize must not be negative, was " + maximumSize);
+            Builder<K, V> builder = new Builder<K, V>(this);
+            builder.maxWeight = maximumSize;
+            builder.weigher = null;
+            return builder;
+        }
+
+        /**
+         * Sets the most total weight of the values the cache keeps.
+         *
+         * @param maximumWeight the most total weight
+         * @param weigher       gives the weight of each value
+         * @return the new builder
+         */
+        public Builder<K, V> maximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+            if (maximumWeight < 0) throw new IllegalArgumentException("maximumWeight must not be negative, was " + maximumWeight);
+            if (weigher == null) throw new NullPointerException();
+            Builder<K, V> builder = new Builder<K, V>(this);
+            builder.maxWeight = maximumWeight;
+            builder.weigher = weigher;
+            return builder;
+        }
+
+        /**
+         * Sets how long after it was loaded a value expires. A lookup after that loads it again.
+         *
+         * @param duration the time until a value expires
+         * @param unit     the unit of the duration
+         * @return the new builder
+         */
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            if (duration <= 0) throw new IllegalArgumentException("duration must be positive, was " + duration);
+            Builder<K, V> builder = new Builder<K, V>(this);
+            builder.expireNanos = unit.toNanos(duration);
+            return builder;
+        }
+
+        /**
+         * Sets how long after it was loaded a value is refreshed. The first lookup after that
+         * starts loading it again in the background, and the old value is still returned until
+         * the new one is loaded. If the refresh fails the old value is kept. To be useful this
+         * should be shorter than {@link #expireAfterWrite(long, TimeUnit)}.
+         *
+         * @param duration the time until a value is refreshed
+         * @param unit     the unit of the duration
+         * @return the new builder
+         */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+            if (duration <= 0) throw new IllegalArgumentException("duration must be positive, was " + duration);
+            Builder<K, V> builder = new Builder<K, V>(this);
+            builder.refreshNanos = unit.toNanos(duration);
+            return builder;
+        }
+
+        /**
+         * Sets the time source used to expire and refresh values, {@link Ticker#SYSTEM} by
+         * default. This is mostly useful to control the time in tests.
+         *
+         * @param ticker the time source
+         * @return the new builder
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            if (ticker == null) throw new NullPointerException();
+            Builder<K, V> builder = new Builder<K, V>(this);
+            builder.ticker = ticker;
+            return builder;
+        }
+
+        /**
+         * Builds a new {@link PromiseCache}.
+         *
+         * @param loader the function that returns the task that loads the value of a key
+         * @return the new {@code PromiseCache}
+         */
+        public PromiseCache<K, V> build(Map<K, Task<V>> loader) {
+            if (loader == null) throw new NullPointerException();
+            return new PromiseCache<K, V>(this, loader);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package me.tatarka.ipromise.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records which entries were read, so that the {@link Policy} can be updated later under the
+ * eviction lock instead of on every read. Each stripe is a small ring buffer. A read that finds
+ * its stripe full, or loses a race for a slot, is simply dropped, the policy only needs a sample
+ * of the reads to tell the popular entries apart.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class ReadBuffer<K, V> {
+    private static final int SIZE = 16;
+    private static final int MASK = SIZE - 1;
+    // Ask for a drain once a stripe is this full.
+    private static final int DRAIN_THRESHOLD = SIZE / 2;
+    private static final int PAD = 8;
+
+    private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>(Stripes.COUNT * SIZE);
+    private final AtomicLongArray writes = new AtomicLongArray(Stripes.COUNT * PAD);
+    // Only advanced by the drain.
+    private final AtomicLongArray reads = new AtomicLongArray(Stripes.COUNT * PAD);
+
+    /**
+     * Records the read, returns if the buffer should be drained.
+     */
+    boolean offer(Node<K, V> node) {
+        int stripe = Stripes.current();
+        long tail = writes.get(stripe * PAD);
+        long size = tail - reads.get(stripe * PAD);
+        if (size >= SIZE) return true;
+        if (writes.compareAndSet(stripe * PAD, tail, tail + 1)) {
+            slots.lazySet(stripe * SIZE + (int) (tail & MASK), node);
+        }
+        return size + 1 >= DRAIN_THRESHOLD;
+    }
+
+    /**
+     * Replays the recorded reads on the policy. Must be called under the eviction lock.
+     */
+    void drainTo(Policy<K, V> policy) {
+        for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+            long head = reads.get(stripe * PAD);
+            long tail = writes.get(stripe * PAD);
+            for (; head < tail; head++) {
+                int index = stripe * SIZE + (int) (head & MASK);
+                Node<K, V> node = slots.get(index);
+                // Claimed but not written yet, pick it up next time.
+                if (node == null) break;
+                slots.lazySet(index, null);
+                policy.read(node);
+            }
+            reads.lazySet(stripe * PAD, head);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package me.tatarka.ipromise.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without fighting over one cache line. Each stripe has
+ * a line to itself, reading the total sums them up.
+ */
+final class StripedCounter {
+    // Longs per cache line, so neighboring stripes don't share one.
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(Stripes.COUNT * PAD);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long value) {
+        cells.getAndAdd(Stripes.current() * PAD, value);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < Stripes.COUNT; i++) sum += cells.get(i * PAD);
+        return sum;
+    }
+}
@@ -0,0 +1,18 @@
+package me.tatarka.ipromise.cache;
+
+/**
+ * Picks a stripe for the current thread, so threads that hit the cache at the same time mostly
+ * update different memory.
+ */
+final class Stripes {
+    static final int COUNT = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1, 64);
+
+    private Stripes() {
+    }
+
+    static int current() {
+        long id = Thread.currentThread().getId();
+        // Fibonacci hashing, thread ids are mostly small and sequential.
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (COUNT - 1);
+    }
+}
@@ -56,7 +56,10 @@ public final class Filters {
 
     /**
      * Filters out items so that you will never get two consecutive ones within the given timespan.
-     * This is useful, if you want to sample a source at a lower rate.
+     * This is useful, if you want to sample a source at a lower rate. Since it can only drop
+     * items, the last one is lost if it comes too soon after the one before, use {@link
+     * me.tatarka.ipromise.Promise#throttleLatest(long, TimeUnit)} if you need it. The filter is not
+     * thread-safe.
      *
      * @param timespan the timespan
      * @param unit     the unit of the timespan
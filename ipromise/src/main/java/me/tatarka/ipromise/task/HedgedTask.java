@@ -0,0 +1,183 @@
+package me.tatarka.ipromise.task;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+
+/**
+ * A {@link Task} that starts a second copy of another task when the first hasn't sent a message
+ * after a delay, to cut the tail latency of calls that are usually fast but sometimes stall. The
+ * copy that sends a message first wins, all messages come from it and the other one is canceled.
+ * A copy that closes without a message only ends the run if the other one isn't running.
+ *
+ * <p> The delay is either fixed, or a percentile of the recent latencies of the first copy, so
+ * that only the slowest calls are hedged however fast the backend is at the moment. The latency is
+ * always measured from the start of the first copy. If the hedge wins, the first copy is canceled
+ * and the time it ran so far is recorded, which is a lower bound of its latency. Recording the
+ * hedge's own latency instead would make the slow calls look fast and pull the delay down. Until
+ * enough latencies are known, or if the percentile is longer, the max delay is used. The counters
+ * show how often a hedge was started and how often it won, a hedge that rarely wins means the
+ * delay is too short. </p>
+ *
+ * @param <T> the message type
+ * @see Tasks#hedged(Task, long, TimeUnit)
+ * @see Tasks#hedged(Task, double, long, TimeUnit)
+ */
+public final class HedgedTask<T> implements Task<T> {
+    private static final int PRIMARY = 0;
+    private static final int HEDGE = 1;
+    private static final int NONE = -1;
+
+    private final Deferred.Builder deferredBuilder;
+    private final Task<T> task;
+    private final long maxDelayNanos;
+    // Null if the delay is fixed.
+    private final LatencyHistogram latencies;
+    private final AtomicLong starts = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    HedgedTask(Deferred.Builder deferredBuilder, Task<T> task, long maxDelayNanos, LatencyHistogram latencies) {
+        this.deferredBuilder = deferredBuilder;
+        this.task = task;
+        this.maxDelayNanos = maxDelayNanos;
+        this.latencies = latencies;
+    }
+
+    @Override
+    public Promise<T> start() {
+        starts.incrementAndGet();
+        return new Run().start();
+    }
+
+    /**
+     * Returns the delay before a hedge is started right now.
+     *
+     * @param unit the unit to return the delay in
+     * @return the delay
+     */
+    public long delay(TimeUnit unit) {
+        return unit.convert(delayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns how many times the task was started.
+     */
+    public long startCount() {
+        return starts.get();
+    }
+
+    /**
+     * Returns how many times a hedge was started.
+     */
+    public long hedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Returns how many times a hedge sent a message before the copy it hedged.
+     */
+    public long hedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    private long delayNanos() {
+        if (latencies == null) return maxDelayNanos;
+        long estimate = latencies.estimate();
+        return estimate < 0 ? maxDelayNanos : Math.min(estimate, maxDelayNanos);
+    }
+
+    /**
+     * One start of the hedged task. Everything is guarded by its monitor, a run only sees a handful
+     * of events.
+     */
+    private final class Run implements CancelToken.Listener {
+        private final Deferred<T> deferred = deferredBuilder.build(new CancelToken());
+        private final Promise<?>[] copies = new Promise<?>[2];
+        private final long[] startTimes = new long[2];
+        private Promise<Void> timer;
+        private int winner = NONE;
+        private int running;
+
+        synchronized Promise<T> start() {
+            Promise<T> promise = deferred.promise();
+            promise.cancelToken().listen(this);
+            startCopy(PRIMARY);
+            if (winner == NONE && running > 0 && !promise.isCanceled()) {
+                // The tick is sent once the timer is listened to, so a short delay can't be missed.
+                Deferred<Void> tick = new Deferred<Void>();
+                timer = tick.promise().delay(delayNanos(), TimeUnit.NANOSECONDS);
+                timer.listen(new Listener<Void>() {
+                    @Override
+                    public void receive(Void message) {
+                        hedge();
+                    }
+                });
+                tick.resolve(null);
+            }
+            return promise;
+        }
+
+        private void startCopy(final int copy) {
+            startTimes[copy] = System.nanoTime();
+            Promise<T> promise = task.start();
+            copies[copy] = promise;
+            running++;
+            promise.listen(new Listener<T>() {
+                @Override
+                public void receive(T message) {
+                    received(copy, message);
+                }
+            }, new CloseListener() {
+                @Override
+                public void close() {
+                    closed(copy);
+                }
+            }, Long.MAX_VALUE);
+        }
+
+        private synchronized void hedge() {
+            if (winner != NONE || running == 0 || deferred.promise().isCanceled()) return;
+            hedges.incrementAndGet();
+            startCopy(HEDGE);
+        }
+
+        private synchronized void received(int copy, T message) {
+            if (winner == NONE) {
+                winner = copy;
+                if (latencies != null) latencies.record(System.nanoTime() - startTimes[PRIMARY]);
+                if (copy == HEDGE) hedgeWins.incrementAndGet();
+                cancelTimer();
+                Promise<?> other = copies[1 - copy];
+                if (other != null) other.cancel();
+            }
+            if (winner == copy) deferred.send(message);
+        }
+
+        private synchronized void closed(int copy) {
+            if (winner == copy) {
+                deferred.close();
+            } else if (winner == NONE && --running == 0) {
+                cancelTimer();
+                deferred.close();
+            }
+        }
+
+        @Override
+        public synchronized void canceled() {
+            cancelTimer();
+            for (Promise<?> copy : copies) {
+                if (copy != null) copy.cancel();
+            }
+        }
+
+        private void cancelTimer() {
+            if (timer != null) timer.cancel();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package me.tatarka.ipromise.task;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates a percentile of recent latencies for {@link HedgedTask}. Latencies are counted in
+ * buckets that split every power of two in four, so the estimate is within 25% whatever the scale
+ * and recording one is a single atomic increment. Every so often the estimate is recomputed and
+ * all counts are halved, so old latencies fade out and the estimate follows the backend.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int UPDATE_EVERY = 64;
+
+    private final double percentile;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // Negative until there are enough samples.
+    private volatile long estimate = -1;
+
+    LatencyHistogram(double percentile) {
+        this.percentile = percentile;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(nanos, 0)));
+        if (samples.incrementAndGet() % UPDATE_EVERY == 0) update();
+    }
+
+    /**
+     * Returns the estimated percentile in nanoseconds, or -1 if there are not enough samples yet.
+     */
+    long estimate() {
+        return estimate;
+    }
+
+    private void update() {
+        if (!updating.compareAndSet(false, true)) return;
+        try {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = counts.get(i);
+                seen += count;
+                if (seen >= target && count > 0) {
+                    estimate = upperBound(i);
+                    break;
+                }
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = counts.get(i);
+                if (count > 1) counts.addAndGet(i, -(count / 2));
+            }
+        } finally {
+            updating.set(false);
+        }
+    }
+
+    static int index(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index + 1;
+        int shift = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        if (shift > 63 - SUB_BITS - 1) return Long.MAX_VALUE;
+        return (long) (SUB_BUCKETS + sub + 1) << shift;
+    }
+}
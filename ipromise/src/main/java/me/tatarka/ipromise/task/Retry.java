@@ -0,0 +1,79 @@
+package me.tatarka.ipromise.task;
+
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+
+/**
+ * Runs a failable task again after an error for {@link Tasks#retry(Task, RetryPolicy)}. The retry
+ * is started with {@link Tasks#schedule(long, TimeUnit, Task)}, so no thread waits for the
+ * backoff, and only the current attempt is kept to cancel.
+ *
+ * @param <T> the success type
+ * @param <E> the error type
+ */
+final class Retry<T, E extends Exception> implements CancelToken.Listener {
+    private final Task<Result<T, E>> task;
+    private final RetryPolicy policy;
+    private final Deferred<Result<T, E>> deferred;
+    private volatile Promise<Result<T, E>> current;
+    // Attempts follow each other, so only one thread at a time uses it.
+    private volatile int attempts;
+
+    private Retry(Task<Result<T, E>> task, RetryPolicy policy, Deferred<Result<T, E>> deferred) {
+        this.task = task;
+        this.policy = policy;
+        this.deferred = deferred;
+    }
+
+    static <T, E extends Exception> Promise<Result<T, E>> retry(Task<Result<T, E>> task, RetryPolicy policy) {
+        CancelToken cancelToken = new CancelToken();
+        Retry<T, E> retry = new Retry<T, E>(task, policy, new Deferred<Result<T, E>>(cancelToken));
+        cancelToken.listen(retry);
+        retry.attempt(task.start());
+        return retry.deferred.promise();
+    }
+
+    private void attempt(Promise<Result<T, E>> promise) {
+        attempts++;
+        current = promise;
+        // The cancel may have come before the new attempt was current.
+        if (deferred.promise().isCanceled()) {
+            promise.cancel();
+            return;
+        }
+        Attempt attempt = new Attempt();
+        promise.listen(attempt, attempt, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void canceled() {
+        Promise<Result<T, E>> promise = current;
+        if (promise != null) promise.cancel();
+    }
+
+    private final class Attempt implements Listener<Result<T, E>>, CloseListener {
+        private boolean retried;
+
+        @Override
+        public void receive(Result<T, E> result) {
+            if (retried) return;
+            if (result.isError() && policy.shouldRetry(attempts, result.getError())) {
+                retried = true;
+                attempt(Tasks.schedule(policy.delayNanos(attempts), TimeUnit.NANOSECONDS, task));
+            } else {
+                deferred.send(result);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!retried) deferred.close();
+        }
+    }
+}
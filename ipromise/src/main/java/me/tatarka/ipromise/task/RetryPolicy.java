@@ -0,0 +1,157 @@
+package me.tatarka.ipromise.task;
+
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.func.Filter;
+
+/**
+ * Decides if and when {@link Tasks#retry(Task, RetryPolicy)} starts a failed task again. The delay
+ * grows exponentially from the initial delay up to the max delay, and a random part of it is taken
+ * off (the jitter) so that many clients that failed together don't all retry at the same time.
+ * Like {@link me.tatarka.ipromise.Deferred.Builder}, a {@code RetryPolicy} is immutable and all
+ * methods return a new instance.
+ *
+ * <p> By default a task is tried 3 times, waiting 100 milliseconds and then twice as long each
+ * time up to 30 seconds, with half of each delay random, and every error is retried. </p>
+ */
+public class RetryPolicy {
+    private static final Filter<Exception> RETRY_ALL = new Filter<Exception>() {
+        @Override
+        public boolean filter(Exception error) {
+            return true;
+        }
+    };
+
+    private int maxAttempts = 3;
+    private long initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long maxDelayNanos = TimeUnit.SECONDS.toNanos(30);
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private Filter<Exception> retryOn = RETRY_ALL;
+
+    /**
+     * Constructs a new {@code RetryPolicy} with the defaults.
+     */
+    public RetryPolicy() {
+    }
+
+    /**
+     * Constructs a new {@code RetryPolicy} that inherits from the given {@code RetryPolicy}.
+     *
+     * @param policy the policy
+     */
+    public RetryPolicy(RetryPolicy policy) {
+        maxAttempts = policy.maxAttempts;
+        initialDelayNanos = policy.initialDelayNanos;
+        maxDelayNanos = policy.maxDelayNanos;
+        multiplier = policy.multiplier;
+        jitter = policy.jitter;
+        retryOn = policy.retryOn;
+    }
+
+    /**
+     * Sets how often the task is started at most, including the first time.
+     *
+     * @param maxAttempts the most attempts
+     * @return the new policy
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) throw new IllegalArgumentException("maxAttempts must be positive, was " + maxAttempts);
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.maxAttempts = maxAttempts;
+        return policy;
+    }
+
+    /**
+     * Sets the delay before the first retry and the most any retry waits.
+     *
+     * @param initialDelay the delay before the first retry
+     * @param maxDelay     the longest delay
+     * @param unit         the unit of the delays
+     * @return the new policy
+     */
+    public RetryPolicy backoff(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 0) throw new IllegalArgumentException("initialDelay must not be negative, was " + initialDelay);
+        if (maxDelay < initialDelay) throw new IllegalArgumentException("maxDelay must not be less than initialDelay, was " + maxDelay);
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.initialDelayNanos = unit.toNanos(initialDelay);
+        policy.maxDelayNanos = unit.toNanos(maxDelay);
+        return policy;
+    }
+
+    /**
+     * Sets what each delay is multiplied by for the next retry. A multiplier of 1 waits the same
+     * time before every retry.
+     *
+     * @param multiplier the multiplier
+     * @return the new policy
+     */
+    public RetryPolicy multiplier(double multiplier) {
+        if (!(multiplier >= 1)) throw new IllegalArgumentException("multiplier must be at least 1, was " + multiplier);
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.multiplier = multiplier;
+        return policy;
+    }
+
+    /**
+     * Sets how much of each delay is random, between 0 for none and 1 for a delay anywhere between
+     * nothing and the full backoff.
+     *
+     * @param jitter the random fraction of the delay
+     * @return the new policy
+     */
+    public RetryPolicy jitter(double jitter) {
+        if (!(jitter >= 0 && jitter <= 1)) throw new IllegalArgumentException("jitter must be between 0 and 1, was " + jitter);
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.jitter = jitter;
+        return policy;
+    }
+
+    /**
+     * Sets which errors are retried, any other error is passed on right away.
+     *
+     * @param retryOn the filter that accepts the errors to retry
+     * @return the new policy
+     */
+    public RetryPolicy retryOn(Filter<Exception> retryOn) {
+        if (retryOn == null) throw new NullPointerException();
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.retryOn = retryOn;
+        return policy;
+    }
+
+    /**
+     * Only retries errors that are an instance of one of the given types, any other error is
+     * passed on right away.
+     *
+     * @param types the error types to retry
+     * @return the new policy
+     */
+    @SuppressWarnings("unchecked")
+    public RetryPolicy retryOn(final Class<? extends Exception>... types) {
+        return retryOn(new Filter<Exception>() {
+            @Override
+            public boolean filter(Exception error) {
+                for (Class<? extends Exception> type : types) {
+                    if (type.isInstance(error)) return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Returns if the error of the given attempt, counting from 1, should be retried.
+     */
+    boolean shouldRetry(int attempt, Exception error) {
+        return attempt < maxAttempts && retryOn.filter(error);
+    }
+
+    /**
+     * Returns the delay before retrying the given attempt, counting from 1.
+     */
+    long delayNanos(int attempt) {
+        double backoff = Math.min(initialDelayNanos * Math.pow(multiplier, attempt - 1), maxDelayNanos);
+        return (long) (backoff * (1 - jitter * Math.random()));
+    }
+}
@@ -0,0 +1,196 @@
+package me.tatarka.ipromise.task;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Subscription;
+import me.tatarka.ipromise.func.Map;
+
+/**
+ * Starts at most one task per key at a time. A caller that asks for a key while its task is
+ * still running shares that task instead of starting another, which keeps a burst of requests for
+ * the same thing from all hitting the backend. Once the task's {@link Promise} is closed the key
+ * is free again, so the next caller starts a new task.
+ *
+ * <p> Every caller gets its own {@code Promise} with its own {@link CancelToken}. Canceling it
+ * only stops that caller's messages, the shared task is only canceled once every caller that
+ * shares it has canceled. </p>
+ *
+ * <p> A task can't start its own key while it is being started. Joining would wait for a start
+ * that can't finish, so it throws instead. </p>
+ *
+ * @param <K> the key type
+ * @param <T> the message type
+ * @see Tasks#singleFlight(Map)
+ */
+public final class SingleFlight<K, T> {
+    private final Map<K, Task<T>> tasks;
+    private final ConcurrentHashMap<K, Flight> flights = new ConcurrentHashMap<K, Flight>();
+
+    SingleFlight(Map<K, Task<T>> tasks) {
+        this.tasks = tasks;
+    }
+
+    /**
+     * Starts the task for the key, or joins it if it is already running.
+     *
+     * @param key the key
+     * @return the promise that will receive the messages of the task
+     * @throws IllegalStateException if called for the same key while its task is being started on
+     *                               this thread
+     */
+    public Promise<T> start(K key) {
+        if (key == null) throw new NullPointerException();
+        for (; ; ) {
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                if (flight.starter == Thread.currentThread()) {
+                    throw new IllegalStateException("The task for " + key + " can't start its own key while it is starting");
+                }
+                if (flight.join()) {
+                    Promise<T> caller = flight.caller();
+                    if (caller != null) return caller;
+                }
+                // It is finishing or failed to start, help remove it.
+                flights.remove(key, flight);
+                continue;
+            }
+            flight = new Flight(key);
+            if (flights.putIfAbsent(key, flight) == null) {
+                flight.start();
+                return flight.caller();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys that have a running task.
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * One running task and the number of callers sharing it. The count drops to -1 once the task
+     * is finished, after which no one can join it any more.
+     */
+    private final class Flight extends AtomicInteger implements CloseListener {
+        private static final long serialVersionUID = 1L;
+
+        private final K key;
+        // The thread running start(), only compared with the current thread to catch re-entry.
+        private volatile Thread starter;
+        // Guarded by this, callers that join before the task has started wait for it.
+        private Promise<T> promise;
+        private boolean failed;
+
+        Flight(K key) {
+            super(1);
+            this.key = key;
+        }
+
+        void start() {
+            Promise<T> promise;
+            starter = Thread.currentThread();
+            try {
+                promise = tasks.map(key).start();
+            } catch (RuntimeException e) {
+                fail();
+                throw e;
+            } catch (Error e) {
+                fail();
+                throw e;
+            } finally {
+                starter = null;
+            }
+            synchronized (this) {
+                this.promise = promise;
+                notifyAll();
+            }
+            promise.onClose(this);
+        }
+
+        private void fail() {
+            finish();
+            synchronized (this) {
+                failed = true;
+                notifyAll();
+            }
+        }
+
+        boolean join() {
+            for (; ; ) {
+                int callers = get();
+                if (callers <= 0) return false;
+                if (compareAndSet(callers, callers + 1)) return true;
+            }
+        }
+
+        void leave() {
+            // No one can join once there are no callers, so the last one to leave cancels.
+            if (decrementAndGet() == 0) {
+                set(-1);
+                flights.remove(key, this);
+                promise().cancel();
+            }
+        }
+
+        // The task's promise is closed.
+        @Override
+        public void close() {
+            finish();
+        }
+
+        private void finish() {
+            set(-1);
+            flights.remove(key, this);
+        }
+
+        /**
+         * Waits until the task has started, which should be right away. Returns null if starting
+         * it threw.
+         */
+        private synchronized Promise<T> promise() {
+            boolean interrupted = false;
+            while (promise == null && !failed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return promise;
+        }
+
+        Promise<T> caller() {
+            Promise<T> promise = promise();
+            if (promise == null) return null;
+            final Deferred<T> deferred = new Deferred<T>(new CancelToken());
+            final Subscription subscription = promise.listen(new Listener<T>() {
+                @Override
+                public void receive(T message) {
+                    deferred.send(message);
+                }
+            }, new CloseListener() {
+                @Override
+                public void close() {
+                    deferred.close();
+                }
+            }, Long.MAX_VALUE);
+            deferred.promise().cancelToken().listen(new CancelToken.Listener() {
+                @Override
+                public void canceled() {
+                    subscription.cancel();
+                    leave();
+                }
+            });
+            return deferred.promise();
+        }
+    }
+}
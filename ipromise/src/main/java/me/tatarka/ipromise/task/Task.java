@@ -166,6 +166,68 @@ public interface Task<T> {
         }
     }
 
+    /**
+     * You can subclass this instead of {@link me.tatarka.ipromise.task.Task.DoMany} if you may
+     * produce messages faster than they are consumed. The {@link
+     * me.tatarka.ipromise.task.Task.BoundedSender} waits until the promise has a listener, and for
+     * listeners that use {@link Promise#listen(me.tatarka.ipromise.Listener, long)} to request
+     * more, so messages don't pile up in memory. The task will automatically close the {@link me.tatarka.ipromise.Deferred}.
+     *
+     * @param <T> the message type
+     */
+    public static abstract class DoManyBounded<T> implements Do<T> {
+        @Override
+        public final void run(Deferred<T> deferred, CancelToken cancelToken) {
+            try {
+                BoundedSender<T> sender = new BoundedDeferredSender<T>(deferred);
+                runMay(sender, cancelToken);
+            } finally {
+                deferred.close();
+            }
+        }
+
+        public abstract void runMay(BoundedSender<T> sender, CancelToken cancelToken);
+
+        private static class BoundedDeferredSender<T> implements BoundedSender<T> {
+            private Deferred<T> deferred;
+
+            BoundedDeferredSender(Deferred<T> deferred) {
+                this.deferred = deferred;
+            }
+
+            @Override
+            public Sender<T> send(T message) {
+                while (!deferred.trySend(message)) {
+                    try {
+                        deferred.awaitDemand();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return this;
+                    }
+                }
+                return this;
+            }
+
+            @Override
+            public boolean trySend(T message) {
+                return deferred.trySend(message);
+            }
+
+            @Override
+            public Sender<T> sendAll(Iterable<T> messages) {
+                for (T message : messages) send(message);
+                return this;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Sender<T> sendAll(T... messages) {
+                for (T message : messages) send(message);
+                return this;
+            }
+        }
+    }
+
     /**
      * Wraps a {@link me.tatarka.ipromise.Deferred} so that only messages can be sent. The creator
      * then has control over when the {@code Deferred} is closed.
@@ -179,4 +241,22 @@ public interface Task<T> {
 
         Sender<T> sendAll(T... messages);
     }
+
+    /**
+     * A {@link me.tatarka.ipromise.task.Task.Sender} that respects the demand of the listeners.
+     * {@link #send(Object)} blocks until a listener requests more messages. If the thread is
+     * interrupted while waiting, the message is dropped and the interrupt flag is kept so the task
+     * can stop.
+     *
+     * @param <T> the message type
+     */
+    public static interface BoundedSender<T> extends Sender<T> {
+        /**
+         * Sends the message only if there is demand for it, without blocking.
+         *
+         * @param message the message
+         * @return true if the message was sent, false otherwise
+         */
+        boolean trySend(T message);
+    }
 }
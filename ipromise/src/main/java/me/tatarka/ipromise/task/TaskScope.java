@@ -0,0 +1,286 @@
+package me.tatarka.ipromise.task;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+
+/**
+ * Owns a group of related tasks so they can be canceled and waited for together instead of
+ * tracking every {@link Promise} by hand. Each child is forked on its own thread with its own
+ * {@link CancelToken}. Canceling the scope's token cancels every child that is still running,
+ * which interrupts its thread, while canceling a child only stops that child.
+ *
+ * <p> With {@link #FAIL_FAST} the first child to send a {@link Result} error, or to throw, cancels
+ * the scope and so all of its siblings. With {@link #JOIN_ALL} the children run independently
+ * until the scope is canceled. </p>
+ *
+ * <p> {@link #close()} cancels the scope and then waits for the threads of all children to
+ * return, so once it returns no child is still running. A closed scope can't fork any more
+ * children. A child can't wait for its own scope, since it would be waiting for itself, so calling
+ * {@code join} or {@code close} from a child throws. A child that has to stop the scope should
+ * {@link #cancel()} it instead. </p>
+ */
+public final class TaskScope {
+    /**
+     * The first error cancels the scope.
+     */
+    public static final int FAIL_FAST = 0;
+
+    /**
+     * Errors don't affect the other children.
+     */
+    public static final int JOIN_ALL = 1;
+
+    // The scope whose child is running on the thread, if any.
+    private static final ThreadLocal<TaskScope> CHILD_OF = new ThreadLocal<TaskScope>();
+
+    private static final ThreadFactory NEW_THREAD = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable);
+        }
+    };
+
+    private final int policy;
+    private final ThreadFactory threadFactory;
+    private final CancelToken cancelToken = new CancelToken();
+    // Guarded by this, the tokens of the children whose threads haven't returned yet.
+    private final Set<CancelToken> running = new HashSet<CancelToken>();
+    private boolean closed;
+    private Exception error;
+
+    /**
+     * Constructs a new scope that starts each child in a new {@link java.lang.Thread}.
+     *
+     * @param policy either {@link #FAIL_FAST} or {@link #JOIN_ALL}
+     */
+    public TaskScope(int policy) {
+        this(policy, NEW_THREAD);
+    }
+
+    /**
+     * Constructs a new scope that starts each child in a thread from the given factory. The
+     * factory must return a new, unstarted thread every time, for example {@code
+     * Thread.ofVirtual().factory()} to run the children on virtual threads.
+     *
+     * @param policy        either {@link #FAIL_FAST} or {@link #JOIN_ALL}
+     * @param threadFactory the factory for the children's threads
+     */
+    public TaskScope(int policy, ThreadFactory threadFactory) {
+        if (policy != FAIL_FAST && policy != JOIN_ALL) {
+            throw new IllegalArgumentException("policy must be FAIL_FAST or JOIN_ALL, was " + policy);
+        }
+        if (threadFactory == null) throw new NullPointerException();
+        this.policy = policy;
+        this.threadFactory = threadFactory;
+        cancelToken.listen(new CancelToken.Listener() {
+            @Override
+            public void canceled() {
+                List<CancelToken> children;
+                synchronized (TaskScope.this) {
+                    children = new ArrayList<CancelToken>(running);
+                }
+                for (CancelToken child : children) child.cancel();
+            }
+        });
+    }
+
+    /**
+     * Starts the callback as a child of this scope, delivering its messages to the returned
+     * {@link Promise}. If the scope is already canceled the child is never started and the
+     * promise is canceled.
+     *
+     * @param callback the callback to run in the child's thread
+     * @param <T>      the message type
+     * @return the promise that will receive the messages
+     * @throws IllegalStateException if the scope is closed
+     */
+    public <T> Promise<T> fork(Task.Do<T> callback) {
+        return fork(new Deferred.Builder(), callback);
+    }
+
+    /**
+     * Starts the callback as a child of this scope, delivering its messages to the returned
+     * {@link Promise} using the given {@link me.tatarka.ipromise.Deferred.Builder}. If the scope
+     * is already canceled the child is never started and the promise is canceled.
+     *
+     * @param deferredBuilder the deferred builder
+     * @param callback        the callback to run in the child's thread
+     * @param <T>             the message type
+     * @return the promise that will receive the messages
+     * @throws IllegalStateException if the scope is closed
+     */
+    public <T> Promise<T> fork(Deferred.Builder deferredBuilder, final Task.Do<T> callback) {
+        if (callback == null) throw new NullPointerException();
+        final CancelToken childToken = new CancelToken();
+        final Deferred<T> deferred = deferredBuilder.build(childToken);
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("The scope is closed");
+            if (cancelToken.isCanceled()) {
+                childToken.cancel();
+                return deferred.promise();
+            }
+            running.add(childToken);
+        }
+        final Thread thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                CHILD_OF.set(TaskScope.this);
+                try {
+                    // The scope may have been canceled before the thread could be interrupted.
+                    if (!childToken.isCanceled()) callback.run(deferred, childToken);
+                } catch (RuntimeException e) {
+                    failed(e);
+                    throw e;
+                } catch (Error e) {
+                    failed(null);
+                    throw e;
+                } finally {
+                    CHILD_OF.remove();
+                    finished(childToken);
+                }
+            }
+        });
+        childToken.listen(new CancelToken.Listener() {
+            @Override
+            public void canceled() {
+                thread.interrupt();
+            }
+        });
+        if (policy == FAIL_FAST) {
+            deferred.promise().listen(new Listener<T>() {
+                @Override
+                public void receive(T message) {
+                    if (message instanceof Result && ((Result<?, ?>) message).isError()) {
+                        failed(((Result<?, ?>) message).getError());
+                    }
+                }
+            });
+        }
+        thread.start();
+        return deferred.promise();
+    }
+
+    /**
+     * Returns the scope's {@link CancelToken}, canceling it cancels all running children.
+     *
+     * @return the cancel token
+     */
+    public CancelToken cancelToken() {
+        return cancelToken;
+    }
+
+    /**
+     * Cancels all running children, equivalent to {@code cancelToken().cancel()}.
+     */
+    public void cancel() {
+        cancelToken.cancel();
+    }
+
+    /**
+     * Returns if the scope has been canceled, either directly or by a failing child with {@link
+     * #FAIL_FAST}.
+     *
+     * @return true if canceled, false otherwise
+     */
+    public boolean isCanceled() {
+        return cancelToken.isCanceled();
+    }
+
+    /**
+     * Returns the first error a child sent or threw with {@link #FAIL_FAST}, or null if there was
+     * none. An {@link java.lang.Error} thrown by a child fails the scope without being recorded.
+     *
+     * @return the error
+     */
+    public synchronized Exception error() {
+        return error;
+    }
+
+    /**
+     * Returns the number of children whose threads haven't returned yet.
+     *
+     * @return the number of running children
+     */
+    public synchronized int runningCount() {
+        return running.size();
+    }
+
+    /**
+     * Waits until the threads of all children forked so far have returned. This doesn't cancel
+     * anything, with {@link #JOIN_ALL} it waits for every child to finish.
+     *
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     * @throws IllegalStateException if called from a child of this scope
+     */
+    public synchronized void join() throws InterruptedException {
+        checkNotChild();
+        while (!running.isEmpty()) wait();
+    }
+
+    /**
+     * Waits up to the timeout until the threads of all children forked so far have returned.
+     *
+     * @param timeout the longest to wait
+     * @param unit    the unit of the timeout
+     * @return true if all children returned, false if it timed out
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     * @throws IllegalStateException if called from a child of this scope
+     */
+    public synchronized boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotChild();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!running.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the scope and waits until the threads of all children have returned. No children
+     * can be forked afterwards. Since the children's threads are interrupted a child that doesn't
+     * respond to the interrupt or its {@link CancelToken} keeps this waiting.
+     *
+     * @throws InterruptedException  if the thread is interrupted while waiting, in which case some
+     *                               children may still be running
+     * @throws IllegalStateException if called from a child of this scope
+     */
+    public void close() throws InterruptedException {
+        checkNotChild();
+        synchronized (this) {
+            closed = true;
+        }
+        cancelToken.cancel();
+        join();
+    }
+
+    private void checkNotChild() {
+        if (CHILD_OF.get() == this) {
+            throw new IllegalStateException("A child can't wait for its own scope, cancel it instead");
+        }
+    }
+
+    private void failed(Exception e) {
+        if (policy != FAIL_FAST) return;
+        synchronized (this) {
+            if (error == null && e != null) error = e;
+        }
+        cancelToken.cancel();
+    }
+
+    private synchronized void finished(CancelToken childToken) {
+        running.remove(childToken);
+        if (running.isEmpty()) notifyAll();
+    }
+}
@@ -1,9 +1,15 @@
 package me.tatarka.ipromise.task;
 
+import me.tatarka.ipromise.CloseListener;
 import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
 import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.Result;
+import me.tatarka.ipromise.func.Chain;
+import me.tatarka.ipromise.func.Map;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A collection of helper methods for constructing tasks.
@@ -128,4 +134,172 @@ public class Tasks {
                                  Task.Do<T> callback) {
         return new ExecutorTask<T>(deferredBuilder, executor, callback);
     }
+
+    /**
+     * Starts the task after the delay, delivering its messages to the returned {@link
+     * me.tatarka.ipromise.Promise}. Canceling the promise before the delay is up means the task is
+     * never started, canceling it afterwards cancels the task. The delay is kept on a timer thread
+     * shared by all promises, the task is started on it so it must return quickly from {@link
+     * Task#start()}.
+     *
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @param task  the task to start
+     * @param <T>   the message type
+     * @return the promise that will receive the messages
+     */
+    public static <T> Promise<T> schedule(long delay, TimeUnit unit, final Task<T> task) {
+        if (task == null) throw new NullPointerException();
+        // The delay only starts once the run is piped to the deferred, so a short one can't
+        // deliver the task's messages before anyone listens.
+        Deferred<Void> tick = new Deferred<Void>();
+        Promise<T> run = tick.promise().delay(delay, unit).concatMap(new Chain<Void, Promise<T>>() {
+            @Override
+            public Promise<T> chain(Void tick) {
+                return task.start();
+            }
+        });
+        final Deferred<T> deferred = new Deferred<T>(run.cancelToken());
+        run.listen(new Listener<T>() {
+            @Override
+            public void receive(T message) {
+                deferred.send(message);
+            }
+        }).onClose(new CloseListener() {
+            @Override
+            public void close() {
+                deferred.close();
+            }
+        });
+        tick.resolve(null);
+        return deferred.promise();
+    }
+
+    /**
+     * Starts the task every period until the returned {@link me.tatarka.ipromise.Promise} is
+     * canceled, delivering the messages of every run to it. Runs are started at a fixed rate but
+     * never overlap, a run is only started on a tick once the previous one is closed, so the ticks
+     * a slow run overlaps are skipped. Canceling the promise cancels the current run.
+     *
+     * @param period the time between starts
+     * @param unit   the unit of the period
+     * @param task   the task to start
+     * @param <T>    the message type
+     * @return the promise that will receive the messages
+     * @see me.tatarka.ipromise.Promise#interval(long, java.util.concurrent.TimeUnit)
+     */
+    public static <T> Promise<T> every(long period, TimeUnit unit, final Task<T> task) {
+        if (task == null) throw new NullPointerException();
+        return Promise.interval(period, unit).concatMap(new Chain<Long, Promise<T>>() {
+            @Override
+            public Promise<T> chain(Long tick) {
+                return task.start();
+            }
+        });
+    }
+
+    /**
+     * Starts the failable task, and starts it again after an error as long as the policy allows.
+     * The retries are scheduled on a timer thread shared by all promises instead of blocking one,
+     * and canceling the returned {@link me.tatarka.ipromise.Promise} cancels the current attempt
+     * and any pending retry. An error that is not retried is delivered like any other message.
+     * A task that sends several messages is started from the beginning again, so the messages
+     * before an error may be delivered more than once.
+     *
+     * @param task   the task, such as one made from a {@link Task.DoOnceFailable}
+     * @param policy the policy that decides when to retry
+     * @param <T>    the success type
+     * @param <E>    the error type
+     * @return the promise that will receive the messages
+     */
+    public static <T, E extends Exception> Promise<Result<T, E>> retry(Task<Result<T, E>> task, RetryPolicy policy) {
+        if (task == null || policy == null) throw new NullPointerException();
+        return Retry.retry(task, policy);
+    }
+
+    /**
+     * Constructs a {@link SingleFlight} that starts the task the given function returns for a key,
+     * but shares it between all callers that ask for the same key while it is running. This
+     * keeps a burst of requests for the same key, like after a cache entry expired, from starting
+     * the same expensive task many times.
+     *
+     * @param tasks the function that returns the task for a key
+     * @param <K>   the key type
+     * @param <T>   the message type
+     * @return the single flight
+     */
+    public static <K, T> SingleFlight<K, T> singleFlight(Map<K, Task<T>> tasks) {
+        if (tasks == null) throw new NullPointerException();
+        return new SingleFlight<K, T>(tasks);
+    }
+
+    /**
+     * Constructs a {@link HedgedTask} that starts a second copy of the task if the first hasn't
+     * sent a message after the delay. The copy that sends first wins and the other is canceled.
+     *
+     * @param task  the task
+     * @param delay the delay before starting the second copy
+     * @param unit  the unit of the delay
+     * @param <T>   the message type
+     * @return the hedged task
+     */
+    public static <T> HedgedTask<T> hedged(Task<T> task, long delay, TimeUnit unit) {
+        return hedged(new Deferred.Builder(), task, delay, unit);
+    }
+
+    /**
+     * Constructs a {@link HedgedTask} that starts a second copy of the task if the first hasn't
+     * sent a message after the delay. The copy that sends first wins and the other is canceled.
+     *
+     * @param deferredBuilder the deferred builder
+     * @param task            the task
+     * @param delay           the delay before starting the second copy
+     * @param unit            the unit of the delay
+     * @param <T>             the message type
+     * @return the hedged task
+     */
+    public static <T> HedgedTask<T> hedged(Deferred.Builder deferredBuilder, Task<T> task, long delay, TimeUnit unit) {
+        if (deferredBuilder == null || task == null) throw new NullPointerException();
+        if (delay < 0) throw new IllegalArgumentException("delay must not be negative, was " + delay);
+        return new HedgedTask<T>(deferredBuilder, task, unit.toNanos(delay), null);
+    }
+
+    /**
+     * Constructs a {@link HedgedTask} that starts a second copy of the task if the first hasn't
+     * sent a message after the given percentile of the recent latencies, such as 0.95 to hedge
+     * the slowest 5% of the calls. The max delay is used until enough latencies are known, and
+     * caps the delay after that.
+     *
+     * @param task       the task
+     * @param percentile the percentile of the latencies, between 0 and 1
+     * @param maxDelay   the longest delay before starting the second copy
+     * @param unit       the unit of the max delay
+     * @param <T>        the message type
+     * @return the hedged task
+     */
+    public static <T> HedgedTask<T> hedged(Task<T> task, double percentile, long maxDelay, TimeUnit unit) {
+        return hedged(new Deferred.Builder(), task, percentile, maxDelay, unit);
+    }
+
+    /**
+     * Constructs a {@link HedgedTask} that starts a second copy of the task if the first hasn't
+     * sent a message after the given percentile of the recent latencies, such as 0.95 to hedge
+     * the slowest 5% of the calls. The max delay is used until enough latencies are known, and
+     * caps the delay after that.
+     *
+     * @param deferredBuilder the deferred builder
+     * @param task            the task
+     * @param percentile      the percentile of the latencies, between 0 and 1
+     * @param maxDelay        the longest delay before starting the second copy
+     * @param unit            the unit of the max delay
+     * @param <T>             the message type
+     * @return the hedged task
+     */
+    public static <T> HedgedTask<T> hedged(Deferred.Builder deferredBuilder, Task<T> task, double percentile,
+                                           long maxDelay, TimeUnit unit) {
+        if (deferredBuilder == null || task == null) throw new NullPointerException();
+        if (!(percentile > 0 && percentile <= 1)) throw new IllegalArgumentException("percentile must be between 0 and 1, was " + percentile);
+        if (maxDelay < 0) throw new IllegalArgumentException("maxDelay must not be negative, was " + maxDelay);
+        return new HedgedTask<T>(deferredBuilder, task, unit.toNanos(maxDelay), new LatencyHistogram(percentile));
+    }
 }
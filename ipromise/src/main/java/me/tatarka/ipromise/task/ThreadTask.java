@@ -40,7 +40,7 @@ public class ThreadTask<T> implements Task<T> {
     public Promise<T> start() {
         final CancelToken cancelToken = new CancelToken();
         final Deferred<T> deferred = deferredBuilder.build(cancelToken);
-        final Thread thread = new Thread(new Runnable() {
+        final Thread thread = newThread(new Runnable() {
             @Override
             public void run() {
                 callback.run(deferred, cancelToken);
@@ -52,6 +52,18 @@ public class ThreadTask<T> implements Task<T> {
                 thread.interrupt();
             }
         });
+        thread.start();
         return deferred.promise();
     }
+
+    /**
+     * Creates the unstarted {@link java.lang.Thread} that runs the callback. Override this to run
+     * it on a different kind of thread, it is started by {@link #start()}.
+     *
+     * @param runnable the runnable that calls the callback
+     * @return the new thread
+     */
+    protected Thread newThread(Runnable runnable) {
+        return new Thread(runnable);
+    }
 }
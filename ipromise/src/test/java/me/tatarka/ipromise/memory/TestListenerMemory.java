@@ -4,6 +4,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.concurrent.TimeUnit;
+
 import javax.swing.DefaultCellEditor;
 
 import me.tatarka.ipromise.CallbackExecutors;
@@ -92,4 +94,20 @@ public class TestListenerMemory {
 
         verifier.assertGarbageCollected("Listener should be collected after close");
     }
+
+    @Test
+    public void testDelayedMessageClearedOnCancel() {
+        Deferred<Object> deferred = new Deferred<Object>(Promise.BUFFER_NONE);
+        Promise<Object> promise = deferred.promise().delay(1, TimeUnit.HOURS);
+        Object message = new Object();
+        deferred.send(message);
+        promise.cancel();
+        MemoryLeakVerifier verifier = new MemoryLeakVerifier(message);
+        // Only the timer is left that could hold on to the message.
+        message = null;
+        deferred = null;
+        promise = null;
+
+        verifier.assertGarbageCollected("Delayed message should be collected after cancel");
+    }
 }
@@ -0,0 +1,103 @@
+package me.tatarka.ipromise.memory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.buffer.PromiseBuffers;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures how many bytes are allocated to resolve a single-value promise and deliver it to a
+ * listener. Compares the default {@link Deferred} against one backed by an explicit {@link
+ * PromiseBuffers#last()} buffer, which was the default before.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks} and on a JVM that
+ * can count the bytes allocated by a thread. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestPromiseAllocation {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    private static volatile Object sink;
+
+    private static final Listener<Object> LISTENER = new Listener<Object>() {
+        @Override
+        public void receive(Object message) {
+            sink = message;
+        }
+    };
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+        assumeTrue(canCountAllocations());
+    }
+
+    @Test
+    public void testSingleValuePromiseFootprint() {
+        final Object result = new Object();
+
+        Runnable buffered = new Runnable() {
+            @Override
+            public void run() {
+                Deferred<Object> deferred = new Deferred<Object>(PromiseBuffers.last(), new CancelToken(), sameThreadExecutor());
+                Promise<Object> promise = deferred.resolve(result).promise();
+                promise.listen(LISTENER);
+                sink = promise;
+            }
+        };
+        Runnable single = new Runnable() {
+            @Override
+            public void run() {
+                Deferred<Object> deferred = new Deferred<Object>();
+                Promise<Object> promise = deferred.resolve(result).promise();
+                promise.listen(LISTENER);
+                sink = promise;
+            }
+        };
+
+        long bufferedBytes = bytesPerRun(buffered);
+        long singleBytes = bytesPerRun(single);
+        assertThat(singleBytes)
+                .as("bytes/promise for a single-value promise vs " + bufferedBytes + " for PromiseBuffers.last()")
+                .isLessThan(bufferedBytes);
+    }
+
+    // com.sun.management is not part of every JVM, so it is only touched once it is known to exist.
+    private static boolean canCountAllocations() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            return type.isInstance(ManagementFactory.getThreadMXBean());
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static long bytesPerRun(Runnable runnable) {
+        for (int i = 0; i < WARMUP; i++) runnable.run();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) runnable.run();
+        long after = threads.getThreadAllocatedBytes(threadId);
+        return (after - before) / ITERATIONS;
+    }
+}
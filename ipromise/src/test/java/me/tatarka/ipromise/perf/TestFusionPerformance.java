@@ -0,0 +1,103 @@
+package me.tatarka.ipromise.perf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Executor;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.func.Filter;
+import me.tatarka.ipromise.func.Map;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the cost per message of a chain of maps and filters as it gets longer. Since the chain
+ * is fused, each message is one executor submission and the time per message should stay roughly
+ * flat.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks}. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestFusionPerformance {
+    private static final int WARMUP = 200000;
+    private static final int MESSAGES = 1000000;
+    private static final int[] DEPTHS = {1, 2, 4, 8, 16};
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    private static volatile Object sink;
+
+    private static final Map<Integer, Integer> INCREMENT = new Map<Integer, Integer>() {
+        @Override
+        public Integer map(Integer message) {
+            return message + 1;
+        }
+    };
+
+    private static final Filter<Integer> ALL = new Filter<Integer>() {
+        @Override
+        public boolean filter(Integer message) {
+            return message != null;
+        }
+    };
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+    }
+
+    @Test
+    public void testChainCostPerMessage() {
+        for (int depth : DEPTHS) {
+            CountingExecutor executor = new CountingExecutor();
+            run(depth, WARMUP, executor);
+
+            executor.count = 0;
+            long start = System.nanoTime();
+            run(depth, MESSAGES, executor);
+            long elapsed = System.nanoTime() - start;
+
+            // One more for the close.
+            assertThat(executor.count)
+                    .as("submissions for a chain of " + depth + " stages at " + (elapsed / MESSAGES) + " ns/message")
+                    .isEqualTo(MESSAGES + 1);
+        }
+    }
+
+    private static void run(int depth, int messages, Executor executor) {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE, new CancelToken(), executor);
+        Promise<Integer> promise = deferred.promise();
+        for (int i = 0; i < depth; i++) {
+            promise = i % 2 == 0 ? promise.then(INCREMENT) : promise.then(ALL);
+        }
+        promise.listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                sink = message;
+            }
+        });
+        for (int i = 0; i < messages; i++) deferred.send(i & 1023);
+        deferred.close();
+    }
+
+    private static class CountingExecutor implements Executor {
+        int count;
+
+        @Override
+        public void execute(Runnable command) {
+            count++;
+            command.run();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package me.tatarka.ipromise.perf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the throughput of a merge as the number of sources grows. A few producer threads send
+ * round-robin over their share of the sources, so all of them are busy at once. Since the sources
+ * only append to a lock-free queue and one thread at a time sends to the merged promise, the time
+ * per message should grow slowly with the number of sources.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks}. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestMergePerformance {
+    private static final int THREADS = 4;
+    private static final int MESSAGES = 400000;
+    private static final int[] SOURCES = {10, 100, 1000, 10000, 100000};
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+    }
+
+    @Test
+    public void testMergeScalesWithSources() throws Exception {
+        run(SOURCES[0]);
+        for (int sources : SOURCES) {
+            long start = System.nanoTime();
+            long received = run(sources);
+            long elapsed = System.nanoTime() - start;
+
+            assertThat(received)
+                    .as("messages from " + sources + " sources at " + (elapsed / MESSAGES) + " ns/message")
+                    .isEqualTo(MESSAGES);
+        }
+    }
+
+    private static long run(int sources) throws InterruptedException {
+        final List<Deferred<Integer>> deferreds = new ArrayList<Deferred<Integer>>(sources);
+        List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>(sources);
+        for (int i = 0; i < sources; i++) {
+            Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+            deferreds.add(deferred);
+            promises.add(deferred.promise());
+        }
+        final long[] received = new long[1];
+        final CountDownLatch closed = new CountDownLatch(1);
+        Promise.merge(promises).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                received[0]++;
+            }
+        }).onClose(new CloseListener() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int from = sources * t / THREADS;
+            final int to = sources * (t + 1) / THREADS;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    int count = to - from;
+                    for (int i = 0; i < MESSAGES / THREADS; i++) {
+                        deferreds.get(from + i % count).send(i);
+                    }
+                    for (int i = from; i < to; i++) deferreds.get(i).close();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertThat(closed.await(30, TimeUnit.SECONDS)).isTrue();
+        return received[0];
+    }
+}
@@ -0,0 +1,105 @@
+package me.tatarka.ipromise.perf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.cache.CacheStats;
+import me.tatarka.ipromise.cache.PromiseCache;
+import me.tatarka.ipromise.func.Map;
+import me.tatarka.ipromise.task.Task;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures lookups from many reader threads at once. Reads don't take a lock and only sometimes
+ * record themselves for the eviction policy, so the time per lookup should stay low even with
+ * many more threads than cores, both when everything fits and when the cache has to evict.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks}. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestPromiseCachePerformance {
+    private static final int THREADS = 64;
+    private static final int LOOKUPS = 50000;
+    private static final int KEYS = 10000;
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        run(KEYS);
+        run(KEYS);
+    }
+
+    @Test
+    public void testConcurrentReadsWithEviction() throws Exception {
+        run(KEYS / 4);
+        run(KEYS / 4);
+    }
+
+    private static void run(int maximumSize) throws InterruptedException {
+        final PromiseCache<Integer, Integer> cache = new PromiseCache.Builder<Integer, Integer>()
+                .maximumSize(maximumSize)
+                .build(new Map<Integer, Task<Integer>>() {
+                    @Override
+                    public Task<Integer> map(final Integer key) {
+                        return new Task<Integer>() {
+                            @Override
+                            public Promise<Integer> start() {
+                                return Promise.of(key);
+                            }
+                        };
+                    }
+                });
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            // Skewed towards low keys, like most real workloads.
+            Random random = new Random(t);
+            final Integer[] keys = new Integer[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                double skewed = random.nextDouble();
+                keys[i] = (int) (skewed * skewed * KEYS);
+            }
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (Integer key : keys) cache.get(key);
+                }
+            };
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        long elapsed = System.nanoTime() - begin;
+
+        CacheStats stats = cache.stats();
+        assertThat(stats.hitCount() + stats.missCount())
+                .as("lookups by " + THREADS + " readers with " + maximumSize + " cached at "
+                        + elapsed / ((long) THREADS * LOOKUPS) + " ns/lookup, " + stats + ", hit rate " + stats.hitRate())
+                .isEqualTo((long) THREADS * LOOKUPS);
+        assertThat(cache.size()).isLessThanOrEqualTo(maximumSize + THREADS);
+    }
+}
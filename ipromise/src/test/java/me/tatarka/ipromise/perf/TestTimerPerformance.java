@@ -0,0 +1,140 @@
+package me.tatarka.ipromise.perf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Listener;
+import me.tatarka.ipromise.Promise;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures scheduling timeouts on the shared timer as the number pending at once grows. Every
+ * message of a delayed promise is a pending timeout until the delay is up, and since adding one
+ * is O(1) the time per message should stay flat however many are pending. The same goes for
+ * canceling a timeout and for the timer waking up for the next one that is due.
+ *
+ * <p> This is a benchmark, it only runs with {@code gradle test -Pbenchmarks}. </p>
+ */
+@RunWith(JUnit4.class)
+public class TestTimerPerformance {
+    private static final int[] PENDING = {1000, 10000, 100000, 1000000};
+    private static final int ROUNDS = 500;
+
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Before
+    public void setup() {
+        assumeTrue(Boolean.getBoolean("ipromise.benchmarks"));
+    }
+
+    @Test
+    public void testScheduleScalesWithPending() throws Exception {
+        run(PENDING[0]);
+        for (int pending : PENDING) {
+            run(pending);
+        }
+    }
+
+    @Test
+    public void testCancelAndWakeUpDontScaleWithPending() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadCpuTimeSupported());
+        cancelRounds(threads, PENDING[0]);
+        long few = cancelRounds(threads, PENDING[0]);
+        long many = cancelRounds(threads, PENDING[PENDING.length - 1]);
+
+        assertThat(many)
+                .as("timer cpu per round " + (few / ROUNDS) + " ns with " + PENDING[0] + " pending, "
+                        + (many / ROUNDS) + " ns with " + PENDING[PENDING.length - 1] + " pending")
+                .isLessThan(few * 3);
+    }
+
+    private static void run(int pending) throws InterruptedException {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final int[] received = new int[1];
+        final CountDownLatch closed = new CountDownLatch(1);
+        deferred.promise().delay(200, TimeUnit.MILLISECONDS).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                received[0]++;
+            }
+        }).onClose(new CloseListener() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < pending; i++) deferred.send(i);
+        long elapsed = System.nanoTime() - start;
+        deferred.close();
+
+        assertThat(closed.await(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(received[0])
+                .as("timeouts scheduled with " + pending + " pending at " + (elapsed / pending) + " ns/timeout")
+                .isEqualTo(pending);
+    }
+
+    /**
+     * With far-off timeouts pending, cancels a timeout and then waits for a short one, over and
+     * over, so that the timer has to wake up and look for the next due tick every round. Returns
+     * the cpu time the timer thread spent on it.
+     */
+    private static long cancelRounds(ThreadMXBean threads, int pending) throws InterruptedException {
+        Deferred<Integer> far = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Promise<Integer> delayed = far.promise().delay(1, TimeUnit.HOURS);
+        for (int i = 0; i < pending; i++) far.send(i);
+        // Once a later timeout has fired, the far ones are all in the wheel.
+        awaitShortDelay();
+
+        long worker = timerThread().getId();
+        long start = threads.getThreadCpuTime(worker);
+        for (int i = 0; i < ROUNDS; i++) {
+            // The watchdog cancels its timeout when the source closes.
+            Deferred<Integer> watched = new Deferred<Integer>(Promise.BUFFER_NONE);
+            watched.promise().timeout(1, TimeUnit.HOURS);
+            watched.close();
+            awaitShortDelay();
+        }
+        long elapsed = threads.getThreadCpuTime(worker) - start;
+
+        delayed.cancel();
+        return elapsed;
+    }
+
+    private static void awaitShortDelay() throws InterruptedException {
+        Deferred<Integer> soon = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final CountDownLatch fired = new CountDownLatch(1);
+        soon.promise().delay(1, TimeUnit.MILLISECONDS).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                fired.countDown();
+            }
+        });
+        soon.send(0);
+        assertThat(fired.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private static Thread timerThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("ipromise-timer")) return thread;
+        }
+        throw new AssertionError("The timer thread isn't running");
+    }
+}
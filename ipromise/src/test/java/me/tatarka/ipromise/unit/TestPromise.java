@@ -2,6 +2,7 @@ package me.tatarka.ipromise.unit;
 
 import me.tatarka.ipromise.*;
 import me.tatarka.ipromise.func.Chain;
+import me.tatarka.ipromise.func.Filter;
 import me.tatarka.ipromise.func.Filters;
 import me.tatarka.ipromise.func.Map;
 import me.tatarka.ipromise.task.Task;
@@ -12,11 +13,21 @@ import org.junit.runners.JUnit4;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 /**
@@ -203,6 +214,226 @@ public class TestPromise {
         verify(listener).receive(Pair.of(result1, result2));
     }
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedParentConstructorOfConstant() throws Exception {
+        Promise<String> promise = new Promise<String>(Promise.of("success")) {};
+        CloseListener listener = mock(CloseListener.class);
+        promise.onClose(listener);
+
+        verify(listener).close();
+    }
+
+    @Test
+    public void testMergeCollection() throws Exception {
+        Deferred<String> deferred1 = new Deferred<String>(Promise.BUFFER_NONE);
+        Deferred<String> deferred2 = new Deferred<String>(Promise.BUFFER_NONE);
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        Promise.merge(Arrays.asList(deferred1.promise(), deferred2.promise())).listen(listener).onClose(closeListener);
+        deferred1.send("one");
+        deferred2.resolve("two");
+        deferred1.send("three");
+
+        verify(listener).receive("one");
+        verify(listener).receive("two");
+        verify(listener).receive("three");
+        verify(closeListener, never()).close();
+        deferred1.close();
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testMergeCanceledWhenAllSourcesCanceled() throws Exception {
+        Deferred<String> deferred1 = new Deferred<String>();
+        Deferred<String> deferred2 = new Deferred<String>();
+        Promise<String> merged = Promise.merge(Arrays.asList(deferred1.promise(), deferred2.promise()));
+        deferred1.promise().cancel();
+
+        assertThat(merged.isCanceled()).isFalse();
+        deferred2.promise().cancel();
+        assertThat(merged.isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testZip() throws Exception {
+        Deferred<String> deferred1 = new Deferred<String>(Promise.BUFFER_NONE);
+        Deferred<Integer> deferred2 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        deferred1.promise().zip(deferred2.promise()).listen(listener).onClose(closeListener);
+        deferred1.sendAll("one", "two", "three");
+        deferred1.close();
+        deferred2.sendAll(1, 2);
+
+        verify(listener).receive(Pair.of("one", 1));
+        verify(listener).receive(Pair.of("two", 2));
+        verify(closeListener, never()).close();
+        deferred2.send(3);
+        verify(listener).receive(Pair.of("three", 3));
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testZipThreaded() throws Exception {
+        final int messages = 10000;
+        List<Deferred<Integer>> deferreds = new ArrayList<Deferred<Integer>>();
+        List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>();
+        for (int i = 0; i < 4; i++) {
+            Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+            deferreds.add(deferred);
+            promises.add(deferred.promise());
+        }
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        Promise.zip(promises).listen(new Listener<List<Integer>>() {
+            @Override
+            public void receive(List<Integer> result) {
+                results.add(result);
+            }
+        }).onClose(new CloseListener() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+        for (final Deferred<Integer> deferred : deferreds) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++) deferred.send(i);
+                    deferred.close();
+                }
+            }.start();
+        }
+
+        assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(results).hasSize(messages);
+        for (int i = 0; i < messages; i++) {
+            assertThat(results.get(i)).containsExactly(i, i, i, i);
+        }
+    }
+
+    @Test
+    public void testZipCloseAfterLastMessageThreaded() throws Exception {
+        Deferred.Builder builder = Deferred.Builder.withCallbackExecutor(Executors.newCachedThreadPool());
+        Map<Object[], Integer> slowCombiner = new Map<Object[], Integer>() {
+            @Override
+            public Integer map(Object[] result) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return (Integer) result[0] + (Integer) result[1];
+            }
+        };
+        for (int i = 0; i < 200; i++) {
+            Deferred<Integer> deferred1 = builder.build(Promise.BUFFER_NONE);
+            Deferred<Integer> deferred2 = builder.build(Promise.BUFFER_NONE);
+            final List<Integer> results = new ArrayList<Integer>();
+            final CountDownLatch closed = new CountDownLatch(1);
+            Promise.zip(slowCombiner, deferred1.promise(), deferred2.promise()).listen(new Listener<Integer>() {
+                @Override
+                public void receive(Integer result) {
+                    results.add(result);
+                }
+            }).onClose(new CloseListener() {
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            });
+            deferred1.send(1);
+            deferred2.send(2);
+            deferred1.close();
+
+            assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(results).containsExactly(3);
+        }
+    }
+
+    @Test
+    public void testZipThrowingCombinerCancels() throws Exception {
+        final RuntimeException error = new RuntimeException();
+        Deferred<Integer> deferred1 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Deferred<Integer> deferred2 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Promise<Integer> zipped = Promise.zip(new Map<Object[], Integer>() {
+            @Override
+            public Integer map(Object[] result) {
+                throw error;
+            }
+        }, deferred1.promise(), deferred2.promise());
+        deferred1.send(1);
+        try {
+            deferred2.send(2);
+            fail();
+        } catch (RuntimeException e) {
+            assertThat(e).isSameAs(error);
+        }
+
+        assertThat(zipped.isCanceled()).isTrue();
+        assertThat(deferred1.promise().isCanceled()).isTrue();
+        assertThat(deferred2.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testCombineLatestThrowingCombinerCancels() throws Exception {
+        final RuntimeException error = new RuntimeException();
+        Deferred<Integer> deferred1 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Deferred<Integer> deferred2 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Promise<Integer> combined = Promise.combineLatest(new Map<Object[], Integer>() {
+            @Override
+            public Integer map(Object[] result) {
+                throw error;
+            }
+        }, deferred1.promise(), deferred2.promise());
+        deferred1.send(1);
+        try {
+            deferred2.send(2);
+            fail();
+        } catch (RuntimeException e) {
+            assertThat(e).isSameAs(error);
+        }
+        deferred1.send(3);
+
+        assertThat(combined.isCanceled()).isTrue();
+        assertThat(deferred2.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testCombineLatest() throws Exception {
+        Deferred<String> deferred1 = new Deferred<String>(Promise.BUFFER_NONE);
+        Deferred<Integer> deferred2 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        deferred1.promise().combineLatest(deferred2.promise()).listen(listener).onClose(closeListener);
+        deferred1.sendAll("one", "two");
+        deferred2.send(1);
+        deferred1.resolve("three");
+        deferred2.send(2);
+
+        verify(listener, never()).receive(Pair.of("one", 1));
+        verify(listener).receive(Pair.of("two", 1));
+        verify(listener).receive(Pair.of("three", 1));
+        verify(listener).receive(Pair.of("three", 2));
+        verify(closeListener, never()).close();
+        deferred2.close();
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testCombineLatestClosesIfSourceNeverSends() throws Exception {
+        Deferred<String> deferred1 = new Deferred<String>(Promise.BUFFER_NONE);
+        Deferred<Integer> deferred2 = new Deferred<Integer>(Promise.BUFFER_NONE);
+        CloseListener closeListener = mock(CloseListener.class);
+        Promise.combineLatest(deferred1.promise(), deferred2.promise()).onClose(closeListener);
+        deferred1.send("one");
+        deferred2.close();
+
+        verify(closeListener).close();
+    }
+
     @Test
     public void testPromiseMerge() throws Exception {
         Deferred<String> deferred1 = new Deferred<String>();
@@ -232,6 +463,140 @@ public class TestPromise {
         verify(listener).receive("good");
     }
 
+    @Test
+    public void testFlatMapLimitsConcurrency() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<Deferred<String>> inners = new ArrayList<Deferred<String>>();
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        deferred.promise().flatMap(new Chain<Integer, Promise<String>>() {
+            @Override
+            public Promise<String> chain(Integer result) {
+                Deferred<String> inner = new Deferred<String>();
+                inners.add(inner);
+                return inner.promise();
+            }
+        }, 2).listen(listener).onClose(closeListener);
+        deferred.sendAll(1, 2, 3);
+        deferred.close();
+
+        assertThat(inners).hasSize(2);
+        inners.get(1).resolve("two");
+        assertThat(inners).hasSize(3);
+        inners.get(0).resolve("one");
+        inners.get(2).send("three");
+
+        verify(listener).receive("one");
+        verify(listener).receive("two");
+        verify(listener).receive("three");
+        verify(closeListener, never()).close();
+        inners.get(2).close();
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testFlatMapCancelCancelsInners() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<Deferred<String>> inners = new ArrayList<Deferred<String>>();
+        Promise<String> promise = deferred.promise().flatMap(new Chain<Integer, Promise<String>>() {
+            @Override
+            public Promise<String> chain(Integer result) {
+                Deferred<String> inner = new Deferred<String>();
+                inners.add(inner);
+                return inner.promise();
+            }
+        }, 2);
+        deferred.sendAll(1, 2);
+        promise.cancel();
+
+        assertThat(deferred.promise().isCanceled()).isTrue();
+        assertThat(inners.get(0).promise().isCanceled()).isTrue();
+        assertThat(inners.get(1).promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testFlatMapClosesAfterChainThrows() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        deferred.promise().flatMap(new Chain<Integer, Promise<String>>() {
+            @Override
+            public Promise<String> chain(Integer result) {
+                if (result == 1) throw new IllegalStateException();
+                return Promise.of("two");
+            }
+        }, 1).listen(listener).onClose(closeListener);
+        try {
+            deferred.send(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // The chain's exception surfaces on the callback executor.
+        }
+        deferred.send(2);
+        deferred.close();
+
+        verify(listener).receive("two");
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testConcatMapInOrder() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<Deferred<Integer>> inners = new ArrayList<Deferred<Integer>>();
+        final List<Integer> results = new ArrayList<Integer>();
+        deferred.promise().concatMap(new Chain<Integer, Promise<Integer>>() {
+            @Override
+            public Promise<Integer> chain(Integer result) {
+                Deferred<Integer> inner = new Deferred<Integer>(Promise.BUFFER_NONE);
+                inners.add(inner);
+                return inner.promise();
+            }
+        }).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer result) {
+                results.add(result);
+            }
+        });
+        deferred.sendAll(1, 2);
+
+        assertThat(inners).hasSize(1);
+        inners.get(0).sendAll(10, 11);
+        inners.get(0).close();
+        assertThat(inners).hasSize(2);
+        inners.get(1).resolve(20);
+        assertThat(results).containsExactly(10, 11, 20);
+    }
+
+    @Test
+    public void testSwitchMapCancelsPrevious() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<Deferred<String>> inners = new ArrayList<Deferred<String>>();
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        deferred.promise().switchMap(new Chain<Integer, Promise<String>>() {
+            @Override
+            public Promise<String> chain(Integer result) {
+                Deferred<String> inner = new Deferred<String>(Promise.BUFFER_NONE);
+                inners.add(inner);
+                return inner.promise();
+            }
+        }).listen(listener).onClose(closeListener);
+        deferred.send(1);
+        inners.get(0).send("first");
+        deferred.send(2);
+        inners.get(0).send("stale");
+        inners.get(1).send("second");
+        deferred.close();
+
+        assertThat(inners.get(0).promise().isCanceled()).isTrue();
+        verify(listener).receive("first");
+        verify(listener, never()).receive("stale");
+        verify(listener).receive("second");
+        verify(closeListener, never()).close();
+        inners.get(1).close();
+        verify(closeListener).close();
+    }
+
     @Test
     public void testBatch() throws Exception {
         Deferred<String> deferred = new Deferred<String>();
@@ -246,6 +611,294 @@ public class TestPromise {
         verify(listener).receive(Arrays.asList("five"));
     }
 
+    @Test
+    public void testBatchFlushesAfterDelay() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        final CountDownLatch flushed = new CountDownLatch(1);
+        deferred.promise().batch(10, 20, TimeUnit.MILLISECONDS).listen(new Listener<List<String>>() {
+            @Override
+            public void receive(List<String> batch) {
+                batches.add(batch);
+                flushed.countDown();
+            }
+        });
+        deferred.sendAll("one", "two");
+
+        assertThat(flushed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(batches).containsExactly(Arrays.asList("one", "two"));
+    }
+
+    @Test
+    public void testPooledBatchReusesLists() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<List<Integer>> lists = new ArrayList<List<Integer>>();
+        final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+        deferred.promise().pooledBatch(2, 1, TimeUnit.HOURS).listen(new Listener<List<Integer>>() {
+            @Override
+            public void receive(List<Integer> batch) {
+                lists.add(batch);
+                batches.add(new ArrayList<Integer>(batch));
+            }
+        });
+        deferred.sendAll(1, 2, 3, 4, 5);
+        deferred.close();
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5));
+        assertThat(lists.get(1)).isSameAs(lists.get(0));
+        assertThat(lists.get(2)).isSameAs(lists.get(0));
+    }
+
+    @Test
+    public void testPooledBatchChainedOperatorGetsCopies() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+        Promise<List<Integer>> pooled = deferred.promise().pooledBatch(2, 1, TimeUnit.HOURS);
+        pooled.then(new Filter<List<Integer>>() {
+            @Override
+            public boolean filter(List<Integer> batch) {
+                return !batch.isEmpty();
+            }
+        }).listen(new Listener<List<Integer>>() {
+            @Override
+            public void receive(List<Integer> batch) {
+                batches.add(batch);
+            }
+        });
+        final List<List<Integer>> lists = new ArrayList<List<Integer>>();
+        pooled.listen(new Listener<List<Integer>>() {
+            @Override
+            public void receive(List<Integer> batch) {
+                lists.add(batch);
+            }
+        });
+        deferred.sendAll(1, 2, 3, 4, 5);
+        deferred.close();
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5));
+        assertThat(lists.get(1)).isSameAs(lists.get(0));
+    }
+
+    @Test
+    public void testTimeoutCancels() throws Exception {
+        Deferred<String> deferred = new Deferred<String>();
+        Promise<String> promise = deferred.promise().timeout(20, TimeUnit.MILLISECONDS);
+
+        try {
+            promise.await(10, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException e) {
+            assertThat(deferred.promise().isCanceled()).isTrue();
+        }
+    }
+
+    @Test
+    public void testTimeoutPassesMessages() throws Exception {
+        Deferred<String> deferred = new Deferred<String>();
+        Promise<String> promise = deferred.promise().timeout(10, TimeUnit.SECONDS);
+        Listener listener = mock(Listener.class);
+        promise.listen(listener);
+        deferred.resolveAll("one", "two");
+
+        verify(listener).receive("one");
+        verify(listener).receive("two");
+        assertThat(promise.isClosed()).isTrue();
+        assertThat(promise.isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testDelayKeepsOrder() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_ALL);
+        Promise<Integer> promise = deferred.promise().delay(100, TimeUnit.MILLISECONDS);
+        List<Integer> messages = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            deferred.send(i);
+            messages.add(i);
+        }
+        long start = System.nanoTime();
+        deferred.close();
+
+        assertThat(promise.awaitAll()).isEqualTo(messages);
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testIntervalTicksUntilCanceled() throws Exception {
+        final Promise<Long> promise = Promise.interval(5, TimeUnit.MILLISECONDS);
+        final List<Long> ticks = new ArrayList<Long>();
+        final CountDownLatch received = new CountDownLatch(3);
+        promise.listen(new Listener<Long>() {
+            @Override
+            public void receive(Long tick) {
+                ticks.add(tick);
+                received.countDown();
+                if (received.getCount() == 0) promise.cancel();
+            }
+        });
+
+        assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(20);
+        assertThat(ticks).hasSize(3);
+        assertThat(ticks.get(0)).isLessThan(ticks.get(1));
+        assertThat(ticks.get(1)).isLessThan(ticks.get(2));
+    }
+
+    @Test
+    public void testDebounceSendsLatestAfterQuiet() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        Promise<String> promise = deferred.promise().debounce(20, TimeUnit.MILLISECONDS);
+        deferred.sendAll("a", "ab", "abc");
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isEqualTo("abc");
+    }
+
+    @Test
+    public void testDebounceSendsLatestOnClose() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        Listener listener = mock(Listener.class);
+        deferred.promise().debounce(1, TimeUnit.HOURS).listen(listener);
+        deferred.sendAll("a", "ab");
+        deferred.close();
+
+        verify(listener).receive("ab");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testThrottleLatestSendsFirstAndLast() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        final List<Integer> messages = new ArrayList<Integer>();
+        final CountDownLatch received = new CountDownLatch(2);
+        deferred.promise().throttleLatest(20, TimeUnit.MILLISECONDS).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                synchronized (messages) {
+                    messages.add(message);
+                }
+                received.countDown();
+            }
+        });
+        deferred.sendAll(1, 2, 3);
+
+        assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+        synchronized (messages) {
+            assertThat(messages).containsExactly(1, 3);
+        }
+    }
+
+    @Test
+    public void testSampleSendsLatestOfPeriod() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Promise<Integer> promise = deferred.promise().sample(20, TimeUnit.MILLISECONDS);
+        deferred.sendAll(1, 2, 3);
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isEqualTo(3);
+    }
+
+    @Test
+    public void testRaceTakesFirstAndCancelsRest() throws Exception {
+        Deferred<String> first = new Deferred<String>();
+        Deferred<String> second = new Deferred<String>();
+        Promise<String> promise = Promise.race(first.promise(), second.promise());
+        second.resolve("second");
+
+        assertThat(promise.awaitAll()).containsExactly("second");
+        assertThat(first.promise().isCanceled()).isTrue();
+        assertThat(second.promise().isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testCancelRaceCancelsSources() {
+        Deferred<String> first = new Deferred<String>();
+        Deferred<String> second = new Deferred<String>();
+        Promise.race(first.promise(), second.promise()).cancel();
+
+        assertThat(first.promise().isCanceled()).isTrue();
+        assertThat(second.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAnySkipsErrors() throws Exception {
+        Deferred<Result<String, Exception>> first = new Deferred<Result<String, Exception>>();
+        Deferred<Result<String, Exception>> second = new Deferred<Result<String, Exception>>();
+        Deferred<Result<String, Exception>> third = new Deferred<Result<String, Exception>>();
+        Promise<Result<String, Exception>> promise = Promise.any(first.promise(), second.promise(), third.promise());
+        first.resolve(Result.<String, Exception>error(new Exception()));
+        second.resolve(Result.<String, Exception>success("second"));
+
+        assertThat(promise.awaitAll()).containsExactly(Result.<String, Exception>success("second"));
+        assertThat(third.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAnySendsLastErrorWhenAllFail() throws Exception {
+        Exception error = new Exception();
+        Promise<Result<String, Exception>> promise = Promise.any(
+                Promise.of(Result.<String, Exception>error(new Exception())),
+                Promise.of(Result.<String, Exception>error(error)));
+
+        assertThat(promise.awaitAll()).containsExactly(Result.<String, Exception>error(error));
+    }
+
+    @Test
+    public void testQuorum() throws Exception {
+        Deferred<Integer> first = new Deferred<Integer>();
+        Deferred<Integer> second = new Deferred<Integer>();
+        Deferred<Integer> third = new Deferred<Integer>();
+        Promise<List<Integer>> promise = Promise.quorum(2, first.promise(), second.promise(), third.promise());
+        third.resolve(3);
+        first.resolve(1);
+
+        assertThat(promise.awaitAll()).containsExactly(Arrays.asList(3, 1));
+        assertThat(second.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testQuorumClosesWhenUnreachable() throws Exception {
+        Deferred<Integer> first = new Deferred<Integer>();
+        Deferred<Integer> second = new Deferred<Integer>();
+        Deferred<Integer> third = new Deferred<Integer>();
+        Promise<List<Integer>> promise = Promise.quorum(2, first.promise(), second.promise(), third.promise());
+        first.close();
+        second.close();
+
+        assertThat(promise.awaitAll()).isEmpty();
+        assertThat(third.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testGatherTimesOutStragglers() throws Exception {
+        Deferred<String> first = new Deferred<String>();
+        Deferred<String> second = new Deferred<String>();
+        Deferred<String> third = new Deferred<String>();
+        Promise<Gathered<String>> promise = Promise.gather(50, TimeUnit.MILLISECONDS, first.promise(), second.promise(), third.promise());
+        first.resolve("first");
+        third.promise().cancel();
+        Gathered<String> gathered = promise.await();
+
+        assertThat(gathered.status(0)).isEqualTo(Gathered.DONE);
+        assertThat(gathered.status(1)).isEqualTo(Gathered.TIMED_OUT);
+        assertThat(gathered.status(2)).isEqualTo(Gathered.CANCELED);
+        assertThat(gathered.values()).containsExactly("first");
+        assertThat(second.promise().isCanceled()).isTrue();
+    }
+
+    @Test
+    public void testGatherCompletesBeforeDeadline() throws Exception {
+        Deferred<String> first = new Deferred<String>();
+        Deferred<String> second = new Deferred<String>();
+        Promise<Gathered<String>> promise = Promise.gather(1, TimeUnit.HOURS, first.promise(), second.promise());
+        second.resolve("second");
+        first.close();
+        Gathered<String> gathered = promise.await(1, TimeUnit.SECONDS);
+
+        assertThat(gathered.status(0)).isEqualTo(Gathered.CLOSED);
+        assertThat(gathered.get(1)).isEqualTo("second");
+        assertThat(gathered.isComplete()).isFalse();
+    }
+
     @Test
     public void testIterator() throws Exception {
         Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_ALL);
@@ -275,4 +928,402 @@ public class TestPromise {
 
         assertThat(results).containsExactly("one", "two", "three", "four", "five");
     }
+
+    @Test
+    public void testIteratorBackpressure() throws Exception {
+        final Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        PromiseIterator<Integer> iterator = deferred.promise().iterator(4);
+        int sent = 0;
+        while (deferred.trySend(sent)) sent++;
+
+        assertThat(sent).isEqualTo(4);
+        assertThat(iterator.next()).isEqualTo(0);
+        assertThat(iterator.next()).isEqualTo(1);
+        assertThat(deferred.trySend(sent++)).isTrue();
+        assertThat(deferred.trySend(sent++)).isTrue();
+        assertThat(deferred.trySend(sent)).isFalse();
+    }
+
+    @Test
+    public void testIteratorBatches() throws Exception {
+        Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        PromiseIterator<String> iterator = deferred.promise().iterator(8);
+        deferred.sendAll("one", "two", "three", "four", "five");
+        deferred.close();
+        List<String> drained = new ArrayList<String>();
+
+        assertThat(iterator.nextBatch(2)).containsExactly("one", "two");
+        assertThat(iterator.drainTo(drained, 10)).isEqualTo(3);
+        assertThat(drained).containsExactly("three", "four", "five");
+        assertThat(iterator.nextBatch(2)).isEmpty();
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testIteratorEndsOnCancel() throws Exception {
+        final Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        Iterator<String> iterator = deferred.promise().iterator();
+        deferred.send("one");
+        new Thread() {
+            @Override
+            public void run() {
+                deferred.promise().cancel();
+            }
+        }.start();
+
+        assertThat(iterator.next()).isEqualTo("one");
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testConcurrentSend() throws Exception {
+        final int threads = 8;
+        final int messages = 10000;
+        final Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Promise<Integer> promise = deferred.promise();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger receivedAtClose = new AtomicInteger(-1);
+        promise.listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                received.incrementAndGet();
+            }
+        }).onClose(new CloseListener() {
+            @Override
+            public void close() {
+                receivedAtClose.set(received.get());
+            }
+        });
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < messages; j++) deferred.send(j);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        deferred.close();
+
+        assertThat(received.get()).isEqualTo(threads * messages);
+        assertThat(receivedAtClose.get()).isEqualTo(threads * messages);
+        assertThat(promise.isRunning()).isFalse();
+    }
+
+    @Test
+    public void testConcurrentSendAndListen() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            final Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_LAST);
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    deferred.send(1);
+                }
+            };
+            sender.start();
+            final AtomicInteger received = new AtomicInteger();
+            start.countDown();
+            deferred.promise().listen(new Listener<Integer>() {
+                @Override
+                public void receive(Integer message) {
+                    received.incrementAndGet();
+                }
+            });
+            sender.join();
+
+            assertThat(received.get()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testBurstCoalescesExecutorSubmissions() throws Exception {
+        final List<Runnable> submitted = new ArrayList<Runnable>();
+        Executor queueExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.add(command);
+            }
+        };
+        Deferred<Integer> deferred = Deferred.Builder.withCallbackExecutor(queueExecutor).build(Promise.BUFFER_NONE);
+        final List<Integer> results1 = new ArrayList<Integer>();
+        final List<Integer> results2 = new ArrayList<Integer>();
+        deferred.promise().listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                results1.add(message);
+            }
+        }).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                results2.add(message);
+            }
+        });
+        for (int i = 0; i < 100; i++) deferred.send(i);
+
+        assertThat(submitted).hasSize(2);
+        for (Runnable runnable : submitted) runnable.run();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) expected.add(i);
+        assertThat(results1).isEqualTo(expected);
+        assertThat(results2).isEqualTo(expected);
+    }
+
+    @Test
+    public void testOrderedOnThreadPool() throws Exception {
+        final int listeners = 4;
+        final int messages = 10000;
+        Deferred<Integer> deferred = Deferred.Builder.withCallbackExecutor(Executors.newFixedThreadPool(4)).build(Promise.BUFFER_NONE);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicInteger lastSeen = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(1);
+        for (int i = 0; i < listeners; i++) {
+            deferred.promise().listen(new Listener<Integer>() {
+                private final AtomicBoolean running = new AtomicBoolean();
+                private int next;
+
+                @Override
+                public void receive(Integer message) {
+                    if (!running.compareAndSet(false, true)) failed.set(true);
+                    if (message != next++) failed.set(true);
+                    if (next == messages) lastSeen.incrementAndGet();
+                    running.set(false);
+                }
+            });
+        }
+        deferred.promise().onClose(new CloseListener() {
+            @Override
+            public void close() {
+                if (lastSeen.get() != listeners) failed.set(true);
+                closed.countDown();
+            }
+        });
+        for (int i = 0; i < messages; i++) deferred.send(i);
+        deferred.close();
+
+        assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(failed.get()).isFalse();
+    }
+
+    @Test
+    public void testPromiseOf() throws Exception {
+        Promise<String> promise = Promise.of("success");
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        promise.listen(listener).onClose(closeListener);
+
+        verify(listener).receive("success");
+        verify(closeListener).close();
+        assertThat(promise.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testPromiseEmpty() throws Exception {
+        Promise<String> promise = Promise.empty();
+        Listener listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        promise.listen(listener).onClose(closeListener);
+
+        verify(listener, never()).receive(anyObject());
+        verify(closeListener).close();
+        assertThat((Object) Promise.<Integer>empty()).isSameAs(promise);
+    }
+
+    @Test
+    public void testPromiseOfCancelToken() throws Exception {
+        Promise<String> promise = Promise.of("success");
+        Chain<String, Promise<String>> chain = new Chain<String, Promise<String>>() {
+            @Override
+            public Promise<String> chain(String result) {
+                return new Deferred<String>().promise();
+            }
+        };
+        Promise<String> chained1 = promise.then(chain);
+        Promise<String> chained2 = promise.then(chain);
+        promise.cancel();
+        chained1.cancel();
+
+        assertThat(promise.cancelToken()).isSameAs(promise.cancelToken());
+        assertThat(promise.isCanceled()).isFalse();
+        assertThat(chained1.isCanceled()).isTrue();
+        assertThat(chained2.isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testPromiseOfAllMap() throws Exception {
+        Promise<String> promise = Promise.ofAll("a", "bb", "ccc");
+        final List<Integer> results = new ArrayList<Integer>();
+        CloseListener closeListener = mock(CloseListener.class);
+        promise.then(new Map<String, Integer>() {
+            @Override
+            public Integer map(String result) {
+                return result.length();
+            }
+        }).listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                results.add(message);
+            }
+        }).onClose(closeListener);
+
+        assertThat(results).containsExactly(1, 2, 3);
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testFusedStageUsedAfterTakeover() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>();
+        final AtomicInteger mapCalls = new AtomicInteger();
+        Promise<Integer> doubled = deferred.promise().then(new Map<Integer, Integer>() {
+            @Override
+            public Integer map(Integer message) {
+                mapCalls.incrementAndGet();
+                return message * 2;
+            }
+        });
+        Promise<String> strings = doubled.then(Filters.<Integer>dedup()).then(new Map<Integer, String>() {
+            @Override
+            public String map(Integer message) {
+                return "" + message;
+            }
+        });
+        Listener<Integer> doubledListener = mock(Listener.class);
+        Listener<String> stringsListener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        strings.listen(stringsListener);
+        doubled.listen(doubledListener).onClose(closeListener);
+        deferred.send(1);
+        deferred.send(1);
+        deferred.send(2);
+        deferred.close();
+
+        verify(doubledListener, times(2)).receive(2);
+        verify(doubledListener).receive(4);
+        verify(stringsListener).receive("2");
+        verify(stringsListener).receive("4");
+        verify(closeListener).close();
+        assertThat(mapCalls.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testListenWithDemand() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Listener<Integer> listener = mock(Listener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        Subscription subscription = deferred.promise().listen(listener, 2);
+        deferred.promise().onClose(closeListener);
+        deferred.sendAll(1, 2, 3);
+
+        verify(listener).receive(1);
+        verify(listener).receive(2);
+        verify(listener, never()).receive(3);
+        assertThat(deferred.hasDemand()).isFalse();
+        assertThat(deferred.trySend(4)).isFalse();
+
+        deferred.close();
+        verify(closeListener, never()).close();
+
+        subscription.request(5);
+        verify(listener).receive(3);
+        verify(listener, never()).receive(4);
+        verify(closeListener).close();
+    }
+
+    @Test
+    public void testSubscriptionCancel() throws Exception {
+        Deferred<Integer> deferred = new Deferred<Integer>(Promise.BUFFER_NONE);
+        Listener<Integer> listener = mock(Listener.class);
+        CloseListener subscriptionCloseListener = mock(CloseListener.class);
+        CloseListener closeListener = mock(CloseListener.class);
+        Subscription subscription = deferred.promise().listen(listener, subscriptionCloseListener, 1);
+        deferred.promise().onClose(closeListener);
+        deferred.sendAll(1, 2);
+        subscription.cancel();
+        subscription.request(1);
+        deferred.close();
+
+        verify(listener).receive(1);
+        verify(listener, never()).receive(2);
+        verify(subscriptionCloseListener, never()).close();
+        verify(closeListener).close();
+        assertThat(deferred.promise().isCanceled()).isFalse();
+    }
+
+    @Test
+    public void testAwaitResolved() throws Exception {
+        Deferred<String> deferred = new Deferred<String>();
+        deferred.resolve("success");
+
+        assertThat(deferred.promise().await()).isEqualTo("success");
+        assertThat(Promise.of("constant").await()).isEqualTo("constant");
+    }
+
+    @Test
+    public void testAwaitThreaded() throws Exception {
+        final Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        new Thread() {
+            @Override
+            public void run() {
+                while (!deferred.hasDemand()) Thread.yield();
+                deferred.resolve("success");
+            }
+        }.start();
+
+        assertThat(deferred.promise().await(10, TimeUnit.SECONDS)).isEqualTo("success");
+        assertThat(deferred.hasDemand()).isFalse();
+    }
+
+    @Test
+    public void testAwaitTimeoutRemovesListener() throws Exception {
+        Deferred<String> deferred = new Deferred<String>();
+        try {
+            deferred.promise().await(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        assertThat(deferred.hasDemand()).isFalse();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testAwaitClosedWithoutMessage() throws Exception {
+        Promise.empty().await();
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testAwaitCanceled() throws Exception {
+        final Deferred<String> deferred = new Deferred<String>();
+        new Thread() {
+            @Override
+            public void run() {
+                while (!deferred.hasDemand()) Thread.yield();
+                deferred.promise().cancel();
+            }
+        }.start();
+        deferred.promise().await(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAwaitAll() throws Exception {
+        final Deferred<String> deferred = new Deferred<String>(Promise.BUFFER_NONE);
+        new Thread() {
+            @Override
+            public void run() {
+                while (!deferred.hasDemand()) Thread.yield();
+                deferred.resolveAll("one", "two", "three");
+            }
+        }.start();
+
+        assertThat(deferred.promise().awaitAll()).containsExactly("one", "two", "three");
+    }
 }
@@ -0,0 +1,192 @@
+package me.tatarka.ipromise.unit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatarka.ipromise.CallbackExecutors;
+import me.tatarka.ipromise.Deferred;
+import me.tatarka.ipromise.Promise;
+import me.tatarka.ipromise.cache.CacheStats;
+import me.tatarka.ipromise.cache.PromiseCache;
+import me.tatarka.ipromise.func.Map;
+import me.tatarka.ipromise.task.Task;
+
+import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class TestPromiseCache {
+    static {
+        CallbackExecutors.setDefault(sameThreadExecutor());
+    }
+
+    @Test
+    public void testLoadsOnceAndCaches() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>().build(loader);
+
+        assertThat(cache.get("key").await()).isEqualTo("key1");
+        assertThat(cache.get("key").await()).isEqualTo("key1");
+        CacheStats stats = cache.stats();
+        assertThat(stats.missCount()).isEqualTo(1);
+        assertThat(stats.hitCount()).isEqualTo(1);
+        assertThat(stats.loadSuccessCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookupsShareRunningLoad() throws Exception {
+        DeferredLoader loader = new DeferredLoader();
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>().build(loader);
+        Promise<String> first = cache.get("key");
+        Promise<String> second = cache.get("key");
+        first.cancel();
+        loader.deferreds.get(0).resolve("value");
+
+        assertThat(second.await()).isEqualTo("value");
+        assertThat(loader.deferreds).hasSize(1);
+        assertThat(cache.getIfPresent("key")).isEqualTo("value");
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() throws Exception {
+        DeferredLoader loader = new DeferredLoader();
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>().build(loader);
+        Promise<String> promise = cache.get("key");
+        loader.deferreds.get(0).close();
+
+        assertThat(promise.awaitAll()).isEmpty();
+        cache.get("key");
+        assertThat(loader.deferreds).hasSize(2);
+        assertThat(cache.stats().loadFailureCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEvictsBeyondMaximumSize() throws Exception {
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>()
+                .maximumSize(2)
+                .build(new CountingLoader());
+        cache.get("one");
+        cache.get("two");
+        cache.get("three");
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.stats().evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEvictsBeyondMaximumWeight() throws Exception {
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>()
+                .maximumWeight(10, new PromiseCache.Weigher<String, String>() {
+                    @Override
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                })
+                .build(new CountingLoader());
+        cache.get("aaaa");
+        cache.get("bbbb");
+        cache.get("cccc");
+
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testReadEntrySurvivesScan() throws Exception {
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>()
+                .maximumSize(10)
+                .build(new CountingLoader());
+        cache.get("hot");
+        cache.get("hot");
+        for (int i = 0; i < 100; i++) cache.get("cold" + i);
+
+        assertThat(cache.getIfPresent("hot")).isEqualTo("hot1");
+        assertThat(cache.size()).isEqualTo(10);
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        FakeTicker ticker = new FakeTicker();
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>()
+                .expireAfterWrite(20, TimeUnit.MILLISECONDS)
+                .ticker(ticker)
+                .build(loader);
+        cache.get("key");
+        ticker.advance(19, TimeUnit.MILLISECONDS);
+        assertThat(cache.getIfPresent("key")).isEqualTo("key1");
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+
+        assertThat(cache.getIfPresent("key")).isNull();
+        assertThat(cache.get("key").await()).isEqualTo("key2");
+    }
+
+    @Test
+    public void testRefreshServesOldValueUntilReloaded() throws Exception {
+        DeferredLoader loader = new DeferredLoader();
+        FakeTicker ticker = new FakeTicker();
+        PromiseCache<String, String> cache = new PromiseCache.Builder<String, String>()
+                .refreshAfterWrite(20, TimeUnit.MILLISECONDS)
+                .ticker(ticker)
+                .build(loader);
+        cache.get("key");
+        loader.deferreds.get(0).resolve("old");
+        ticker.advance(20, TimeUnit.MILLISECONDS);
+
+        assertThat(cache.get("key").await()).isEqualTo("old");
+        assertThat(loader.deferreds).hasSize(2);
+        assertThat(cache.get("key").await()).isEqualTo("old");
+        loader.deferreds.get(1).resolve("new");
+        assertThat(cache.get("key").await()).isEqualTo("new");
+        assertThat(loader.deferreds).hasSize(2);
+    }
+
+    static class FakeTicker implements PromiseCache.Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+
+    static class CountingLoader implements Map<String, Task<String>> {
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public Task<String> map(final String key) {
+            return new Task<String>() {
+                @Override
+                public Promise<String> start() {
+                    return Promise.of(key + loads.incrementAndGet());
+                }
+            };
+        }
+    }
+
+    static class DeferredLoader implements Map<String, Task<String>> {
+        final List<Deferred<String>> deferreds = new ArrayList<Deferred<String>>();
+
+        @Override
+        public Task<String> map(String key) {
+            return new Task<String>() {
+                @Override
+                public Promise<String> start() {
+                    Deferred<String> deferred = new Deferred<String>();
+                    deferreds.add(deferred);
+                    return deferred.promise();
+                }
+            };
+        }
+    }
+}
@@ -4,18 +4,36 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import me.tatarka.ipromise.CallbackExecutors;
 import me.tatarka.ipromise.CancelToken;
+import me.tatarka.ipromise.CloseListener;
+import me.tatarka.ipromise.Deferred;
 import me.tatarka.ipromise.Listener;
 import me.tatarka.ipromise.Promise;
 import me.tatarka.ipromise.Result;
+import me.tatarka.ipromise.Subscription;
+import me.tatarka.ipromise.func.Map;
+import me.tatarka.ipromise.task.HedgedTask;
+import me.tatarka.ipromise.task.RetryPolicy;
+import me.tatarka.ipromise.task.SingleFlight;
 import me.tatarka.ipromise.task.Task;
+import me.tatarka.ipromise.task.TaskScope;
 import me.tatarka.ipromise.task.Tasks;
 
 import static me.tatarka.ipromise.CallbackExecutors.sameThreadExecutor;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
@@ -43,6 +61,40 @@ public class TestTask {
         verify(listener).receive(result);
     }
 
+    @Test
+    public void testThreadTaskRunsInNewThread() throws Exception {
+        final Thread caller = Thread.currentThread();
+        Promise<Boolean> promise = Tasks.run(new Task.DoOnce<Boolean>() {
+            @Override
+            public Boolean runOnce(CancelToken cancelToken) {
+                return Thread.currentThread() != caller;
+            }
+        });
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testCancelThreadTaskInterrupts() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Promise<Void> promise = Tasks.run(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        promise.cancel();
+
+        assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
     @Test
     public void testTaskRunFailable() {
         final Error error = new Error();
@@ -68,4 +120,537 @@ public class TestTask {
     private static class Error extends Exception {
 
     }
+
+    /**
+     * Waits until the shared timer has run everything that was due before the delay. The timer
+     * runs timeouts in the order they are due, so a timeout canceled earlier with a shorter delay
+     * would have run by now.
+     */
+    private static void awaitTimer(long delay, TimeUnit unit) throws Exception {
+        Tasks.schedule(delay, unit, new Task<Void>() {
+            @Override
+            public Promise<Void> start() {
+                return Promise.of(null);
+            }
+        }).await(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testBoundedSenderWaitsForDemand() throws Exception {
+        final int messages = 100000;
+        final int window = 8;
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        final AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final Runnable[] producer = new Runnable[1];
+
+        Promise<Integer> promise = Tasks.run(
+                Deferred.Builder.withCallbackExecutor(Executors.newSingleThreadExecutor()),
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        producer[0] = command;
+                    }
+                },
+                new Task.DoManyBounded<Integer>() {
+                    @Override
+                    public void runMay(Task.BoundedSender<Integer> sender, CancelToken cancelToken) {
+                        for (int i = 1; i <= messages; i++) {
+                            produced.incrementAndGet();
+                            sender.send(i);
+                        }
+                    }
+                });
+        subscription.set(promise.listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                int ahead = produced.get() - message;
+                if (ahead > maxAhead.get()) maxAhead.set(ahead);
+                if (message % (window / 2) == 0) subscription.get().request(window / 2);
+            }
+        }, 0));
+        promise.onClose(new CloseListener() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+        subscription.get().request(window);
+        new Thread(producer[0]).start();
+
+        assertThat(closed.await(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxAhead.get()).isLessThanOrEqualTo(window + 1);
+    }
+
+    @Test
+    public void testScheduleStartsTaskAfterDelay() throws Exception {
+        final long start = System.nanoTime();
+        Promise<Long> promise = Tasks.schedule(20, TimeUnit.MILLISECONDS, Tasks.of(sameThreadExecutor, new Task.DoOnce<Long>() {
+            @Override
+            public Long runOnce(CancelToken cancelToken) {
+                return System.nanoTime() - start;
+            }
+        }));
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void testScheduleKeepsResultWhenListenedAfterRun() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Promise<Integer> promise = Tasks.schedule(1, TimeUnit.NANOSECONDS, Tasks.of(sameThreadExecutor, new Task.DoOnce<Integer>() {
+            @Override
+            public Integer runOnce(CancelToken cancelToken) {
+                ran.countDown();
+                return 1;
+            }
+        }));
+        assertThat(ran.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isEqualTo(1);
+    }
+
+    @Test
+    public void testCanceledScheduleNeverStarts() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Promise<Integer> promise = Tasks.schedule(20, TimeUnit.MILLISECONDS, Tasks.of(sameThreadExecutor, new Task.DoOnce<Integer>() {
+            @Override
+            public Integer runOnce(CancelToken cancelToken) {
+                return runs.incrementAndGet();
+            }
+        }));
+        promise.cancel();
+        awaitTimer(50, TimeUnit.MILLISECONDS);
+
+        assertThat(runs.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testEveryRunsUntilCanceled() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Promise<Integer> promise = Tasks.every(5, TimeUnit.MILLISECONDS, Tasks.of(sameThreadExecutor, new Task.DoOnce<Integer>() {
+            @Override
+            public Integer runOnce(CancelToken cancelToken) {
+                return runs.incrementAndGet();
+            }
+        }));
+        final CountDownLatch received = new CountDownLatch(3);
+        promise.listen(new Listener<Integer>() {
+            @Override
+            public void receive(Integer message) {
+                received.countDown();
+            }
+        });
+
+        assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+        promise.cancel();
+        // A run that was already going finishes before the timer gets to the next timeout.
+        awaitTimer(0, TimeUnit.MILLISECONDS);
+        int count = runs.get();
+        awaitTimer(30, TimeUnit.MILLISECONDS);
+        assertThat(runs.get()).isEqualTo(count);
+    }
+
+    @Test
+    public void testRetryUntilSuccess() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        Promise<Result<String, Exception>> promise = Tasks.retry(Tasks.of(sameThreadExecutor, new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                if (attempts.incrementAndGet() < 3) throw new Exception();
+                return "result";
+            }
+        }), new RetryPolicy().maxAttempts(5).backoff(1, 10, TimeUnit.MILLISECONDS));
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isEqualTo(Result.<String, Exception>success("result"));
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testRetryGivesUpAfterMaxAttempts() throws Exception {
+        final Exception error = new Exception();
+        final AtomicInteger attempts = new AtomicInteger();
+        Promise<Result<String, Exception>> promise = Tasks.retry(Tasks.of(sameThreadExecutor, new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                attempts.incrementAndGet();
+                throw error;
+            }
+        }), new RetryPolicy().maxAttempts(3).backoff(1, 1, TimeUnit.MILLISECONDS));
+
+        assertThat(promise.await(10, TimeUnit.SECONDS)).isEqualTo(Result.<String, Exception>error(error));
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testRetryOnlyRetriesMatchingErrors() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        Promise<Result<String, Exception>> promise = Tasks.retry(Tasks.of(sameThreadExecutor, new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                attempts.incrementAndGet();
+                throw new IllegalStateException();
+            }
+        }), new RetryPolicy().retryOn(IOException.class));
+
+        assertThat(promise.await(10, TimeUnit.SECONDS).getError()).isInstanceOf(IllegalStateException.class);
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCancelRetryStopsPendingRetry() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        Promise<Result<String, Exception>> promise = Tasks.retry(Tasks.of(sameThreadExecutor, new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                attempts.incrementAndGet();
+                throw new Exception();
+            }
+        }), new RetryPolicy().backoff(20, 20, TimeUnit.MILLISECONDS));
+        promise.cancel();
+        awaitTimer(50, TimeUnit.MILLISECONDS);
+
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSingleFlightSharesRunningTask() throws Exception {
+        final AtomicInteger starts = new AtomicInteger();
+        final Deferred<String> deferred = new Deferred<String>();
+        SingleFlight<String, String> flight = Tasks.singleFlight(new Map<String, Task<String>>() {
+            @Override
+            public Task<String> map(String key) {
+                return new Task<String>() {
+                    @Override
+                    public Promise<String> start() {
+                        starts.incrementAndGet();
+                        return deferred.promise();
+                    }
+                };
+            }
+        });
+        Promise<String> first = flight.start("key");
+        Promise<String> second = flight.start("key");
+        deferred.resolve("value");
+
+        assertThat(first.await()).isEqualTo("value");
+        assertThat(second.await()).isEqualTo("value");
+        assertThat(starts.get()).isEqualTo(1);
+        assertThat(flight.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSingleFlightStartsAgainAfterClose() throws Exception {
+        final AtomicInteger starts = new AtomicInteger();
+        SingleFlight<String, Integer> flight = Tasks.singleFlight(new Map<String, Task<Integer>>() {
+            @Override
+            public Task<Integer> map(String key) {
+                return Tasks.of(sameThreadExecutor, new Task.DoOnce<Integer>() {
+                    @Override
+                    public Integer runOnce(CancelToken cancelToken) {
+                        return starts.incrementAndGet();
+                    }
+                });
+            }
+        });
+
+        assertThat(flight.start("key").await()).isEqualTo(1);
+        assertThat(flight.start("key").await()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSingleFlightCancelsOnlyWhenAllCallersCancel() {
+        final Deferred<String> deferred = new Deferred<String>();
+        SingleFlight<String, String> flight = Tasks.singleFlight(new Map<String, Task<String>>() {
+            @Override
+            public Task<String> map(String key) {
+                return new Task<String>() {
+                    @Override
+                    public Promise<String> start() {
+                        return deferred.promise();
+                    }
+                };
+            }
+        });
+        Promise<String> first = flight.start("key");
+        Promise<String> second = flight.start("key");
+
+        first.cancel();
+        assertThat(deferred.promise().isCanceled()).isFalse();
+        second.cancel();
+        assertThat(deferred.promise().isCanceled()).isTrue();
+        assertThat(flight.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSingleFlightThrowsWhenTaskStartsItsOwnKey() throws Exception {
+        final AtomicReference<SingleFlight<String, String>> holder = new AtomicReference<SingleFlight<String, String>>();
+        SingleFlight<String, String> flight = Tasks.singleFlight(new Map<String, Task<String>>() {
+            @Override
+            public Task<String> map(final String key) {
+                return new Task<String>() {
+                    @Override
+                    public Promise<String> start() {
+                        return holder.get().start(key);
+                    }
+                };
+            }
+        });
+        holder.set(flight);
+        try {
+            flight.start("key");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertThat(flight.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHedgeWinsWhenFirstStalls() throws Exception {
+        final List<Deferred<String>> deferreds = new CopyOnWriteArrayList<Deferred<String>>();
+        HedgedTask<String> task = Tasks.hedged(new Task<String>() {
+            @Override
+            public Promise<String> start() {
+                Deferred<String> deferred = new Deferred<String>();
+                deferreds.add(deferred);
+                return deferred.promise();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        Promise<String> promise = task.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (deferreds.size() < 2 && System.nanoTime() < deadline) Thread.sleep(1);
+        deferreds.get(1).resolve("hedge");
+
+        assertThat(promise.await()).isEqualTo("hedge");
+        assertThat(deferreds.get(0).promise().isCanceled()).isTrue();
+        assertThat(task.hedgeCount()).isEqualTo(1);
+        assertThat(task.hedgeWinCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNoHedgeWhenFirstIsFast() throws Exception {
+        HedgedTask<String> task = Tasks.hedged(new Task<String>() {
+            @Override
+            public Promise<String> start() {
+                return Promise.of("result");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        assertThat(task.start().await()).isEqualTo("result");
+        awaitTimer(30, TimeUnit.MILLISECONDS);
+        assertThat(task.startCount()).isEqualTo(1);
+        assertThat(task.hedgeCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHedgeWinRecordsFirstCopyLatency() throws Exception {
+        final AtomicInteger starts = new AtomicInteger();
+        HedgedTask<String> task = Tasks.hedged(new Task<String>() {
+            @Override
+            public Promise<String> start() {
+                // The first copy of every run stalls and the hedge answers right away.
+                if (starts.getAndIncrement() % 2 == 0) return new Deferred<String>().promise();
+                return Promise.of("hedge");
+            }
+        }, 0.5, 5, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertThat(task.start().await(10, TimeUnit.SECONDS)).isEqualTo("hedge");
+        }
+
+        assertThat(task.hedgeWinCount()).isEqualTo(100);
+        assertThat(task.delay(TimeUnit.MILLISECONDS)).isEqualTo(5);
+    }
+
+    @Test
+    public void testHedgedUsesDeferredBuilder() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        Executor callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        };
+        HedgedTask<String> task = Tasks.hedged(Deferred.Builder.withCallbackExecutor(callbackExecutor), new Task<String>() {
+            @Override
+            public Promise<String> start() {
+                return Promise.of("result");
+            }
+        }, 1, TimeUnit.HOURS);
+        Listener listener = mock(Listener.class);
+        task.start().listen(listener);
+
+        verify(listener).receive("result");
+        assertThat(executed.get()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testAdaptiveHedgeDelayFollowsLatency() throws Exception {
+        HedgedTask<String> task = Tasks.hedged(new Task<String>() {
+            @Override
+            public Promise<String> start() {
+                return Promise.of("result");
+            }
+        }, 0.9, 1, TimeUnit.HOURS);
+        assertThat(task.delay(TimeUnit.HOURS)).isEqualTo(1);
+        for (int i = 0; i < 200; i++) task.start();
+
+        assertThat(task.delay(TimeUnit.MILLISECONDS)).isLessThan(100);
+    }
+
+    @Test
+    public void testFailFastScopeCancelsSiblings() throws Exception {
+        final Exception error = new Exception();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        TaskScope scope = new TaskScope(TaskScope.FAIL_FAST);
+        Promise<Void> sibling = scope.fork(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        scope.fork(new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                throw error;
+            }
+        });
+
+        assertThat(scope.join(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(scope.isCanceled()).isTrue();
+        assertThat(scope.error()).isSameAs(error);
+        assertThat(sibling.isCanceled()).isTrue();
+        assertThat(interrupted.get()).isTrue();
+    }
+
+    @Test
+    public void testJoinAllScopeKeepsSiblings() throws Exception {
+        TaskScope scope = new TaskScope(TaskScope.JOIN_ALL);
+        Promise<Result<String, Exception>> failing = scope.fork(new Task.DoOnceFailable<String, Exception>() {
+            @Override
+            public String runFailable(CancelToken cancelToken) throws Exception {
+                throw new Exception();
+            }
+        });
+        Promise<String> sibling = scope.fork(new Task.DoOnce<String>() {
+            @Override
+            public String runOnce(CancelToken cancelToken) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return "result";
+            }
+        });
+
+        assertThat(scope.join(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(failing.await().isError()).isTrue();
+        assertThat(sibling.await()).isEqualTo("result");
+        assertThat(scope.isCanceled()).isFalse();
+        assertThat(scope.error()).isNull();
+    }
+
+    @Test
+    public void testCloseScopeWaitsForChildren() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean returned = new AtomicBoolean();
+        TaskScope scope = new TaskScope(TaskScope.JOIN_ALL);
+        scope.fork(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    // Canceled by the scope.
+                } finally {
+                    returned.set(true);
+                }
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        scope.close();
+
+        assertThat(returned.get()).isTrue();
+        assertThat(scope.runningCount()).isEqualTo(0);
+        try {
+            scope.fork(new Task.DoOnce<String>() {
+                @Override
+                public String runOnce(CancelToken cancelToken) {
+                    return "result";
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCanceledScopeDoesNotStartChildren() {
+        final AtomicBoolean ran = new AtomicBoolean();
+        TaskScope scope = new TaskScope(TaskScope.JOIN_ALL);
+        scope.cancel();
+        Promise<String> promise = scope.fork(new Task.DoOnce<String>() {
+            @Override
+            public String runOnce(CancelToken cancelToken) {
+                ran.set(true);
+                return "result";
+            }
+        });
+
+        assertThat(promise.isCanceled()).isTrue();
+        assertThat(scope.runningCount()).isEqualTo(0);
+        assertThat(ran.get()).isFalse();
+    }
+
+    @Test
+    public void testJoinFromChildThrows() throws Exception {
+        final TaskScope scope = new TaskScope(TaskScope.JOIN_ALL);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        scope.fork(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                try {
+                    scope.join();
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        });
+
+        assertThat(scope.join(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(error.get()).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testCloseFromChildThrows() throws Exception {
+        final TaskScope scope = new TaskScope(TaskScope.JOIN_ALL);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        scope.fork(new Task.Do<Void>() {
+            @Override
+            public void run(Deferred<Void> deferred, CancelToken cancelToken) {
+                try {
+                    scope.close();
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        });
+
+        assertThat(scope.join(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(error.get()).isInstanceOf(IllegalStateException.class);
+        assertThat(scope.isCanceled()).isFalse();
+    }
 }